@@ -0,0 +1,69 @@
+package pt.ulisboa.tecnico.tuplespaces.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+
+
+/**
+ * runs the benchmarks once for each number of threads, and writes the results of each run to <out>/jmh-<threads>t.json
+ *
+ * the JSON files can be compared across commits (e.g. with https://jmh.morethan.net) to catch regressions
+ * of the data structures; for any other JMH option run org.openjdk.jmh.Main from the same jar
+ */
+public class BenchmarkMain {
+
+    private static final String USAGE = "[-threads=<n,...>] [-size=<n,...>] [-pattern=<exact|prefix|wildcard,...>] [-heap=<size>] [-out=<dir>] [-quick] [benchmark regex]";
+
+    public static void main(String[] args) throws RunnerException {
+        String threads = "1,2,4,8,16,32,64";
+        String sizes = null;                    // every size of the @Param, 1k to 10M
+        String patterns = null;                 // every kind of pattern
+        String heap = null;                     // the default heap of the JVM, too small for 10M tuples on most machines
+        String out = "target/jmh";
+        boolean quick = false;                  // a single short iteration, to check the benchmarks run
+        String include = ".*StateBenchmark.*";
+
+        for (String arg : args) {
+            if (arg.startsWith("-threads=")) { threads = arg.substring("-threads=".length()); }
+            else if (arg.startsWith("-size=")) { sizes = arg.substring("-size=".length()); }
+            else if (arg.startsWith("-pattern=")) { patterns = arg.substring("-pattern=".length()); }
+            else if (arg.startsWith("-heap=")) { heap = arg.substring("-heap=".length()); }
+            else if (arg.startsWith("-out=")) { out = arg.substring("-out=".length()); }
+            else if (arg.equals("-quick")) { quick = true; }
+            else if (!arg.startsWith("-")) { include = arg; }
+            else {
+                System.err.println("Invalid argument: " + arg);
+                System.err.printf("Usage: java -jar benchmarks.jar %s%n", USAGE);
+                return;
+            }
+        }
+
+        new File(out).mkdirs();
+
+        for (String t : threads.split(",")) {
+            int n = Integer.parseInt(t.trim());
+
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                                                .include(include)
+                                                .threads(n)
+                                                .resultFormat(ResultFormatType.JSON)
+                                                .result(out + "/jmh-" + n + "t.json");
+
+            if (sizes != null) { options.param("size", sizes.split(",")); }
+            if (patterns != null) { options.param("kind", patterns.split(",")); }
+            if (heap != null) { options.jvmArgsAppend("-Xms" + heap, "-Xmx" + heap); }
+            if (quick) {
+                options.warmupIterations(1).warmupTime(TimeValue.seconds(1))
+                       .measurementIterations(1).measurementTime(TimeValue.seconds(1));
+            }
+
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package pt.ulisboa.tecnico.tuplespaces.benchmarks;
+
+import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * SingleServerStateBenchmark measures the operations of the tuple space of the single server (a list under one lock),
+ * the baseline of ReplicaServerStateBenchmark; the single server has no locks, so there is no LOCK benchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SingleServerStateBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Space {
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int size;
+
+        public ServerState state;
+
+        @Setup(Level.Trial)
+        public void fill() {
+            this.state = new ServerState(false);
+            for (int i = 0; i < this.size; i++) { this.state.put(Workload.tuple(i)); }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Patterns {
+        @Param({"exact", "prefix", "wildcard"})
+        public String kind;
+
+        private String[] patterns;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void choose(Space space) { this.patterns = Workload.patterns(this.kind, space.size); }
+
+        public String next() { return this.patterns[this.next++ & (Workload.PATTERNS - 1)]; }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger ids = new AtomicInteger(1);
+
+        public int clientId;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void register() { this.clientId = ids.getAndIncrement(); }
+
+        /**
+         * @return a tuple that is not in the space, nor put by any other thread
+         */
+        public String fresh() { return "<new" + this.clientId + ",v" + (this.next++) + ">"; }
+    }
+
+    @Benchmark
+    public String read(Space space, Patterns patterns) {
+        return space.state.read(patterns.next());
+    }
+
+    @Benchmark
+    public String takeAndPut(Space space, Patterns patterns) {
+        String tuple = space.state.take(patterns.next());
+        space.state.put(tuple);
+        return tuple;
+    }
+
+    @Benchmark
+    public String putAndTake(Space space, Client client) {
+        String tuple = client.fresh();
+        space.state.put(tuple);
+        return space.state.take(tuple);
+    }
+}
@@ -0,0 +1,54 @@
+package pt.ulisboa.tecnico.tuplespaces.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Workload is the tuple space every benchmark runs on, and the patterns it searches with
+ *
+ * the space has `size` distinct tuples, <k0,v0> ... <k(size/16),v(size-1)>: every 16 tuples share their first field,
+ * so they land in the same shard of the replica
+ *
+ * exact      <k3,v50>      a single tuple
+ * prefix     <k3,.*>       the 16 tuples of a first field: a regex, but the replica only searches one shard
+ * wildcard   <.*,v50>      a single tuple, but any first field: the replica searches every shard
+ */
+public class Workload {
+
+    public static final int GROUP = 16;             // tuples per value of the first field
+    public static final int PATTERNS = 1024;        // patterns each thread cycles through, so they don't all hit the same tuple
+
+    public static String tuple(int i) {
+        return "<k" + (i / GROUP) + ",v" + i + ">";
+    }
+
+    /**
+     * @param kind exact, prefix or wildcard
+     * @param i the tuple the pattern matches
+     * @return the pattern
+     * @throws IllegalArgumentException if the kind is not known
+     */
+    public static String pattern(String kind, int i) {
+        switch (kind) {
+            case "exact":
+                return tuple(i);
+            case "prefix":
+                return "<k" + (i / GROUP) + ",.*>";
+            case "wildcard":
+                return "<.*,v" + i + ">";
+            default:
+                throw new IllegalArgumentException("Unknown pattern kind: " + kind);
+        }
+    }
+
+    /**
+     * @param kind exact, prefix or wildcard
+     * @param size the number of tuples in the space
+     * @return PATTERNS patterns of tuples chosen at random in the space
+     */
+    public static String[] patterns(String kind, int size) {
+        String[] patterns = new String[PATTERNS];
+        for (int i = 0; i < PATTERNS; i++) { patterns[i] = pattern(kind, ThreadLocalRandom.current().nextInt(size)); }
+        return patterns;
+    }
+}
@@ -1,9 +1,15 @@
 package pt.ulisboa.tecnico.tuplespaces.client;
 
 import pt.ulisboa.tecnico.tuplespaces.client.grpc.ClientService;
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
 
 import java.util.Scanner;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class CommandProcessor {
 
@@ -13,9 +19,15 @@ public class CommandProcessor {
     private static final String PUT = "put";
     private static final String READ = "read";
     private static final String TAKE = "take";
+    private static final String PUT_ALL = "putAll";
+    private static final String READ_ALL = "readAll";
+    private static final String TAKE_MANY = "takeMany";
     private static final String SLEEP = "sleep";
     private static final String EXIT = "exit";
     private static final String GET_TUPLE_SPACES_STATE = "getTupleSpacesState";
+    private static final String STREAM_TUPLE_SPACES_STATE = "streamTupleSpacesState";
+    private static final String WATCH = "watch";
+    private static final String GET_STATS = "getStats";
 
     private final ClientService clientService;
 
@@ -45,10 +57,34 @@ public class CommandProcessor {
                     this.take(split);
                     break;
 
+                case PUT_ALL:
+                    this.putAll(split);
+                    break;
+
+                case READ_ALL:
+                    this.readAll(split);
+                    break;
+
+                case TAKE_MANY:
+                    this.takeMany(split);
+                    break;
+
                 case GET_TUPLE_SPACES_STATE:
                     this.getTupleSpacesState();
                     break;
 
+                case STREAM_TUPLE_SPACES_STATE:
+                    this.streamTupleSpacesState(split);
+                    break;
+
+                case WATCH:
+                    this.watch(split);
+                    break;
+
+                case GET_STATS:
+                    this.getStats();
+                    break;
+
                 case SLEEP:
                     this.sleep(split);
                     break;
@@ -83,11 +119,11 @@ public class CommandProcessor {
                 return;
             }
             // put the tuple with delays
-            this.clientService.requestPut(tuple, delays);
+            this.printAnswer(await(this.clientService.put(tuple, delays)));
         }
         else {
             // put the tuple
-            this.clientService.requestPut(tuple, null);
+            this.printAnswer(await(this.clientService.put(tuple, null)));
         }
     }
 
@@ -108,11 +144,11 @@ public class CommandProcessor {
                 return;
             }
             // read the tuple with delays
-            System.out.println(this.clientService.requestRead(tuple, delays) + "\n");
+            System.out.println(this.printOk(await(this.clientService.read(tuple, delays))) + "\n");
         }
         else {
             // read the tuple
-            System.out.println(this.clientService.requestRead(tuple, null) + "\n");
+            System.out.println(this.printOk(await(this.clientService.read(tuple, null))) + "\n");
         }
     }
 
@@ -134,20 +170,75 @@ public class CommandProcessor {
                 return;
             }
             // take the tuple with delays
-            System.out.println(this.clientService.requestTake(tuple, delays) + "\n");
+            System.out.println(this.printOk(await(this.clientService.take(tuple, delays))) + "\n");
         }
         else {
             // take the tuple
-            System.out.println(this.clientService.requestTake(tuple, null) + "\n");
+            System.out.println(this.printOk(await(this.clientService.take(tuple, null))) + "\n");
+        }
+    }
+
+    private void putAll(String[] split) {
+        if (split.length < 2) {
+            this.printUsage();
+            return;
+        }
+
+        // every other argument is a tuple
+        List<String> tuples = new ArrayList<String>();
+        for (int i = 1; i < split.length; i++) {
+            if (!this.isTuple(split[i])) {
+                this.printUsage();
+                return;
+            }
+            tuples.add(split[i]);
+        }
+
+        this.printAnswer(await(this.clientService.putAll(tuples)));
+    }
+
+    private void readAll(String[] split) {
+        if (split.length < 2 || split.length > 3 || !this.isTuple(split[1])) {
+            this.printUsage();
+            return;
+        }
+
+        // the limit is optional, 0 reads every matching tuple
+        Integer limit = (split.length == 3) ? this.getPositive(split[2]) : Integer.valueOf(0);
+        if (limit == null) {
+            this.printUsage();
+            return;
         }
+
+        List<String> result = this.printOk(await(this.clientService.readAll(split[1], limit)));
+        System.out.println(result + "\n");
+    }
+
+    private void takeMany(String[] split) {
+        if (split.length != 3 || !this.isTuple(split[1])) {
+            this.printUsage();
+            return;
+        }
+
+        Integer n = this.getPositive(split[2]);
+        if (n == null || n == 0) {
+            this.printUsage();
+            return;
+        }
+
+        List<String> result = this.printOk(await(this.clientService.takeMany(split[1], n)));
+        System.out.println(result + "\n");
     }
 
     private void getTupleSpacesState() {
         // get the tuple spaces state
-        List<String> tupleSpacesState = this.clientService.requestGetTupleSpacesState();
+        List<String> tupleSpacesState = this.printOk(await(this.clientService.getTupleSpacesState()));
 
 
-        if (tupleSpacesState.isEmpty()) {
+        if (tupleSpacesState == null) {
+            System.out.println("null\n");
+        }
+        else if (tupleSpacesState.isEmpty()) {
             System.out.println("[]\n");
         }
         else {
@@ -155,6 +246,106 @@ public class CommandProcessor {
         }
     }
 
+    private void streamTupleSpacesState(String[] split) {
+        if (split.length > 3 || (split.length > 1 && !this.isTuple(split[1]))) {
+            this.printUsage();
+            return;
+        }
+
+        // both arguments are optional: every tuple, in chunks of the default size of the servers
+        String pattern = (split.length > 1) ? split[1] : "";
+        Integer chunkSize = (split.length > 2) ? this.getPositive(split[2]) : Integer.valueOf(0);
+        if (chunkSize == null) {
+            this.printUsage();
+            return;
+        }
+
+        // each chunk is printed as soon as it arrives
+        long received = this.clientService.requestStreamTupleSpacesState(pattern, chunkSize, () -> System.out.println("OK"),
+                                (server, tuples) -> System.out.println("server " + server + ": " + tuples));
+        if (received >= 0) {
+            System.out.println(received + " tuples\n");
+        }
+    }
+
+    private void watch(String[] split) {
+        if (split.length != 3 || !this.isTuple(split[1])) {
+            this.printUsage();
+            return;
+        }
+
+        Integer n = this.getPositive(split[2]);
+        if (n == null || n == 0) {
+            this.printUsage();
+            return;
+        }
+
+        // each tuple is printed as soon as it is put
+        long missed = this.clientService.requestWatch(split[1], n, () -> System.out.println("OK"), tuple -> System.out.println(tuple));
+        if (missed > 0) {
+            System.out.println(missed + " tuples missed");
+        }
+        System.out.println();
+    }
+
+    private void getStats() {
+        TupleSpacesOuterClass.GetStatsResponse stats = this.printOk(await(this.clientService.getStats()));
+
+        if (stats != null) {
+            printStats(stats);
+            for (int i = 0; i < stats.getServerCount(); i++) {
+                if (stats.getServer(i).getSource().isEmpty()) { System.out.println("server " + i + ": no answer"); }
+                else { printStats(stats.getServer(i)); }
+            }
+            System.out.println();
+        }
+    }
+
+    private void printStats(TupleSpacesOuterClass.GetStatsResponse stats) {
+        System.out.println(stats.getSource());
+
+        for (TupleSpacesOuterClass.HistogramStats h : stats.getHistogramList()) {
+            if (h.getCount() == 0) { continue; }            // operations that never ran
+            System.out.printf("  %-12s count %-9d mean %-7d p50 %-7d p90 %-7d p99 %-7d p99.9 %-7d max %-7d %s%n",
+                              h.getName(), h.getCount(), h.getSum() / h.getCount(), h.getP50(), h.getP90(), h.getP99(), h.getP999(), h.getMax(), h.getUnit());
+        }
+
+        StringBuilder counters = new StringBuilder(" ");
+        for (Map.Entry<String, Long> counter : stats.getCounterMap().entrySet()) {
+            counters.append(' ').append(counter.getKey()).append(' ').append(counter.getValue());
+        }
+        System.out.println(counters);
+    }
+
+    /**
+     * waits for a request to complete, the command line runs one at a time
+     * @return the result, or null if the request failed
+     */
+    private static <T> T await(CompletableFuture<T> request) {
+        try {
+            return request.join();
+        }
+        catch (CompletionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * prints OK if the request succeeded
+     * @return the result, unchanged
+     */
+    private <T> T printOk(T result) {
+        if (result != null) { System.out.println("OK"); }
+        return result;
+    }
+
+    /**
+     * prints the answer of a PUT or PUT-ALL, if it succeeded
+     */
+    private void printAnswer(String answer) {
+        if (answer != null) { System.out.println(answer + "\n"); }
+    }
+
     private void sleep(String[] split) {
       if (split.length != 2){
         this.printUsage();
@@ -182,18 +373,22 @@ public class CommandProcessor {
                 "- put <element[,more_elements]> [<delayServer1(seconds)> <...> <delayServerN(seconds)>]\n" +
                 "- read <element[,more_elements]> [<delayS1(seconds)> <...> <delaySN(seconds)>]\n" +
                 "- take <element[,more_elements]> [<delayS1(seconds)> <...> <delaySN(seconds)>]\n" +
+                "- putAll <element[,more_elements]> [<element[,more_elements]> ...]\n" +
+                "- readAll <element[,more_elements]> [limit]\n" +
+                "- takeMany <element[,more_elements]> <n>\n" +
                 "- getTupleSpacesState\n" +
+                "- streamTupleSpacesState [<element[,more_elements]> [chunkSize]]\n" +
+                "- watch <element[,more_elements]> <n>\n" +
+                "- getStats\n" +
                 "- sleep <delay (seconds)>\n" +
                 "- exit\n");
     }
 
     private int[] getIntegers(String[] split) {
-        int[] integers = new int[3];
+        int[] integers = new int[split.length - 2];     // one delay per server, as many as the frontend has
 
         try {
-            integers[0] = Integer.parseInt(split[2]);
-            integers[1] = Integer.parseInt(split[3]);
-            integers[2] = Integer.parseInt(split[4]);
+            for (int i = 0; i < integers.length; i++) { integers[i] = Integer.parseInt(split[i + 2]); }
 
             return integers;
         }
@@ -202,18 +397,26 @@ public class CommandProcessor {
         }
     }
 
+    private Integer getPositive(String input) {
+        try {
+            int value = Integer.parseInt(input);
+            return (value < 0) ? null : value;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean isTuple(String input) {
+        return input.startsWith(BGN_TUPLE) && input.endsWith(END_TUPLE);
+    }
+
     private boolean inputIsValid(String[] input) {
         if (input.length < 2 
             ||
             !input[1].substring(0,1).equals(BGN_TUPLE) 
             || 
             !input[1].endsWith(END_TUPLE)
-            || 
-            input.length == 3
-            ||
-            input.length == 4
-            ||
-            input.length > 5
             ) {
             return false;
         }
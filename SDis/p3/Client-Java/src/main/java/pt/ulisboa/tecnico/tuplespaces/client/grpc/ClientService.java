@@ -4,16 +4,42 @@ package pt.ulisboa.tecnico.tuplespaces.client.grpc;
 import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesGrpc;
 import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
 
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.Metadata;
 import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
 
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+
+/**
+ * the ClientService class is the client library of the tuple spaces: every request/response operation is sent with the
+ * async stub and returns a CompletableFuture right away, so a single thread can have many requests in flight, all
+ * pipelined over the same channel
+ *
+ * a future completes with the result, or exceptionally with the StatusRuntimeException of the call; it completes on a
+ * gRPC thread, so whatever is chained to it should not block
+ *
+ * with a window (maxInFlight > 0), a request waits for one of the requests in flight to complete before it is sent,
+ * so a fast producer is held back instead of piling up requests the servers can't keep up with
+ *
+ * the takes (take and takeMany) are the exception to the pipelining: they are sent one at a time, each after the previous
+ * one completed; the replicas lock tuples on behalf of the client ID, and release every lock of that ID once a take
+ * ends, so two takes of the same client in flight at once would free or steal each other's locks
+ *
+ * the streams (streamTupleSpacesState and watch) stay blocking, their flow control follows the consumer
+ */
 public class ClientService {
 
     private final boolean DEBUG;
@@ -21,9 +47,19 @@ public class ClientService {
     private final String host_port;
     private final ManagedChannel channel;
     private final TupleSpacesGrpc.TupleSpacesBlockingStub stub;
+    private final TupleSpacesGrpc.TupleSpacesStub asyncStub;
+    private final Semaphore window;                     // one permit per request that may be in flight, null for no limit
+    private final AtomicReference<CompletableFuture<?>> lastTake = new AtomicReference<CompletableFuture<?>>(CompletableFuture.completedFuture(null));   // the next take is sent when it completes
     private final Metadata.Key<String> CUSTOM_HEADER_KEY = Metadata.Key.of("delay", Metadata.ASCII_STRING_MARSHALLER);
 
     public ClientService(String host_port, int client_id, boolean debug) {
+        this(host_port, client_id, debug, 0);
+    }
+
+    /**
+     * @param maxInFlight the most requests in flight at once, 0 for no limit
+     */
+    public ClientService(String host_port, int client_id, boolean debug, int maxInFlight) {
         this.DEBUG = debug;
         this.client_id = client_id;
         this.host_port = host_port;
@@ -33,14 +69,19 @@ public class ClientService {
                                     .build();           // channel is the abstraction to connect to a service endpoint
         this.stub =
             TupleSpacesGrpc.newBlockingStub(channel);   // stub is the client side representation of the service
-                                                        // we use a blocking stub, which waits synchronously for the response
+                                                        // the blocking stub is used for the streams, which the caller consumes at its own pace
+        this.asyncStub =
+            TupleSpacesGrpc.newStub(channel);           // the async stub is used for everything else
+        this.window = (maxInFlight > 0) ? new Semaphore(maxInFlight) : null;
     }
 
     /**
      * sends a PUT request to the server
      * @param tuple the tuple to put in the tuple space
+     * @param delay the delay of each server, in seconds, or null
+     * @return the answer of the server (OK)
      */
-    public void requestPut(String tuple, int[] delay) {
+    public CompletableFuture<String> put(String tuple, int[] delay) {
         TupleSpacesOuterClass.PutRequest request =
             TupleSpacesOuterClass.PutRequest
                                 .newBuilder()
@@ -51,37 +92,16 @@ public class ClientService {
             System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending PUT request... tuple:" + tuple);
         }
 
-        try {
-            TupleSpacesOuterClass.PutResponse response;
-
-            if (delay != null) {
-                String delayMetadata = delaysInString(delay);
-
-                Metadata metadata = new Metadata();
-                metadata.put(CUSTOM_HEADER_KEY, delayMetadata);
-
-                response = stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).put(request); // send the request with metadata to the server and get the response from it
-            }
-            else {
-                response = stub.put(request);                                                                       // send the request to the server and get the response from it
-            }
-
-            String result = response.getOk();
-            System.out.println(result + "\n");
-        }
-        catch (StatusRuntimeException e) {
-            if (this.DEBUG) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " PUT request \u001B[31merror\u001B[0m: " + e.getMessage());
-            }
-        }
+        return send("PUT", delay, (stub, observer) -> stub.put(request, observer), TupleSpacesOuterClass.PutResponse::getOk);
     }
 
     /**
      * sends a READ request to the server
      * @param pattern the pattern to search for in the tuple space
+     * @param delay the delay of each server, in seconds, or null
      * @return the tuple that matches the pattern
      */
-    public String requestRead(String pattern, int[] delay) {
+    public CompletableFuture<String> read(String pattern, int[] delay) {
         TupleSpacesOuterClass.ReadRequest request =
             TupleSpacesOuterClass.ReadRequest.newBuilder()
                                 .setSearchPattern(pattern)
@@ -91,38 +111,16 @@ public class ClientService {
             System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending READ request... pattern: " + pattern);
         }
 
-        try {
-            TupleSpacesOuterClass.ReadResponse response;
-
-            if (delay != null) {
-                String delayMetadata = delaysInString(delay);
-
-                Metadata metadata = new Metadata();
-                metadata.put(CUSTOM_HEADER_KEY, delayMetadata);
-
-                response = stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).read(request); // send the request with metadata to the server and get the response from it
-            }
-            else {
-                response = stub.read(request);                                                                       // send the request to the server and get the response from it
-            }
-
-            System.out.println("OK");
-            return response.getResult();
-        }
-        catch (StatusRuntimeException e) {
-            if (this.DEBUG) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " READ request \u001B[31merror\u001B[0m: " + e.getMessage());
-            }
-            return null;
-        }
+        return send("READ", delay, (stub, observer) -> stub.read(request, observer), TupleSpacesOuterClass.ReadResponse::getResult);
     }
 
     /**
-     * sends a TAKE request to the server
+     * sends a TAKE request to the server, once the previous take of this client completed
      * @param pattern the pattern to search for in the tuple space
+     * @param delay the delay of each server, in seconds, or null
      * @return the tuple that matches the pattern
      */
-    public String requestTake(String pattern, int[] delay) {
+    public CompletableFuture<String> take(String pattern, int[] delay) {
         TupleSpacesOuterClass.TakeRequest request = 
             TupleSpacesOuterClass.TakeRequest
                                 .newBuilder()
@@ -134,37 +132,88 @@ public class ClientService {
             System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending TAKE request... pattern: " + pattern);
         }
 
-        try {
-            TupleSpacesOuterClass.TakeResponse response;
+        return sendTake("TAKE", delay, (stub, observer) -> stub.take(request, observer), TupleSpacesOuterClass.TakeResponse::getResult);
+    }
+
+    /**
+     * sends a PUT-ALL request to the server, the whole batch in a single request
+     * @param tuples the tuples to put in the tuple space
+     * @return the answer of the server (OK)
+     */
+    public CompletableFuture<String> putAll(List<String> tuples) {
+        TupleSpacesOuterClass.PutAllRequest request =
+            TupleSpacesOuterClass.PutAllRequest
+                                .newBuilder()
+                                .addAllNewTuple(tuples)
+                                .build();               // construct a new Protobuffer object to send as request to the server
 
-            if (delay != null) {
-                String delayMetadata = delaysInString(delay);
+        if (this.DEBUG) {
+            System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending PUT-ALL request... tuples:" + tuples);
+        }
 
-                Metadata metadata = new Metadata();
-                metadata.put(CUSTOM_HEADER_KEY, delayMetadata);
+        return send("PUT-ALL", null, (stub, observer) -> stub.putAll(request, observer), TupleSpacesOuterClass.PutAllResponse::getOk);
+    }
 
-                response = stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).take(request); // send the request with metadata to the server and get the response from it
-            }
-            else {
-                response = stub.take(request);                                                                       // send the request to the server and get the response from it
-            }
+    /**
+     * sends a READ-ALL request to the server
+     * @param pattern the pattern to search for in the tuple space
+     * @param limit the maximum number of tuples to read, 0 for no limit
+     * @return the tuples that match the pattern
+     */
+    public CompletableFuture<List<String>> readAll(String pattern, int limit) {
+        TupleSpacesOuterClass.ReadAllRequest request =
+            TupleSpacesOuterClass.ReadAllRequest.newBuilder()
+                                .setSearchPattern(pattern)
+                                .setLimit(limit)
+                                .build();               // construct a new Protobuffer object to send as request to the server
 
-            System.out.println("OK");
-            return response.getResult();
+        if (this.DEBUG) {
+            System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending READ-ALL request... pattern: " + pattern + " limit: " + limit);
         }
-        catch (StatusRuntimeException e) {
-            if (this.DEBUG) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " TAKE request \u001B[31merror\u001B[0m: " + e.getMessage());
-            }
-            return null;
+
+        return send("READ-ALL", null, (stub, observer) -> stub.readAll(request, observer), TupleSpacesOuterClass.ReadAllResponse::getResultList);
+    }
+
+    /**
+     * sends a TAKE-MANY request to the server, once the previous take of this client completed
+     * @param pattern the pattern to search for in the tuple space
+     * @param n the maximum number of tuples to take
+     * @return the tuples taken, at least one
+     */
+    public CompletableFuture<List<String>> takeMany(String pattern, int n) {
+        TupleSpacesOuterClass.TakeManyRequest request =
+            TupleSpacesOuterClass.TakeManyRequest
+                                .newBuilder()
+                                .setClientId(client_id)
+                                .setSearchPattern(pattern)
+                                .setN(n)
+                                .build();               // construct a new Protobuffer object to send as request to the server
+
+        if (this.DEBUG) {
+            System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending TAKE-MANY request... pattern: " + pattern + " n: " + n);
+        }
+
+        return sendTake("TAKE-MANY", null, (stub, observer) -> stub.takeMany(request, observer), TupleSpacesOuterClass.TakeManyResponse::getResultList);
+    }
+
+    /**
+     * sends a GET-STATS request to the frontend
+     * @return the metrics of the frontend, with the ones of every server
+     */
+    public CompletableFuture<TupleSpacesOuterClass.GetStatsResponse> getStats() {
+        if (this.DEBUG) {
+            System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending GET-STATS request...");
         }
+
+        TupleSpacesOuterClass.GetStatsRequest request = TupleSpacesOuterClass.GetStatsRequest.newBuilder().build();
+        return send("GET-STATS", null, (stub, observer) -> stub.getStats(request, observer), Function.identity());
     }
 
     /**
      * sends a GET-TUPLE-SPACES-STATE request to the server
      * @return the state of the tuple spaces
      */
-    public List<String> requestGetTupleSpacesState() {
+    public CompletableFuture<List<String>> getTupleSpacesState() {
         TupleSpacesOuterClass.getTupleSpacesStateRequest request =
             TupleSpacesOuterClass.getTupleSpacesStateRequest
                                 .newBuilder()
@@ -174,26 +223,205 @@ public class ClientService {
             System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending GET-TUPLE-SPACES-STATE request...");
         }
 
+        return send("GET-TUPLE-SPACES-STATE", null, (stub, observer) -> stub.getTupleSpacesState(request, observer),
+                    TupleSpacesOuterClass.getTupleSpacesStateResponse::getTupleList);
+    }
+
+    /**
+     * sends a request with the async stub, once the window lets it
+     *
+     * @param requestType the name of the request, for the debug messages
+     * @param delay the delay of each server, in seconds, sent in the metadata; or null
+     * @param call sends the request on the given stub, the responses going to the given observer
+     * @param result gets the result out of the response
+     * @return the result, or the StatusRuntimeException of the call
+     */
+    private <Response, Result> CompletableFuture<Result> send(String requestType, int[] delay,
+                                                              BiConsumer<TupleSpacesGrpc.TupleSpacesStub, StreamObserver<Response>> call,
+                                                              Function<Response, Result> result) {
+        CompletableFuture<Result> future = new CompletableFuture<Result>();
+
+        if (acquire(future)) { dispatch(requestType, delay, call, result, future); }
+        return future;
+    }
+
+    /**
+     * sends a take with the async stub, once the window lets it and the previous take completed (see the class comment)
+     * the window is waited for by the caller, the take is then sent by the thread that completes the previous one
+     *
+     * @return the result, or the StatusRuntimeException of the call
+     */
+    private <Response, Result> CompletableFuture<Result> sendTake(String requestType, int[] delay,
+                                                                  BiConsumer<TupleSpacesGrpc.TupleSpacesStub, StreamObserver<Response>> call,
+                                                                  Function<Response, Result> result) {
+        CompletableFuture<Result> future = new CompletableFuture<Result>();
+        if (!acquire(future)) { return future; }
+
+        CompletableFuture<?> previous = this.lastTake.getAndSet(future);
+        previous.whenComplete((r, e) -> dispatch(requestType, delay, call, result, future));     // whether it succeeded or not
+        return future;
+    }
+
+    /**
+     * takes a permit of the window, if there is one
+     *
+     * @param future completed with CANCELLED if the caller is interrupted while waiting
+     * @return whether the request may be sent
+     */
+    private boolean acquire(CompletableFuture<?> future) {
+        if (this.window == null) { return true; }
+
+        try {
+            this.window.acquire();                      // back-pressure: the caller waits here while the window is full
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(Status.CANCELLED.withDescription("Interrupted waiting to send the request").asRuntimeException());
+            return false;
+        }
+    }
+
+    /**
+     * sends a request that already holds its permit of the window
+     */
+    private <Response, Result> void dispatch(String requestType, int[] delay,
+                                             BiConsumer<TupleSpacesGrpc.TupleSpacesStub, StreamObserver<Response>> call,
+                                             Function<Response, Result> result, CompletableFuture<Result> future) {
+        TupleSpacesGrpc.TupleSpacesStub stub = this.asyncStub;
+        if (delay != null) {
+            Metadata metadata = new Metadata();
+            metadata.put(CUSTOM_HEADER_KEY, delaysInString(delay));
+            stub = stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata));  // send the request with metadata to the server
+        }
+
+        call.accept(stub, new StreamObserver<Response>() {
+            private Response response;
+
+            @Override
+            public void onNext(Response response) { this.response = response; }
+
+            @Override
+            public void onError(Throwable t) {
+                release();
+                if (DEBUG) {
+                    System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " " + requestType + " request \u001B[31merror\u001B[0m: " + t.getMessage());
+                }
+                future.completeExceptionally((t instanceof StatusRuntimeException) ? t : Status.fromThrowable(t).asRuntimeException());
+            }
+
+            @Override
+            public void onCompleted() {
+                release();
+                // a call that ends without its response still completes the future, or whoever waits on it hangs
+                if (this.response == null) {
+                    future.completeExceptionally(Status.INTERNAL.withDescription(requestType + " completed without a response").asRuntimeException());
+                    return;
+                }
+                try {
+                    future.complete(result.apply(this.response));
+                }
+                catch (RuntimeException e) {
+                    future.completeExceptionally(Status.INTERNAL.withDescription("Invalid " + requestType + " response: " + e.getMessage()).withCause(e).asRuntimeException());
+                }
+            }
+        });
+    }
+
+    private void release() {
+        if (this.window != null) { this.window.release(); }
+    }
+
+    /**
+     * sends a streamed GET-TUPLE-SPACES-STATE request to the server
+     * the chunks are handed over as they arrive, so the whole state is never held at once
+     *
+     * @param pattern only the tuples that match it, every tuple if empty
+     * @param chunkSize the number of tuples per chunk, the default of the servers if 0
+     * @param started called once the request is sent, before the first chunk
+     * @param consumer receives the server and the tuples of each chunk
+     * @return the number of tuples received, or -1 if the request failed
+     */
+    public long requestStreamTupleSpacesState(String pattern, int chunkSize, Runnable started, BiConsumer<Integer, List<String>> consumer) {
+        TupleSpacesOuterClass.StreamTupleSpacesStateRequest request =
+            TupleSpacesOuterClass.StreamTupleSpacesStateRequest
+                                .newBuilder()
+                                .setSearchPattern(pattern)
+                                .setChunkSize(chunkSize)
+                                .build();   // construct a new Protobuffer object to send as request to the server
+
+        if (this.DEBUG) {
+            System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending STREAM-TUPLE-SPACES-STATE request... pattern: " + pattern);
+        }
+
+        long received = 0;
         try {
-            TupleSpacesOuterClass.getTupleSpacesStateResponse response = stub.getTupleSpacesState(request); // send the request to the server and get the response from it
-            System.out.println("OK");
-            
-            int i = 0;
-            int tupleSpacesStateCount = response.getTupleCount();
-            List<String> tupleSpacesState = new ArrayList<>();
-
-            while (i < tupleSpacesStateCount) {
-                tupleSpacesState.add(response.getTuple(i)); 
-                i++;
+            Iterator<TupleSpacesOuterClass.TupleSpacesStateChunk> chunks = stub.streamTupleSpacesState(request);   // the next chunk is only asked for when the previous one was consumed
+            started.run();
+
+            while (chunks.hasNext()) {
+                TupleSpacesOuterClass.TupleSpacesStateChunk chunk = chunks.next();
+                received += chunk.getTupleCount();
+                consumer.accept(chunk.getServer(), chunk.getTupleList());
             }
 
-            return tupleSpacesState;
+            return received;
         }
         catch (StatusRuntimeException e) {
             if (this.DEBUG) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " GET-TUPLE-SPACES-STATE request \u001B[31merror\u001B[0m: " + e.getMessage());
+                System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " STREAM-TUPLE-SPACES-STATE request \u001B[31merror\u001B[0m: " + e.getMessage());
             }
-            return null;
+            return -1;
+        }
+    }
+
+    /**
+     * sends a WATCH request to the server and hands over the tuples put from then on that match the pattern,
+     * until n tuples were received; the call is then cancelled
+     *
+     * @param pattern the pattern to match
+     * @param n the number of tuples to wait for
+     * @param started called once the request is sent, before the first tuple
+     * @param consumer receives each tuple
+     * @return the number of tuples the servers reported as missed because the client was too slow, or -1 if the request failed
+     */
+    public long requestWatch(String pattern, int n, Runnable started, Consumer<String> consumer) {
+        TupleSpacesOuterClass.WatchRequest request =
+            TupleSpacesOuterClass.WatchRequest
+                                .newBuilder()
+                                .setSearchPattern(pattern)
+                                .build();   // construct a new Protobuffer object to send as request to the server
+
+        if (this.DEBUG) {
+            System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " sending WATCH request... pattern: " + pattern + " n: " + n);
+        }
+
+        Context.CancellableContext context = Context.current().withCancellation();    // the stream never ends by itself
+        try {
+            return context.call(() -> {
+                Iterator<TupleSpacesOuterClass.WatchEvent> events = stub.watch(request);
+                started.run();
+
+                long missed = 0;
+                for (int i = 0; i < n && events.hasNext(); i++) {
+                    TupleSpacesOuterClass.WatchEvent event = events.next();
+                    missed += event.getMissed();
+                    consumer.accept(event.getTuple());
+                }
+                return missed;
+            });
+        }
+        catch (StatusRuntimeException e) {
+            if (this.DEBUG) {
+                System.err.println("[\u001B[34mDEBUG\u001B[0m] Client " + client_id + " WATCH request \u001B[31merror\u001B[0m: " + e.getMessage());
+            }
+            return -1;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            context.cancel(null);
         }
     }
 
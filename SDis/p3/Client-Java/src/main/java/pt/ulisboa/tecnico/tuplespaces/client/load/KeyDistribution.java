@@ -0,0 +1,66 @@
+package pt.ulisboa.tecnico.tuplespaces.client.load;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * KeyDistribution picks the key of each request of the load generator, which sets how much the clients contend
+ *
+ * uniform      every key equally likely: with many keys, the clients rarely touch the same tuples
+ * zipf:<s>     key i with probability proportional to 1/(i+1)^s: the higher s, the more the clients pile on the first keys
+ */
+public class KeyDistribution {
+
+    public static final String USAGE = "uniform | zipf:<s>";
+
+    private final int keys;
+    private final double[] cdf;         // null for uniform, cdf[i] = probability of a key <= i
+
+
+    private KeyDistribution(int keys, double[] cdf) {
+        this.keys = keys;
+        this.cdf = cdf;
+    }
+
+    /**
+     * @param spec the distribution, see USAGE
+     * @param keys the number of keys
+     * @return the distribution
+     * @throws IllegalArgumentException if the distribution is not valid
+     */
+    public static KeyDistribution parse(String spec, int keys) {
+        if (keys <= 0) { throw new IllegalArgumentException("Invalid number of keys: " + keys); }
+
+        if (spec.equals("uniform")) { return new KeyDistribution(keys, null); }
+
+        if (spec.startsWith("zipf:")) {
+            double s;
+            try {
+                s = Double.parseDouble(spec.substring("zipf:".length()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid key distribution: " + spec + " (" + USAGE + ")");
+            }
+            if (s < 0) { throw new IllegalArgumentException("Invalid key distribution: " + spec + " (" + USAGE + ")"); }
+
+            double[] cdf = new double[keys];
+            double total = 0;
+            for (int i = 0; i < keys; i++) {
+                total += 1 / Math.pow(i + 1, s);
+                cdf[i] = total;
+            }
+            for (int i = 0; i < keys; i++) { cdf[i] /= total; }
+            return new KeyDistribution(keys, cdf);
+        }
+
+        throw new IllegalArgumentException("Invalid key distribution: " + spec + " (" + USAGE + ")");
+    }
+
+    public int next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (this.cdf == null) { return random.nextInt(this.keys); }
+
+        int i = Arrays.binarySearch(this.cdf, random.nextDouble());
+        return Math.min((i >= 0) ? i : -i - 1, this.keys - 1);
+    }
+}
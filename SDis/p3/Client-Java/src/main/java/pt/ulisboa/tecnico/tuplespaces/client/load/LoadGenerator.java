@@ -0,0 +1,409 @@
+package pt.ulisboa.tecnico.tuplespaces.client.load;
+
+import pt.ulisboa.tecnico.tuplespaces.common.Histogram;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesGrpc;
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Arrays;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * LoadGenerator drives the frontend with many virtual clients at once, to size the frontend and the replicas
+ *
+ * the virtual clients are not threads: every request is sent with the async stub and the next one is sent from its
+ * callback, so a single process keeps thousands of clients busy
+ *
+ * closed loop (default)    each client sends its next request as soon as the previous one is answered
+ * open loop (-rate=)       requests are due at a fixed rate, whether or not the system keeps up; a due request waits
+ *                          for a free client (a client never has two requests in flight, as a TAKE holds locks in its name)
+ *                          and its latency counts from when it was due, so a slow system can't hide its queueing
+ *
+ * every request of a client is a PUT, READ or TAKE (-mix=) on a key (-keys=, -keyDist=) with an exact, prefix or
+ * wildcard pattern (-patterns=); fewer keys, or a skewed distribution, means more clients contending for the same tuples
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "<host:port> [-clients=<n>] [-duration=<seconds>] [-warmup=<seconds>] [-rate=<ops/s>] "
+                                      + "[-mix=put:<w>,read:<w>,take:<w>] [-patterns=exact:<w>,prefix:<w>,wildcard:<w>] "
+                                      + "[-keys=<n>] [-keyDist=<" + KeyDistribution.USAGE + ">] [-prefill=<tuples>] [-deadline=<ms>] [-firstClient=<id>]";
+
+    private static final String[] OPERATIONS = { "put", "read", "take" };
+    private static final String[] PATTERN_KINDS = { "exact", "prefix", "wildcard" };
+    private static final int PUT = 0;
+    private static final int READ = 1;
+
+    private final TupleSpacesGrpc.TupleSpacesStub stub;
+    private final int[] mix;                                // cumulative weights of PUT, READ and TAKE
+    private final int[] patterns;                           // cumulative weights of the exact, prefix and wildcard patterns
+    private final KeyDistribution keys;
+    private final long deadlineMillis;                      // requests not answered by then count as timeouts
+    private final double rate;                              // requests per second, 0 for a closed loop
+
+    private final Histogram[] latency = { new Histogram(), new Histogram(), new Histogram() };   // nanoseconds, per operation
+    private final AtomicLong[] errors = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+    private final AtomicLong[] timeouts = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+    private final AtomicLong completed = new AtomicLong();  // every request answered, warm-up included, for the progress lines
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<Integer> idle = new ConcurrentLinkedQueue<Integer>();  // open loop: clients without a request in flight
+    private final ConcurrentLinkedQueue<Long> backlog = new ConcurrentLinkedQueue<Long>();     // open loop: when each request waiting for a client was due
+    private final AtomicInteger backlogSize = new AtomicInteger();
+    private final AtomicInteger maxBacklog = new AtomicInteger();
+
+    private volatile boolean stopped;
+    private volatile long measureFrom;                      // requests due in [measureFrom, measureUntil) are counted
+    private volatile long measureUntil;
+
+
+    public LoadGenerator(TupleSpacesGrpc.TupleSpacesStub stub, int[] mix, int[] patterns, KeyDistribution keys, long deadlineMillis, double rate) {
+        this.stub = stub;
+        this.mix = mix;
+        this.patterns = patterns;
+        this.keys = keys;
+        this.deadlineMillis = deadlineMillis;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+
+        System.out.println(LoadGenerator.class.getSimpleName());
+
+        if (args.length < 1) {
+            System.err.println("Invalid number of arguments");
+            System.err.printf("Usage: java %s %s%n", LoadGenerator.class.getName(), USAGE);
+            return;
+        }
+
+        int clients = 100;
+        int duration = 30;
+        int warmup = 5;
+        double rate = 0;                        // closed loop
+        String mix = "put:40,read:40,take:20";
+        String patterns = "exact:100";
+        int keys = 1000;
+        String keyDist = "uniform";
+        int prefill = 0;
+        long deadline = 10000;
+        int firstClient = 1000;                 // clear of the ids of the interactive clients
+
+        final int[] operationWeights;
+        final int[] patternWeights;
+        final KeyDistribution distribution;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith("-clients=")) { clients = Integer.parseInt(args[i].substring("-clients=".length())); }
+                else if (args[i].startsWith("-duration=")) { duration = Integer.parseInt(args[i].substring("-duration=".length())); }
+                else if (args[i].startsWith("-warmup=")) { warmup = Integer.parseInt(args[i].substring("-warmup=".length())); }
+                else if (args[i].startsWith("-rate=")) { rate = Double.parseDouble(args[i].substring("-rate=".length())); }
+                else if (args[i].startsWith("-mix=")) { mix = args[i].substring("-mix=".length()); }
+                else if (args[i].startsWith("-patterns=")) { patterns = args[i].substring("-patterns=".length()); }
+                else if (args[i].startsWith("-keys=")) { keys = Integer.parseInt(args[i].substring("-keys=".length())); }
+                else if (args[i].startsWith("-keyDist=")) { keyDist = args[i].substring("-keyDist=".length()); }
+                else if (args[i].startsWith("-prefill=")) { prefill = Integer.parseInt(args[i].substring("-prefill=".length())); }
+                else if (args[i].startsWith("-deadline=")) { deadline = Long.parseLong(args[i].substring("-deadline=".length())); }
+                else if (args[i].startsWith("-firstClient=")) { firstClient = Integer.parseInt(args[i].substring("-firstClient=".length())); }
+                else { throw new IllegalArgumentException("Invalid argument: " + args[i]); }
+            }
+
+            if (clients <= 0 || duration <= 0 || warmup < 0 || rate < 0 || prefill < 0 || deadline <= 0) {
+                throw new IllegalArgumentException("-clients, -duration and -deadline must be positive, -warmup, -rate and -prefill not negative");
+            }
+
+            distribution = KeyDistribution.parse(keyDist, keys);
+            operationWeights = weights(mix, OPERATIONS);
+            patternWeights = weights(patterns, PATTERN_KINDS);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.printf("Usage: java %s %s%n", LoadGenerator.class.getName(), USAGE);
+            return;
+        }
+
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(args[0])
+                                                      .usePlaintext()
+                                                      .build();
+        try {
+            if (prefill > 0) {
+                prefill(TupleSpacesGrpc.newBlockingStub(channel), prefill, keys);
+            }
+
+            System.out.printf("%s, %d clients, %d keys (%s), mix %s, patterns %s, %ds + %ds warm-up%n",
+                              (rate > 0) ? "open loop at " + rate + " ops/s" : "closed loop", clients, keys, keyDist, mix, patterns, duration, warmup);
+
+            new LoadGenerator(TupleSpacesGrpc.newStub(channel), operationWeights, patternWeights, distribution, deadline, rate)
+                .run(clients, firstClient, warmup, duration);
+        } catch (StatusRuntimeException e) {
+            System.err.println("Could not prefill the tuple space: " + e.getStatus());
+        } finally {
+            channel.shutdownNow();
+        }
+    }
+
+    /**
+     * puts `tuples` tuples in the tuple space before the run, spread over the keys, so the first READs and TAKEs find them
+     */
+    private static void prefill(TupleSpacesGrpc.TupleSpacesBlockingStub stub, int tuples, int keys) {
+        TupleSpacesOuterClass.PutAllRequest.Builder batch = TupleSpacesOuterClass.PutAllRequest.newBuilder();
+
+        for (int i = 0; i < tuples; i++) {
+            batch.addNewTuple(tuple(i % keys));
+            if (batch.getNewTupleCount() == 1000 || i == tuples - 1) {
+                stub.putAll(batch.build());
+                batch.clear();
+            }
+        }
+        System.out.printf("Prefilled %d tuples%n", tuples);
+    }
+
+    /**
+     * runs the load and prints the throughput and the latencies of each operation
+     *
+     * @param clients the number of virtual clients
+     * @param firstClient the id of the first client, the others follow
+     * @param warmup seconds before the measurements start
+     * @param duration seconds measured
+     */
+    public void run(int clients, int firstClient, int warmup, int duration) throws InterruptedException {
+        long start = System.nanoTime();
+        this.measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        this.measureUntil = this.measureFrom + TimeUnit.SECONDS.toNanos(duration);
+
+        if (this.rate > 0) {
+            for (int c = 0; c < clients; c++) { this.idle.add(firstClient + c); }
+            openLoop(start);
+        }
+        else {
+            for (int c = 0; c < clients; c++) { issue(firstClient + c, System.nanoTime()); }
+            closedLoop(start);
+        }
+
+        this.stopped = true;
+
+        // the requests still in flight are counted too, or the slowest ones would be left out
+        long giveUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.deadlineMillis + 1000);
+        while (this.inFlight.get() > 0 && System.nanoTime() < giveUp) { Thread.sleep(10); }
+
+        report(duration);
+    }
+
+    private void closedLoop(long start) throws InterruptedException {
+        long nextLine = start + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < this.measureUntil) {
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(nextLine, this.measureUntil) - System.nanoTime())));
+            if (System.nanoTime() >= nextLine) { nextLine = progress(start, nextLine); }
+        }
+    }
+
+    private void openLoop(long start) {
+        double interval = 1e9 / this.rate;
+        long due = 0;                                       // requests released so far
+        long nextLine = start + TimeUnit.SECONDS.toNanos(1);
+
+        while (true) {
+            long next = start + (long) (due * interval);
+            if (next >= this.measureUntil) { return; }
+
+            long wait = next - System.nanoTime();
+            if (wait > 0) { LockSupport.parkNanos(Math.min(wait, nextLine - System.nanoTime())); }
+
+            long now = System.nanoTime();
+            for (next = start + (long) (due * interval); next <= now && next < this.measureUntil; next = start + (long) (++due * interval)) {
+                this.backlog.add(next);
+                this.maxBacklog.accumulateAndGet(this.backlogSize.incrementAndGet(), Math::max);
+            }
+            drain();
+
+            if (now >= nextLine) { nextLine = progress(start, nextLine); }
+        }
+    }
+
+    /**
+     * prints a progress line, once a second
+     * @return when the next line is due
+     */
+    private long progress(long start, long line) {
+        long answered = this.completed.getAndSet(0);
+        System.out.printf("%4ds %10d ops/s   in flight %-6d backlog %-6d%s%n", TimeUnit.NANOSECONDS.toSeconds(line - start), answered,
+                          this.inFlight.get(), this.backlogSize.get(), (line <= this.measureFrom) ? "   (warm-up)" : "");
+        return line + TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * open loop: hands the requests that are due to the free clients
+     * called whenever a request becomes due or a client becomes free, so neither waits while the other is available
+     */
+    private void drain() {
+        while (!this.backlog.isEmpty()) {
+            Integer client = this.idle.poll();
+            if (client == null) { return; }
+
+            Long due = this.backlog.poll();
+            if (due == null) {                              // taken by another thread meanwhile
+                this.idle.add(client);
+                continue;
+            }
+            this.backlogSize.decrementAndGet();
+            issue(client, due);
+        }
+    }
+
+    /**
+     * sends the next request of a client
+     *
+     * @param client the client
+     * @param due when the request was due, its latency counts from there
+     */
+    private void issue(int client, long due) {
+        int operation = choose(this.mix);
+        int key = this.keys.next();
+        TupleSpacesGrpc.TupleSpacesStub stub = this.stub.withDeadlineAfter(this.deadlineMillis, TimeUnit.MILLISECONDS);
+
+        this.inFlight.incrementAndGet();
+
+        if (operation == PUT) {
+            stub.put(TupleSpacesOuterClass.PutRequest.newBuilder().setNewTuple(tuple(key)).build(),
+                     new Completion<TupleSpacesOuterClass.PutResponse>(client, operation, due));
+        }
+        else if (operation == READ) {
+            stub.read(TupleSpacesOuterClass.ReadRequest.newBuilder().setSearchPattern(pattern(key)).build(),
+                      new Completion<TupleSpacesOuterClass.ReadResponse>(client, operation, due));
+        }
+        else {
+            stub.take(TupleSpacesOuterClass.TakeRequest.newBuilder().setClientId(client).setSearchPattern(pattern(key)).build(),
+                      new Completion<TupleSpacesOuterClass.TakeResponse>(client, operation, due));
+        }
+    }
+
+    /**
+     * records the outcome of a request and gives the client its next one
+     */
+    private class Completion<T> implements StreamObserver<T> {
+        private final int client;
+        private final int operation;
+        private final long due;
+
+        Completion(int client, int operation, long due) {
+            this.client = client;
+            this.operation = operation;
+            this.due = due;
+        }
+
+        @Override
+        public void onNext(T response) { }
+
+        @Override
+        public void onError(Throwable t) { finished(Status.fromThrowable(t)); }
+
+        @Override
+        public void onCompleted() { finished(null); }
+
+        private void finished(Status failure) {
+            long now = System.nanoTime();
+
+            if (this.due >= measureFrom && this.due < measureUntil) {
+                if (failure == null) { latency[this.operation].record(now - this.due); }
+                else if (failure.getCode() == Status.Code.DEADLINE_EXCEEDED) { timeouts[this.operation].incrementAndGet(); }
+                else { errors[this.operation].incrementAndGet(); }
+            }
+            completed.incrementAndGet();
+            inFlight.decrementAndGet();
+
+            if (stopped) { return; }
+            if (rate > 0) {
+                idle.add(this.client);
+                drain();
+            }
+            else {
+                issue(this.client, now);
+            }
+        }
+    }
+
+    private void report(int duration) {
+        System.out.printf("%nlatencies in ms, counted from when each request was due%n");
+        System.out.printf("%-6s %10s %8s %9s %10s %9s %9s %9s %9s %9s %9s%n", "op", "ok", "errors", "timeouts", "ops/s", "mean", "p50", "p90", "p99", "p99.9", "max");
+
+        long total = 0;
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            Histogram h = this.latency[op];
+            long count = h.getCount();
+            total += count;
+            System.out.printf("%-6s %10d %8d %9d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", OPERATIONS[op], count, this.errors[op].get(), this.timeouts[op].get(),
+                              (double) count / duration, (count == 0) ? 0 : h.getSum() / 1e6 / count,
+                              h.getPercentile(0.5) / 1e6, h.getPercentile(0.9) / 1e6, h.getPercentile(0.99) / 1e6, h.getPercentile(0.999) / 1e6, h.getMax() / 1e6);
+        }
+        System.out.printf("%-6s %10d %8s %9s %10.1f%n", "total", total, "", "", (double) total / duration);
+
+        if (this.rate > 0) {
+            System.out.printf("%nmost requests waiting for a free client: %d%n", this.maxBacklog.get());
+        }
+        if (this.inFlight.get() > 0) {
+            System.out.printf("%d requests still unanswered after the deadline, not counted%n", this.inFlight.get());
+        }
+    }
+
+    private static String tuple(int key) {
+        return "<k" + key + ",v" + key + ">";
+    }
+
+    /**
+     * @return a pattern that matches the tuples of the key: the tuple itself, a regex with the same first field, or a regex
+     *         with any first field (which the replicas have to search for in every shard)
+     */
+    private String pattern(int key) {
+        switch (choose(this.patterns)) {
+            case 0:
+                return tuple(key);
+            case 1:
+                return "<k" + key + ",.*>";
+            default:
+                return "<.*,v" + key + ">";
+        }
+    }
+
+    /**
+     * @param spec the weights, e.g. put:40,read:40,take:20; the names left out weigh 0
+     * @param names the names, in order
+     * @return the cumulative weights, in the order of the names
+     * @throws IllegalArgumentException if the weights are not valid
+     */
+    private static int[] weights(String spec, String[] names) {
+        int[] weights = new int[names.length];
+
+        for (String part : spec.split(",")) {
+            String[] nameWeight = part.split(":");
+            int i = (nameWeight.length == 2) ? Arrays.asList(names).indexOf(nameWeight[0]) : -1;
+            if (i < 0) { throw new IllegalArgumentException("Invalid weights: " + spec + " (names: " + String.join(", ", names) + ")"); }
+
+            weights[i] = Integer.parseInt(nameWeight[1]);
+            if (weights[i] < 0) { throw new IllegalArgumentException("Invalid weights: " + spec); }
+        }
+
+        for (int i = 1; i < weights.length; i++) { weights[i] += weights[i - 1]; }
+        if (weights[weights.length - 1] == 0) { throw new IllegalArgumentException("Invalid weights: " + spec + ", they add up to 0"); }
+
+        return weights;
+    }
+
+    private static int choose(int[] cumulative) {
+        int r = ThreadLocalRandom.current().nextInt(cumulative[cumulative.length - 1]);
+
+        int i = 0;
+        while (r >= cumulative[i]) { i++; }
+        return i;
+    }
+}
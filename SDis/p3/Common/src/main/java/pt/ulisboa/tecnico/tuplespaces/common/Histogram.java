@@ -0,0 +1,100 @@
+package pt.ulisboa.tecnico.tuplespaces.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram counts values (latencies in nanoseconds, scan lengths, ...) in log-linear buckets:
+ * every power of two is split in 8 buckets, so a percentile is off by at most 12.5%
+ *
+ * recording a value doesn't allocate and doesn't take any lock (a few atomic increments), so it can be done on every
+ * request; reading the percentiles walks the 496 buckets and is meant for the occasional stats request or dump
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;                       // buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;       // enough for any non-negative long
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+
+    public Histogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * @param value the value, negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0) { value = 0; }
+
+        this.buckets.incrementAndGet(bucketOf(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+
+        long m;
+        while (value > (m = this.max.get()) && !this.max.compareAndSet(m, value)) { }
+    }
+
+    /**
+     * records the time elapsed since start
+     * @param startNanos a value of System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() { return count.get(); }
+
+    public long getSum() { return sum.get(); }
+
+    public long getMax() { return max.get(); }
+
+    /**
+     * @param q the quantile, between 0 and 1 (e.g. 0.99)
+     * @return the highest value of the bucket of the quantile, never above the maximum, 0 if nothing was recorded
+     */
+    public long getPercentile(double q) {
+        long[] counts = new long[BUCKETS];          // a copy, so the ranks add up even if values are recorded meanwhile
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) { return 0; }
+
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) { return Math.min(highestOf(i), getMax()); }
+        }
+        return getMax();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) { return (int) value; }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) { return bucket; }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    private static long highestOf(int bucket) {
+        return (bucket + 1 < BUCKETS) ? lowestOf(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+}
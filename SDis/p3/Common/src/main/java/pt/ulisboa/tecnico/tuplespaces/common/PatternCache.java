@@ -0,0 +1,97 @@
+package pt.ulisboa.tecnico.tuplespaces.common;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+
+/**
+ * PatternCache keeps the compiled regular expressions of the search patterns
+ * clients reuse a small set of patterns over and over, so compiling them on every READ/TAKE/LOCK is wasted work
+ *
+ * every READ/TAKE/LOCK of every shard goes through the cache, so a lookup takes no lock: the cache is a concurrent map,
+ * and the counters are adders. it is bounded only approximately: when it grows past its capacity, the thread that
+ * added the pattern evicts some entries (in the order of the map, not the least recently used), and a few concurrent
+ * misses may go past the capacity for a moment
+ */
+public class PatternCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final ConcurrentMap<String, Pattern> cache;     // pattern string -> compiled pattern
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+
+    public PatternCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PatternCache(int capacity) {
+        this.capacity = capacity;
+        this.cache = new ConcurrentHashMap<String, Pattern>();
+    }
+
+    /**
+     * returns the compiled version of a pattern, compiling it only if it is not in the cache
+     * two threads that miss the same pattern at once may both compile it, only one of them is kept
+     *
+     * @param pattern the pattern to compile
+     * @return the compiled pattern
+     */
+    public Pattern get(String pattern) {
+        Pattern compiled = this.cache.get(pattern);
+
+        if (compiled != null) {
+            this.hits.increment();
+            return compiled;
+        }
+
+        this.misses.increment();
+        compiled = Pattern.compile(pattern);
+        Pattern previous = this.cache.putIfAbsent(pattern, compiled);
+        if (previous != null) { return previous; }
+
+        if (this.cache.size() > this.capacity) { evict(); }
+
+        return compiled;
+    }
+
+    /**
+     * removes entries until the cache is back under its capacity; a quarter of it goes at once, so a long run of
+     * distinct patterns does not evict on every miss
+     */
+    private void evict() {
+        int target = this.capacity - this.capacity / 4;
+        Iterator<String> it = this.cache.keySet().iterator();
+        while (it.hasNext() && this.cache.size() > target) {
+            it.next();
+            it.remove();
+            this.evictions.increment();
+        }
+    }
+
+    /**
+     * @return true if the tuple matches the pattern
+     */
+    public boolean matches(String pattern, String tuple) {
+        return get(pattern).matcher(tuple).matches();
+    }
+
+    public long getHits() { return hits.sum(); }
+
+    public long getMisses() { return misses.sum(); }
+
+    public long getEvictions() { return evictions.sum(); }
+
+    public int size() { return cache.size(); }
+
+    @Override
+    public String toString() {
+        return String.format("(size=%d, hits=%d, misses=%d, evictions=%d)", cache.size(), hits.sum(), misses.sum(), evictions.sum());
+    }
+}
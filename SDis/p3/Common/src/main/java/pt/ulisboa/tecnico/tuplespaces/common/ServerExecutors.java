@@ -0,0 +1,78 @@
+package pt.ulisboa.tecnico.tuplespaces.common;
+
+import io.grpc.ServerBuilder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * ServerExecutors configures the executor the gRPC server runs the service handlers on
+ *
+ * cached       gRPC default, an unbounded pool of platform threads
+ * virtual      a new virtual thread per call (needs Java 21 or newer)
+ * pool:N       a bounded pool of N platform threads
+ * direct       the transport threads themselves, only for handlers that never block
+ */
+public class ServerExecutors {
+
+    public static final String USAGE = "cached | virtual | pool:<threads> | direct";
+    public static final String DEFAULT = "cached";
+
+
+    /**
+     * sets the executor of a server builder according to the mode
+     *
+     * @param builder the server builder
+     * @param mode the executor mode, see USAGE
+     * @return the executor created for the builder, to be shut down with the server, or null if gRPC owns the threads
+     * @throws IllegalArgumentException if the mode is invalid or not supported by this JVM
+     */
+    public static ExecutorService configure(ServerBuilder<?> builder, String mode) {
+        ExecutorService executor;
+
+        if (mode.equals("cached")) {
+            return null;
+        }
+        else if (mode.equals("direct")) {
+            builder.directExecutor();
+            return null;
+        }
+        else if (mode.equals("virtual")) {
+            executor = newVirtualThreadPerTaskExecutor();
+        }
+        else if (mode.startsWith("pool:")) {
+            int threads;
+            try {
+                threads = Integer.parseInt(mode.substring("pool:".length()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number of threads: " + mode);
+            }
+            if (threads <= 0) { throw new IllegalArgumentException("Invalid number of threads: " + mode); }
+
+            executor = Executors.newFixedThreadPool(threads);
+        }
+        else {
+            throw new IllegalArgumentException("Invalid executor: " + mode);
+        }
+
+        builder.executor(executor);
+        return executor;
+    }
+
+    /**
+     * the project is built for Java 17, so the virtual thread executor is looked up at runtime
+     *
+     * @return an executor that starts a new virtual thread for each task
+     * @throws IllegalArgumentException if the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Virtual threads need Java 21 or newer, running on " + System.getProperty("java.version"));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package pt.ulisboa.tecnico.tuplespaces.common;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.Supplier;
+
+
+/**
+ * StatsDump appends the operation metrics of a replica or of the frontend to a file, one block each time, so a benchmark
+ * leaves behind how the latencies and counters evolved (scheduled every -statsInterval= seconds when the server runs with
+ * -stats=<file>)
+ */
+public class StatsDump implements Runnable {
+
+    private final Path file;
+    private final Supplier<TupleSpacesOuterClass.GetStatsResponse> stats;
+
+
+    public StatsDump(Path file, Supplier<TupleSpacesOuterClass.GetStatsResponse> stats) {
+        this.file = file;
+        this.stats = stats;
+    }
+
+    @Override
+    public void run() {
+        String block = "# " + Instant.now() + " " + format(this.stats.get()) + "\n";
+        try {
+            Files.write(this.file, block.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Could not write the stats to " + this.file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param stats the metrics of a replica or of the frontend, with the ones of its replicas
+     * @return the metrics as text, a line per histogram and a line with the counters
+     */
+    public static String format(TupleSpacesOuterClass.GetStatsResponse stats) {
+        StringBuilder text = new StringBuilder(stats.getSource()).append('\n');
+
+        for (TupleSpacesOuterClass.HistogramStats h : stats.getHistogramList()) {
+            long mean = (h.getCount() == 0) ? 0 : h.getSum() / h.getCount();
+            text.append(String.format("  %-12s count %-9d mean %-7d p50 %-7d p90 %-7d p99 %-7d p99.9 %-7d max %-7d %s%n",
+                                      h.getName(), h.getCount(), mean, h.getP50(), h.getP90(), h.getP99(), h.getP999(), h.getMax(), h.getUnit()));
+        }
+
+        text.append(" ");
+        for (Map.Entry<String, Long> counter : stats.getCounterMap().entrySet()) {
+            text.append(' ').append(counter.getKey()).append(' ').append(counter.getValue());
+        }
+        text.append('\n');
+
+        for (TupleSpacesOuterClass.GetStatsResponse server : stats.getServerList()) {
+            text.append(format(server));
+        }
+
+        return text.toString();
+    }
+}
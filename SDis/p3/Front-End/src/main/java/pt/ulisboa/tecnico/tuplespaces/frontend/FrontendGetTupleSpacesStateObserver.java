@@ -37,12 +37,13 @@ public class FrontendGetTupleSpacesStateObserver implements StreamObserver<Tuple
         List<String> space = new ArrayList<String>();
         for (int i = 0; i < len; i++) { space.add(response.getTuple(i)); }
 
-        collector.addGetResponse(this.requestId, space, this.serverId);
+        collector.addResponse(this.requestId, ResponseCollector.EXECUTE, this.serverId, space);
     }
 
     @Override
     public void onError(Throwable t) {
         System.out.println("GET error: " + t.getMessage());
+        collector.addFailure(this.requestId, ResponseCollector.EXECUTE, this.serverId, t);
     }
 
     @Override
@@ -1,38 +1,81 @@
 package pt.ulisboa.tecnico.tuplespaces.frontend;
 
+import pt.ulisboa.tecnico.tuplespaces.common.Histogram;
+
 // classes generated from the proto file
 import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesGrpc;
 import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
 
 import io.grpc.stub.StreamObserver;     // StreamObserver is used to send responses to the Client
+import io.grpc.Context;
 import io.grpc.ManagedChannel;          // ManagedChannel is used to create a channel to the Server
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.Metadata;
 import io.grpc.stub.MetadataUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.HashSet;
-
-
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+ * the FrontendImpl class forwards the requests of the clients to the TupleSpaces servers
+ *
+ * no handler waits for the servers: each one sends its requests and returns, the responses complete the quorum of the
+ * round (see ResponseCollector) and the quorum runs the next step, the response to the client or the next round;
+ * the pause before a LOCK round is retried is a task on a timer (see LockRetryScheduler), cut short when a server
+ * reports a released lock; so a few threads serve any number of calls
+ */
 public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
 
+    private static final int UNLOCK_WATCH_BUFFER = 16;     // releases a server keeps for the frontend, one is enough to wake the retries
+    private static final long RELEASE_TIMEOUT_SECONDS = 5;  // a RELEASE-LOCKS not answered by then no longer holds up the next LOCK
+
     private boolean DEBUG;
-    private int requestId = 1;
+    private final AtomicInteger requestId = new AtomicInteger(1);  // no monitor, so handlers on virtual threads never pin
     private final int numServers;
+    private final QuorumSystem quorums;                     // the voter set of each client, for the LOCK phase of TAKE
     private final ResponseCollector collector;              // frontend(client): collector is responsible for collecting the responses from the TupleSpaces servers associated with a request
     private final ManagedChannel[] channels;                // frontend(client): channels is the abstraction to connect to the server endpoints
     private final TupleSpacesGrpc.TupleSpacesStub[] stubs;  // frontend(client): stubs are used to make remote calls to the server. 
                                                             // frontend(client) will use non-blocking stubs to make remote calls to the server
     private final Metadata.Key<String> CUSTOM_HEADER_KEY = Metadata.Key.of("delay", Metadata.ASCII_STRING_MARSHALLER);
-
-
-    public FrontendImpl(boolean debug, int numServers, String[] servers) {
+    private final String instanceId = Long.toHexString(ThreadLocalRandom.current().nextLong());  // tells apart the PUTs of different frontends (or runs)
+    private final LockRetryScheduler retries;               // starts the LOCK rounds that are retried
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> releasing = new ConcurrentHashMap<>();  // RELEASE-LOCKS not answered yet, by client
+
+    // time from the arrival of a request to its response (nanoseconds)
+    private final Histogram putLatency = new Histogram();
+    private final Histogram readLatency = new Histogram();
+    private final Histogram takeLatency = new Histogram();
+    private final Histogram putAllLatency = new Histogram();
+    private final Histogram readAllLatency = new Histogram();
+    private final Histogram takeManyLatency = new Histogram();
+    private final Histogram phase1Latency = new Histogram();        // TAKE and TAKE-MANY: until all voters locked a common tuple
+    private final Histogram phase2Latency = new Histogram();        // TAKE and TAKE-MANY: removing the tuples from every server
+    private final Histogram lockAttempts = new Histogram();         // LOCK rounds of each phase 1, 1 if there was no retry
+    private final AtomicLong lockRetries = new AtomicLong();        // LOCK rounds repeated because the voters had no common tuple
+
+
+    public FrontendImpl(boolean debug, String[] servers, QuorumSystem quorums, LockRetryScheduler retries) {
         this.DEBUG = debug;
-        this.numServers = numServers;
-        this.collector = new ResponseCollector();
+        this.numServers = servers.length;
+        this.quorums = quorums;
+        this.retries = retries;
+        this.collector = new ResponseCollector(numServers);
         this.channels = new ManagedChannel[numServers];
         this.stubs = new TupleSpacesGrpc.TupleSpacesStub[numServers];
 
@@ -47,28 +90,28 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
 
     /**
      * this method is called when a PUT request is received from the client
-     * it forwards the request to the server and sends the response back to the client
+     * it forwards the request to the servers and returns right away, the response is sent back to the client once
+     * every server answered
      * 
      * @param clientRequest the request received from the client
      * @param clientResponseObserver the observer to send the response back to the client
      */
     @Override
     public void put(TupleSpacesOuterClass.PutRequest clientRequest, StreamObserver<TupleSpacesOuterClass.PutResponse> clientResponseObserver) {
+        long start = System.nanoTime();
+        Context context = Context.current();
         String tuple = clientRequest.getNewTuple();                                 // get the tuple from the request sent by the CLIENT
         String headerValue = HeaderServerInterceptor.HEADER_VALUE_CONTEXT_KEY.get();// get the header value from the context
 
+        int currentRequestId = this.requestId.getAndIncrement();
+
         TupleSpacesOuterClass.PutRequest serverRequest = 
                                 TupleSpacesOuterClass.PutRequest
                                                     .newBuilder()
                                                     .setNewTuple(tuple)
+                                                    .setPutId(putId(currentRequestId))
                                                     .build();   // construct a new Protobuffer object to send as request to the SERVER
 
-        int currentRequestId;
-        synchronized (this) {
-            currentRequestId = this.requestId;
-            this.requestId++;
-        }
-
         if (this.DEBUG) {
             if (headerValue != null) {
                 System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received PUT request (#%d) from client in %s, with delay (%s), %s", currentRequestId, Thread.currentThread().getName(), headerValue, clientRequest);
@@ -78,32 +121,31 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
             }
         }
 
-        try {
-            for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server
-                
-                if (headerValue != null) {
-                    String[] delays = headerValue.split(" ");
+        Quorum<String> quorum = this.collector.expect(currentRequestId, ResponseCollector.EXECUTE, this.numServers, this.numServers);
 
-                    Metadata metadata = new Metadata();
-                    metadata.put(CUSTOM_HEADER_KEY, delays[i]);
-                    this.stubs[i].withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).put(serverRequest, new FrontendPutObserver(i, currentRequestId, tuple, this.collector));
-                }
-                else {                
-                    this.stubs[i].put(serverRequest, new FrontendPutObserver(i, currentRequestId, tuple, this.collector));
-                }
-                
-                if (this.DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent PUT request (#%d) to server %d\n", currentRequestId, i);
-                }
+        for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server
+            
+            String delay = delayOf(headerValue, i);
+            if (delay != null) {
+                Metadata metadata = new Metadata();
+                metadata.put(CUSTOM_HEADER_KEY, delay);
+                this.stubs[i].withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).put(serverRequest, new FrontendPutObserver(i, currentRequestId, tuple, this.collector));
             }
+            else {                
+                this.stubs[i].put(serverRequest, new FrontendPutObserver(i, currentRequestId, tuple, this.collector));
+            }
+            
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent PUT request (#%d) to server %d\n", currentRequestId, i);
+            }
+        }
 
-            this.collector.waitUntilAllReceived(currentRequestId, 3); // wait until all servers respond
-
+        whenReached(quorum, context, "PUT", currentRequestId, clientResponseObserver, responses -> {    // once all servers respond
             if (this.DEBUG) {
                 System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received PUT responses (#%d) from all servers\n", currentRequestId);
             }
 
-            String result = this.collector.getResponse(currentRequestId, "PUT");
+            String result = allOk(responses) ? "OK" : "NO";
 
             TupleSpacesOuterClass.PutResponse clientResponse =
                                 TupleSpacesOuterClass.PutResponse
@@ -115,25 +157,25 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
                 System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sending PUT response (#%d) back to client\n\n", currentRequestId);
             }
 
+            this.putLatency.recordSince(start);
+
             clientResponseObserver.onNext(clientResponse);      // use the responseObserver to send the response
             clientResponseObserver.onCompleted();               // after sending the response, complete the call
-        }
-        catch (StatusRuntimeException e) {
-            if (this.DEBUG) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] Frontend PUT request \u001B[31merror\u001B[0m: " + e.getMessage());
-            }
-        }
+        });
     }
 
     /**
      * this method is called when a READ request is received from the client
-     * it forwards the request to the server and sends the response back to the client
+     * it forwards the request to the servers and returns right away, the response of the first server to answer is
+     * sent back to the client
      * 
      * @param clientRequest the request received from the client
      * @param clientResponseObserver the observer to send the response back to the client
      */
     @Override
     public void read(TupleSpacesOuterClass.ReadRequest clientRequest, StreamObserver<TupleSpacesOuterClass.ReadResponse> clientResponseObserver) {
+        long start = System.nanoTime();
+        Context context = Context.current();
         String searchPattern = clientRequest.getSearchPattern();// get the search pattern from the request sent by the CLIENT
         String headerValue = HeaderServerInterceptor.HEADER_VALUE_CONTEXT_KEY.get();// get the header value from the context
 
@@ -143,11 +185,7 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
                                                     .setSearchPattern(searchPattern)
                                                     .build();   // construct a new Protobuffer object to send as request to the SERVER
 
-        int currentRequestId;
-        synchronized (this) {
-            currentRequestId = this.requestId;
-            this.requestId++;
-        }
+        int currentRequestId = this.requestId.getAndIncrement();
 
         if (this.DEBUG) {
             if (headerValue != null) {
@@ -158,32 +196,31 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
             }
         }
 
-        try {
-            for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server
-                
-                if (headerValue != null) {
-                    String[] delays = headerValue.split(" ");
+        Quorum<String> quorum = this.collector.expect(currentRequestId, ResponseCollector.EXECUTE, this.numServers, 1);
 
-                    Metadata metadata = new Metadata();
-                    metadata.put(CUSTOM_HEADER_KEY, delays[i]);
-                    this.stubs[i].withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).read(serverRequest, new FrontendReadObserver(i, currentRequestId, searchPattern, this.collector));
-                }
-                else {                
-                    this.stubs[i].read(serverRequest, new FrontendReadObserver(i, currentRequestId, searchPattern, this.collector));
-                }
-
-                if (this.DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent READ request (#%d) to server %d\n", currentRequestId, i);
-                }
+        for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server
+            
+            String delay = delayOf(headerValue, i);
+            if (delay != null) {
+                Metadata metadata = new Metadata();
+                metadata.put(CUSTOM_HEADER_KEY, delay);
+                this.stubs[i].withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).read(serverRequest, new FrontendReadObserver(i, currentRequestId, searchPattern, this.collector));
+            }
+            else {                
+                this.stubs[i].read(serverRequest, new FrontendReadObserver(i, currentRequestId, searchPattern, this.collector));
             }
 
-            this.collector.waitUntilAllReceived(currentRequestId, 1); // wait until the first server responds
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent READ request (#%d) to server %d\n", currentRequestId, i);
+            }
+        }
 
+        whenReached(quorum, context, "READ", currentRequestId, clientResponseObserver, responses -> {   // once the first server responds
             if (this.DEBUG) {
                 System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received READ response (#%d) from one server\n", currentRequestId);
             }
 
-            String result = this.collector.getResponse(currentRequestId, "READ");
+            String result = Quorum.first(responses);
 
             TupleSpacesOuterClass.ReadResponse clientResponse = 
                                 TupleSpacesOuterClass.ReadResponse
@@ -195,36 +232,31 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
                 System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sending READ response (#%d) back to client\n\n", currentRequestId);
             }
 
-            clientResponseObserver.onNext(clientResponse);      // use the responseObserver to send the response
-            
+            this.readLatency.recordSince(start);
 
+            clientResponseObserver.onNext(clientResponse);      // use the responseObserver to send the response
             clientResponseObserver.onCompleted();               // after sending the response, complete the call
-        }
-        catch (StatusRuntimeException e) {
-            if (this.DEBUG) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] Frontend READ request \u001B[31merror\u001B[0m: " + e.getMessage());
-            }
-        }
+        });
     }
 
     /**
      * this method is called when a TAKE request is received from the client
-     * it forwards the request to the server and sends the response back to the client
+     * phase 1 locks the matching tuples in the voter set (see lockIntersection), phase 2 removes one of the tuples
+     * locked in all voters from every server; the handler returns right away, each step starts when the previous
+     * one is answered
      * 
      * @param clientRequest the request received from the client
      * @param clientResponseObserver the observer to send the response back to the client
      */
     @Override
     public void take(TupleSpacesOuterClass.TakeRequest clientRequest, StreamObserver<TupleSpacesOuterClass.TakeResponse> clientResponseObserver) {
+        long start = System.nanoTime();
+        Context context = Context.current();
         int clientId = clientRequest.getClientId();             // get the client id from the request sent by the CLIENT
         String searchPattern = clientRequest.getSearchPattern();// get the search pattern from the request sent by the CLIENT
         String headerValue = HeaderServerInterceptor.HEADER_VALUE_CONTEXT_KEY.get();// get the header value from the context
 
-        int currentRequestId;
-        synchronized (this) {
-            currentRequestId = this.requestId;
-            this.requestId++;
-        }
+        int currentRequestId = this.requestId.getAndIncrement();
 
         if (this.DEBUG) {
             if (headerValue != null) {
@@ -235,209 +267,491 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
             }
         }
 
-        // compute voter set
-        int voterOne = clientId % 3;
-        int voterTwo = (clientId + 1) % 3;
-        if (DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Voter set computed (#%d) - server%d and server%d\n", currentRequestId, voterOne, voterTwo);
-        }
+        lockIntersection(clientId, searchPattern, 1, currentRequestId, 0, context, clientResponseObserver, intersection -> {   // phase 1
+            this.phase1Latency.recordSince(start);
+            long phase2Start = System.nanoTime();
 
-        TupleSpacesOuterClass.LockRequest lockRequest = 
-                                TupleSpacesOuterClass.LockRequest
-                                                    .newBuilder()
-                                                    .setClientId(clientId)
-                                                    .setSearchPattern(searchPattern)
-                                                    .build();   // construct a new Protobuffer object to send as request to the SERVER
+            String commonResult = intersection.get(0);
 
-        int retryCount = 0; // also represents the retry ID
+            TupleSpacesOuterClass.TakeExactRequest serverRequest =
+                                    TupleSpacesOuterClass.TakeExactRequest
+                                                        .newBuilder()
+                                                        .setClientId(clientId)
+                                                        .setTuple(commonResult)
+                                                        .build();   // the tuple is already chosen, the servers remove exactly it (no pattern matching)
 
-        // phase 1: acquire the locks
-        try {
-            for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to the two servers in voter set
-                if (i == voterOne || i == voterTwo) {
-                    this.stubs[i].requestLock(lockRequest, new FrontendLockObserver(i, currentRequestId, searchPattern, retryCount, this.collector));
+
+            // phase 2: execute the operation and release the locks
+            // once started it is carried out by every server, even if the client gives up, so they all remove the tuple
+            Quorum<String> quorum = this.collector.expect(currentRequestId, ResponseCollector.EXECUTE, this.numServers, this.numServers);
+
+            Context.current().fork().run(() -> {
+                for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server to execute the operation
+                    
+                    String delay = delayOf(headerValue, i);
+                    if (delay != null) {
+                        Metadata metadata = new Metadata();
+                        metadata.put(CUSTOM_HEADER_KEY, delay);
+                        this.stubs[i].withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).takeExact(serverRequest, new FrontendTakeObserver(i, currentRequestId, searchPattern, this.collector));
+                    }
+                    else {                
+                        this.stubs[i].takeExact(serverRequest, new FrontendTakeObserver(i, currentRequestId, searchPattern, this.collector));
+                    }
+                    
                     if (this.DEBUG) {
-                        System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent LOCK request (#%d) to server %d\n", currentRequestId, i);
+                        System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent TAKE request (#%d) to server %d\n", currentRequestId, i);
                     }
                 }
-            }
+            });
 
-            this.collector.waitUntilAllLockReceived(currentRequestId, retryCount, "LOCK");
+            whenReached(quorum, context, "TAKE", currentRequestId, clientResponseObserver, responses -> {   // once all servers respond
+                if (this.DEBUG) {
+                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received TAKE responses (#%d) from all servers\n", currentRequestId);
+                }
 
-            if (this.DEBUG) {
-                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received LOCK responses (#%d) from both servers\n", currentRequestId);
-            }
-        }
-        catch (StatusRuntimeException e) {
-            e.printStackTrace();
+                String result = Quorum.first(responses);
+
+                TupleSpacesOuterClass.TakeResponse clientResponse = 
+                                    TupleSpacesOuterClass.TakeResponse
+                                                        .newBuilder()
+                                                        .setResult(result)
+                                                        .build();   // construct a new Protobuffer object to send as response to the CLIENT
+
+                this.phase2Latency.recordSince(phase2Start);
+                this.takeLatency.recordSince(start);
+                clientResponseObserver.onNext(clientResponse);      // use the responseObserver to send the response to the CLIENT
+                clientResponseObserver.onCompleted();               // after sending the response, complete the call
+            });
+        });
+    }
+
+    /**
+     * this method is called when a PUT-ALL request is received from the client
+     * it forwards the whole batch to every server in a single request and answers once all of them added it
+     * 
+     * @param clientRequest the request received from the client
+     * @param clientResponseObserver the observer to send the response back to the client
+     */
+    @Override
+    public void putAll(TupleSpacesOuterClass.PutAllRequest clientRequest, StreamObserver<TupleSpacesOuterClass.PutAllResponse> clientResponseObserver) {
+        long start = System.nanoTime();
+        Context context = Context.current();
+        int currentRequestId = this.requestId.getAndIncrement();
+        String request = clientRequest.getNewTupleCount() + " tuples";
+
+        if (this.DEBUG) {
+            System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received PUT-ALL request (#%d) from client in %s, %d tuples\n", currentRequestId, Thread.currentThread().getName(), clientRequest.getNewTupleCount());
         }
 
-        // phase 1.1: determine the intersection of the two lock responses
-        List<String> lockResponseVoterOne = this.collector.getLockResponse(currentRequestId, voterOne, retryCount);
-        List<String> lockResponseVoterTwo = this.collector.getLockResponse(currentRequestId, voterTwo, retryCount);
+        TupleSpacesOuterClass.PutAllRequest serverRequest = clientRequest.toBuilder().setPutId(putId(currentRequestId)).build();
 
-        Set<String> setVoterTwo = new HashSet<>(lockResponseVoterTwo); // convert the list to a set for faster lookup
-        List<String> intersection = new ArrayList<>();
+        Quorum<String> quorum = this.collector.expect(currentRequestId, ResponseCollector.EXECUTE, this.numServers, this.numServers);
 
-        for (String tuple : lockResponseVoterOne) {
-            if (setVoterTwo.contains(tuple)) { intersection.add(tuple); }
+        for (int i = 0; i < this.numServers; i++) { // a single RPC per server for the whole batch
+            this.stubs[i].putAll(serverRequest, new FrontendPutAllObserver(i, currentRequestId, request, this.collector));
         }
 
+        whenReached(quorum, context, "PUT-ALL", currentRequestId, clientResponseObserver, responses -> {    // once all servers respond
+            String result = allOk(responses) ? "OK" : "NO";
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sending PUT-ALL response (#%d) back to client, %s\n\n", currentRequestId, result);
+            }
+
+            this.putAllLatency.recordSince(start);
+            clientResponseObserver.onNext(TupleSpacesOuterClass.PutAllResponse.newBuilder().setOk(result).build());
+            clientResponseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * this method is called when a READ-ALL request is received from the client
+     * like READ, it is answered with the response of the first server
+     * 
+     * @param clientRequest the request received from the client
+     * @param clientResponseObserver the observer to send the response back to the client
+     */
+    @Override
+    public void readAll(TupleSpacesOuterClass.ReadAllRequest clientRequest, StreamObserver<TupleSpacesOuterClass.ReadAllResponse> clientResponseObserver) {
+        long start = System.nanoTime();
+        Context context = Context.current();
+        int currentRequestId = this.requestId.getAndIncrement();
+        String searchPattern = clientRequest.getSearchPattern();
+
         if (this.DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend computed intersection (#%d) - %s\n", currentRequestId, intersection);
+            System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received READ-ALL request (#%d) from client in %s, %s", currentRequestId, Thread.currentThread().getName(), clientRequest);
+        }
+
+        Quorum<List<String>> quorum = this.collector.expect(currentRequestId, ResponseCollector.EXECUTE, this.numServers, 1);
+
+        for (int i = 0; i < this.numServers; i++) {
+            this.stubs[i].readAll(clientRequest, new FrontendReadAllObserver(i, currentRequestId, searchPattern, this.collector));
         }
 
-        // phase 1.2: verify if the intersection is empty and act accordingly
-        if (intersection.isEmpty()) {
+        whenReached(quorum, context, "READ-ALL", currentRequestId, clientResponseObserver, responses -> {   // once the first server responds
+            List<String> result = Quorum.first(responses);
+
             if (this.DEBUG) {
-                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Intersection is empty (#%d) - Retrying...\n", currentRequestId);
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sending READ-ALL response (#%d) back to client, %s\n\n", currentRequestId, result);
             }
 
-            while (intersection.isEmpty()) {
+            this.readAllLatency.recordSince(start);
+            clientResponseObserver.onNext(TupleSpacesOuterClass.ReadAllResponse.newBuilder().addAllResult(result).build());
+            clientResponseObserver.onCompleted();
+        });
+    }
 
-                try {
-                    Thread.sleep(5000); // wait for 5 seconds before retrying
-                }
-                catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                
-                retryCount++;
-
-                // repeat phase 1: acquire the locks
-                try {
-                    for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to the two servers in voter set
-                        if (i == voterOne || i == voterTwo) {
-                            this.stubs[i].requestLock(lockRequest, new FrontendLockObserver(i, currentRequestId, searchPattern, retryCount, this.collector));
-                            if (this.DEBUG) {
-                                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent LOCK request again (#%d) to server %d\n", currentRequestId, i);
-                            }
-                        }
-                    }
+    /**
+     * this method is called when a TAKE-MANY request is received from the client
+     * phase 1 is the one of TAKE, but up to n copies of every matching tuple are locked in the voter set
+     * phase 2 removes up to n of the copies locked in all voters from every server, in a single request per server
+     * 
+     * @param clientRequest the request received from the client
+     * @param clientResponseObserver the observer to send the response back to the client
+     */
+    @Override
+    public void takeMany(TupleSpacesOuterClass.TakeManyRequest clientRequest, StreamObserver<TupleSpacesOuterClass.TakeManyResponse> clientResponseObserver) {
+        long start = System.nanoTime();
+        Context context = Context.current();
+        int clientId = clientRequest.getClientId();
+        String searchPattern = clientRequest.getSearchPattern();
+        int currentRequestId = this.requestId.getAndIncrement();
+
+        if (this.DEBUG) {
+            System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received \u001B[31mTAKE-MANY\u001B[0m request (#%d) from client in %s, %s", currentRequestId, Thread.currentThread().getName(), clientRequest);
+        }
+
+        if (clientRequest.getN() <= 0) {
+            clientResponseObserver.onError(Status.INVALID_ARGUMENT.withDescription("TAKE-MANY needs n > 0").asRuntimeException());
+            return;
+        }
+
+        lockIntersection(clientId, searchPattern, clientRequest.getN(), currentRequestId, 0, context, clientResponseObserver, intersection -> {   // phase 1
+            this.phase1Latency.recordSince(start);
+            long phase2Start = System.nanoTime();
+
+            List<String> chosen = intersection.subList(0, Math.min(clientRequest.getN(), intersection.size()));
+
+            TupleSpacesOuterClass.TakeExactAllRequest serverRequest =
+                                    TupleSpacesOuterClass.TakeExactAllRequest
+                                                        .newBuilder()
+                                                        .setClientId(clientId)
+                                                        .addAllTuple(chosen)
+                                                        .build();   // the tuples are already chosen, the servers remove exactly them
 
-                    this.collector.waitUntilAllLockReceived(currentRequestId, retryCount, "LOCK");
+            // phase 2: execute the operation and release the locks
+            Quorum<List<String>> quorum = this.collector.expect(currentRequestId, ResponseCollector.EXECUTE, this.numServers, this.numServers);
 
+            Context.current().fork().run(() -> {        // carried out by every server even if the client gives up, as in take
+                for (int i = 0; i < this.numServers; i++) {
+                    this.stubs[i].takeExactAll(serverRequest, new FrontendTakeManyObserver(i, currentRequestId, searchPattern, this.collector));
                     if (this.DEBUG) {
-                        System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received LOCK responses (#%d) from both servers\n", currentRequestId);
+                        System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent TAKE-EXACT-ALL request (#%d) to server %d, %s\n", currentRequestId, i, chosen);
                     }
                 }
-                catch (StatusRuntimeException e) {
-                    e.printStackTrace();
-                }
+            });
 
-                // repeat phase 1.1: determine the intersection of the two lock responses
-                lockResponseVoterOne = this.collector.getLockResponse(currentRequestId, voterOne, retryCount);
-                lockResponseVoterTwo = this.collector.getLockResponse(currentRequestId, voterTwo, retryCount);
+            whenReached(quorum, context, "TAKE-MANY", currentRequestId, clientResponseObserver, responses -> {  // once all servers respond
+                List<String> result = Quorum.first(responses);
 
-                setVoterTwo = new HashSet<>(lockResponseVoterTwo); // convert the list to a set for faster lookup
-                intersection = new ArrayList<>();
+                this.phase2Latency.recordSince(phase2Start);
+                this.takeManyLatency.recordSince(start);
+                clientResponseObserver.onNext(TupleSpacesOuterClass.TakeManyResponse.newBuilder().addAllResult(result).build());
+                clientResponseObserver.onCompleted();
+            });
+        });
+    }
 
-                for (String tuple : lockResponseVoterOne) {
-                    if (setVoterTwo.contains(tuple)) { intersection.add(tuple); }
+    /**
+     * runs the next step of a request once the quorum of one of its rounds is reached, in the gRPC Context of the
+     * request, so the calls the step makes to the servers are cancelled with it (but phase 2 of a take, see take)
+     * if the round fails, or the client gives up first, the client gets the error instead
+     *
+     * @param quorum the quorum of the round
+     * @param context the gRPC Context of the request
+     * @param requestType the type of the request, for the debug messages
+     * @param requestId the request ID, for the debug messages
+     * @param clientResponseObserver the observer of the client
+     * @param next the next step, given the responses by server
+     */
+    private <T> void whenReached(Quorum<T> quorum, Context context, String requestType, int requestId,
+                                 StreamObserver<?> clientResponseObserver, Consumer<List<T>> next) {
+        quorum.cancelWith(context);
+
+        quorum.getFuture().whenComplete((responses, t) -> {
+            try {
+                if (t == null) {
+                    context.run(() -> next.accept(responses));
+                    return;
                 }
+
+                StatusRuntimeException e = (t instanceof StatusRuntimeException) ? (StatusRuntimeException) t : Status.fromThrowable(t).asRuntimeException();
+                if (this.DEBUG) {
+                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend %s request (#%d) \u001B[31merror\u001B[0m: %s\n", requestType, requestId, e.getMessage());
+                }
+                clientResponseObserver.onError(e);
+            }
+            catch (StatusRuntimeException e) {                  // the client is already gone
                 if (this.DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend computed intersection (#%d) - %s\n", currentRequestId, intersection);
+                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend could not answer %s request (#%d): %s\n", requestType, requestId, e.getStatus());
                 }
             }
+        });
+    }
 
+    /**
+     * @param headerValue the delays the client asked for, in seconds, one per server, or null
+     * @param serverId the server
+     * @return the delay of the server, or null if there is none (the client may name fewer servers than there are)
+     */
+    private static String delayOf(String headerValue, int serverId) {
+        if (headerValue == null) { return null; }
+
+        String[] delays = headerValue.split(" ");
+        return (serverId < delays.length) ? delays[serverId] : null;
+    }
+
+    /**
+     * opens a WATCH-UNLOCKS stream to every server, so the LOCK retries start as soon as a server releases a lock
+     * instead of waiting out their whole pause; a stream that ends is opened again a second later
+     *
+     * @param timer the timer the streams are opened again on
+     */
+    public void watchUnlocks(ScheduledExecutorService timer) {
+        for (int i = 0; i < this.numServers; i++) { watchUnlocks(i, timer); }
+    }
+
+    private void watchUnlocks(int serverId, ScheduledExecutorService timer) {
+        TupleSpacesOuterClass.WatchRequest request = 
+                                TupleSpacesOuterClass.WatchRequest
+                                                    .newBuilder()
+                                                    .setBufferSize(UNLOCK_WATCH_BUFFER)
+                                                    .build();   // every tuple, a release is only a hint to retry
+
+        Runnable reopen = () -> timer.schedule(() -> watchUnlocks(serverId, timer), 1, TimeUnit.SECONDS);
+        this.stubs[serverId].watchUnlocks(request, new FrontendUnlockObserver(this.DEBUG, serverId, this.retries, reopen));
+    }
+
+    /**
+     * @param responses the responses of every server to a PUT or PUT-ALL
+     * @return whether every server answered OK
+     */
+    private static boolean allOk(List<String> responses) {
+        for (String response : responses) {
+            if (!"OK".equals(response)) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @param requestId the request of a PUT or PUT-ALL
+     * @return the identifier of the PUT, the same for every server, so the WATCH events of the servers can be matched
+     */
+    private String putId(int requestId) {
+        return this.instanceId + ":" + requestId;
+    }
+
+    /**
+     * phase 1 of the replicated TAKE and TAKE-MANY: locks the tuples that match the pattern in the voter set of the
+     * client (see QuorumSystem) and, while its voters have no common tuple locked, retries after a pause that grows
+     * with each round, or as soon as a server releases a lock (see LockRetryScheduler)
+     *
+     * the locks the take won't use are given back at once (RELEASE-LOCKS): the ones outside the intersection, all of
+     * them when it is empty, and the ones granted to a round that failed
+     *
+     * if the client gives up (deadline or cancellation) in the meantime, the LOCK requests still in flight are
+     * cancelled with it, the servers release what they grant to them, and no other round is started
+     *
+     * a round only starts once the servers answered the RELEASE-LOCKS sent before for the same client: a server grants
+     * again a lock the client already holds, so a late release would free the lock of the new round, and another client
+     * could lock the same copy and take it too
+     *
+     * @param clientId the client that asked for the take
+     * @param searchPattern the pattern to match
+     * @param copies the copies of each matching tuple to lock, 1 for a TAKE, n for a TAKE-MANY
+     * @param currentRequestId the ID of the request
+     * @param retryCount the number of this round, 0 for the first one
+     * @param context the gRPC Context of the request
+     * @param clientResponseObserver the observer of the client, which gets the error if a round fails
+     * @param next phase 2, given the copies locked by the client in all voters (a tuple appears once per copy), never empty
+     */
+    private void lockIntersection(int clientId, String searchPattern, int copies, int currentRequestId, int retryCount, Context context,
+                                  StreamObserver<?> clientResponseObserver, Consumer<List<String>> next) {
+        if (context.isCancelled()) { return; }  // the client gave up during the pause
+
+        CompletableFuture<Void> released = this.releasing.get(clientId);
+        if (released != null && !released.isDone()) {
+            released.whenComplete((v, t) -> context.run(() -> lockIntersection(clientId, searchPattern, copies, currentRequestId, retryCount, context, clientResponseObserver, next)));
+            return;
         }
 
-        String commonResult = intersection.get(0);
+        // compute voter set
+        int[] voters = this.quorums.voters(clientId);
+        if (DEBUG && retryCount == 0) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Voter set computed (#%d) - servers %s\n", currentRequestId, Arrays.toString(voters));
+        }
 
-        TupleSpacesOuterClass.TakeRequest serverRequest =
-                                TupleSpacesOuterClass.TakeRequest
+        TupleSpacesOuterClass.LockRequest lockRequest = 
+                                TupleSpacesOuterClass.LockRequest
                                                     .newBuilder()
                                                     .setClientId(clientId)
-                                                    .setSearchPattern(commonResult)
+                                                    .setSearchPattern(searchPattern)
+                                                    .setCopies(copies)
                                                     .build();   // construct a new Protobuffer object to send as request to the SERVER
 
+        // phase 1: acquire the locks
+        Quorum<List<String>> quorum = this.collector.expect(currentRequestId, retryCount, voters.length, voters.length);
+        for (int i : voters) {                      // make async calls sending the request to the servers in the voter set
+            this.stubs[i].requestLock(lockRequest, new FrontendLockObserver(i, currentRequestId, searchPattern, retryCount, this.collector,
+                                                                            matches -> releaseLocks(i, clientId, currentRequestId, matches)));
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent LOCK request%s (#%d) to server %d\n", (retryCount > 0) ? " again" : "", currentRequestId, i);
+            }
+        }
+
+        quorum.getFuture().whenComplete((lockResponses, t) -> {
+            if (t == null) { return; }
+            List<List<String>> granted = quorum.getReceived();  // the round failed, the voters that answered give back what they locked
+            for (int i : voters) { releaseLocks(i, clientId, currentRequestId, granted.get(i)); }
+        });
 
-        // phase 2: execute the operation and release the locks
-        try {
-            for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server to execute the operation
-                
-                if (headerValue != null) {
-                    String[] delays = headerValue.split(" ");
+        whenReached(quorum, context, "LOCK", currentRequestId, clientResponseObserver, lockResponses -> {
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received LOCK responses (#%d) from all voters\n", currentRequestId);
+            }
 
-                    Metadata metadata = new Metadata();
-                    metadata.put(CUSTOM_HEADER_KEY, delays[i]);
-                    this.stubs[i].withInterceptors(MetadataUtils.newAttachHeadersInterceptor(metadata)).take(serverRequest, new FrontendTakeObserver(i, currentRequestId, searchPattern, this.collector));
-                }
-                else {                
-                    this.stubs[i].take(serverRequest, new FrontendTakeObserver(i, currentRequestId, searchPattern, this.collector));
-                }
-                
-                if (this.DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent TAKE request (#%d) to server %d\n", currentRequestId, i);
+            // phase 1.1: determine the intersection of the lock responses, in the order of the first voter
+            // a tuple appears once per copy locked, so the intersection keeps the fewest copies any voter locked
+            List<String> intersection = lockResponses.get(voters[0]);
+            for (int v = 1; v < voters.length; v++) {
+                intersection = intersect(intersection, lockResponses.get(voters[v]));
+            }
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend computed intersection (#%d) - %s\n", currentRequestId, intersection);
+            }
+
+            // phase 1.2: the voters give back right away the locks the take won't use, the ones outside the intersection,
+            // or all of them if it is empty, instead of holding them until phase 2 or through the pause
+            for (int i : voters) {
+                Map<String, Integer> kept = copiesOf(intersection);
+                List<String> unused = new ArrayList<>();
+                for (String tuple : lockResponses.get(i)) {
+                    if (kept.merge(tuple, -1, Integer::sum) < 0) { unused.add(tuple); }
                 }
+                releaseLocks(i, clientId, currentRequestId, unused);
             }
 
-            this.collector.waitUntilAllReceived(currentRequestId, 3); // wait until all servers respond
+            // phase 1.3: verify if the intersection is empty and act accordingly
+            if (!intersection.isEmpty()) {
+                this.lockAttempts.record(retryCount + 1);
+                next.accept(intersection);
+                return;
+            }
+
+            this.lockRetries.incrementAndGet();
+            long pause = this.retries.schedule(currentRequestId, clientId, searchPattern, retryCount,
+                                               context.wrap(() -> lockIntersection(clientId, searchPattern, copies, currentRequestId, retryCount + 1, context, clientResponseObserver, next)));
 
             if (this.DEBUG) {
-                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received TAKE responses (#%d) from all servers\n", currentRequestId);
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Intersection is empty (#%d) - Retrying in at most %.1f ms...\n", currentRequestId, pause / 1e6);
             }
+        });
+    }
 
-            String result = this.collector.getResponse(currentRequestId, "TAKE");
+    /**
+     * @return the number of times each tuple appears in the list
+     */
+    private static Map<String, Integer> copiesOf(List<String> tuples) {
+        Map<String, Integer> copies = new HashMap<>();
+        for (String tuple : tuples) { copies.merge(tuple, 1, Integer::sum); }
+        return copies;
+    }
+
+    /**
+     * intersects two lists as multisets: a tuple is kept as many times as it appears in both lists
+     * @return the common tuples, in the order of the first list
+     */
+    private static List<String> intersect(List<String> first, List<String> second) {
+        Map<String, Integer> available = copiesOf(second);
+        List<String> common = new ArrayList<>();
+        for (String tuple : first) {
+            if (available.merge(tuple, -1, Integer::sum) >= 0) { common.add(tuple); }
+        }
+        return common;
+    }
 
-            TupleSpacesOuterClass.TakeResponse clientResponse = 
-                                TupleSpacesOuterClass.TakeResponse
+    /**
+     * gives back to a server the locks a client got in a LOCK round but won't take
+     * the call is not bound to the request, so it is sent even if the client of the request gave up; nothing waits
+     * for its answer but the next LOCK round of the client (see lockIntersection)
+     *
+     * @param serverId the server
+     * @param clientId the client that holds the locks
+     * @param currentRequestId the ID of the request, for the messages
+     * @param tuples the tuples to unlock, nothing is sent if there is none
+     */
+    private void releaseLocks(int serverId, int clientId, int currentRequestId, List<String> tuples) {
+        if (tuples == null || tuples.isEmpty()) { return; }
+
+        TupleSpacesOuterClass.ReleaseLocksRequest releaseRequest = 
+                                TupleSpacesOuterClass.ReleaseLocksRequest
                                                     .newBuilder()
-                                                    .setResult(result)
-                                                    .build();   // construct a new Protobuffer object to send as response to the CLIENT
+                                                    .setClientId(clientId)
+                                                    .addAllTuple(tuples)
+                                                    .build();   // construct a new Protobuffer object to send as request to the SERVER
 
-            clientResponseObserver.onNext(clientResponse);      // use the responseObserver to send the response to the CLIENT
-            clientResponseObserver.onCompleted();               // after sending the response, complete the call
-        }
-        catch (StatusRuntimeException e) {
-            e.printStackTrace();
+        CompletableFuture<Void> answered = new CompletableFuture<>();
+        CompletableFuture<Void> pending = this.releasing.merge(clientId, answered, (before, now) -> before.isDone() ? now : CompletableFuture.allOf(before, now));
+        pending.whenComplete((v, t) -> this.releasing.remove(clientId, pending));
+
+        Context.current().fork().run(() -> this.stubs[serverId].withDeadlineAfter(RELEASE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                                                               .releaseLocks(releaseRequest, new FrontendReleaseLocksObserver(serverId, currentRequestId, answered)));
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent RELEASE-LOCKS request (#%d) to server %d, %s\n", currentRequestId, serverId, tuples);
         }
     }
 
     /**
      * this method is called when a GET-TUPLE-SPACES-STATE request is received from the client
-     * it forwards the request to the server and sends the response back to the client
+     * it forwards the request to the servers and returns right away, the tuple spaces of every server are sent back
+     * to the client once all of them answered
      * 
      * @param clientRequest the request received from the client
      * @param clientResponseObserver the observer to send the response back to the client
      */
     @Override
     public void getTupleSpacesState(TupleSpacesOuterClass.getTupleSpacesStateRequest clientRequest, StreamObserver<TupleSpacesOuterClass.getTupleSpacesStateResponse> clientResponseObserver) {
+        Context context = Context.current();
         TupleSpacesOuterClass.getTupleSpacesStateRequest serverRequest = 
                                 TupleSpacesOuterClass.getTupleSpacesStateRequest
                                                     .newBuilder()
                                                     .build();   // construct a new Protobuffer object to send as request to the SERVER
 
-        int currentRequestId;
-        synchronized (this) {
-            currentRequestId = this.requestId;
-            this.requestId++;
-        }
+        int currentRequestId = this.requestId.getAndIncrement();
 
         if (this.DEBUG) {
             System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received GET-TUPLE-SPACES-STATE request (#%d) from client in %s\n", currentRequestId, Thread.currentThread().getName());
         }
 
-        try {
-            for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server
-                this.stubs[i].getTupleSpacesState(serverRequest, new FrontendGetTupleSpacesStateObserver(i, currentRequestId, this.collector));
-                if (this.DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent GET-TUPLE-SPACES-STATE request (#%d) to server %d\n", currentRequestId, i);
-                }
-            }
+        Quorum<List<String>> quorum = this.collector.expect(currentRequestId, ResponseCollector.EXECUTE, this.numServers, this.numServers);
 
-            this.collector.waitUntilAllGetReceived(currentRequestId); // wait until all servers respond
+        for (int i = 0; i < this.numServers; i++) { // make async calls sending the request to every server
+            this.stubs[i].getTupleSpacesState(serverRequest, new FrontendGetTupleSpacesStateObserver(i, currentRequestId, this.collector));
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sent GET-TUPLE-SPACES-STATE request (#%d) to server %d\n", currentRequestId, i);
+            }
+        }
 
+        whenReached(quorum, context, "GET-TUPLE-SPACES-STATE", currentRequestId, clientResponseObserver, responses -> { // once all servers respond
             if (this.DEBUG) {
                 System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received GET-TUPLE-SPACES-STATE responses (#%d) from all servers\n", currentRequestId);
             }
 
-            List<String> spaces = this.collector.getGetResponse(currentRequestId);
-
             TupleSpacesOuterClass.getTupleSpacesStateResponse.Builder clientResponseBuilder =
                                 TupleSpacesOuterClass.getTupleSpacesStateResponse.newBuilder();  // create a response builder object to build the response
 
-            for (String tuple : spaces) { clientResponseBuilder.addTuple(tuple); }
+            for (List<String> space : responses) { clientResponseBuilder.addAllTuple(space); }  // the tuple spaces of every server, one after the other
 
             TupleSpacesOuterClass.getTupleSpacesStateResponse clientResponse = clientResponseBuilder.build();   // construct a new Protobuffer object to send as response to the CLIENT
 
@@ -447,12 +761,119 @@ public class FrontendImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
 
             clientResponseObserver.onNext(clientResponse);      // use the responseObserver to send the response
             clientResponseObserver.onCompleted();               // after sending the response, complete the call
+        });
+    }
+
+    /**
+     * this method is called when a streamed GET-TUPLE-SPACES-STATE request is received from the client
+     * the request is forwarded to every server and their chunks are merged into the stream sent back to the client
+     * as they arrive (see FrontendStateStreamMerger), the handler returns right away
+     * 
+     * @param clientRequest the request received from the client
+     * @param clientResponseObserver the observer to send the chunks back to the client
+     */
+    @Override
+    public void streamTupleSpacesState(TupleSpacesOuterClass.StreamTupleSpacesStateRequest clientRequest, StreamObserver<TupleSpacesOuterClass.TupleSpacesStateChunk> clientResponseObserver) {
+        int currentRequestId = this.requestId.getAndIncrement();
+
+        if (this.DEBUG) {
+            System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received STREAM-TUPLE-SPACES-STATE request (#%d) from client in %s, %s", currentRequestId, Thread.currentThread().getName(), clientRequest);
         }
-        catch (StatusRuntimeException e) {
-            if (this.DEBUG) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] Frontend GET-TUPLE-SPACES-STATE request \u001B[31merror\u001B[0m: " + e.getMessage());
-            }
+
+        FrontendStateStreamMerger merger = new FrontendStateStreamMerger(this.DEBUG, currentRequestId, this.numServers, clientResponseObserver);
+
+        for (int i = 0; i < this.numServers; i++) {     // the request of the client is forwarded as it is
+            this.stubs[i].streamTupleSpacesState(clientRequest, merger.observer(i));
         }
     }
-}
 
+    /**
+     * this method is called when a GET-STATS request is received from the client
+     * it asks every server for its metrics and answers with them and the ones of the frontend (see FrontendStatsMerger),
+     * the handler returns right away
+     * 
+     * @param clientRequest the request received from the client
+     * @param clientResponseObserver the observer to send the metrics back to the client
+     */
+    @Override
+    public void getStats(TupleSpacesOuterClass.GetStatsRequest clientRequest, StreamObserver<TupleSpacesOuterClass.GetStatsResponse> clientResponseObserver) {
+        int currentRequestId = this.requestId.getAndIncrement();
+
+        if (this.DEBUG) {
+            System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received GET-STATS request (#%d) from client in %s\n", currentRequestId, Thread.currentThread().getName());
+        }
+
+        FrontendStatsMerger merger = new FrontendStatsMerger(this.DEBUG, currentRequestId, this.numServers, stats(), clientResponseObserver);
+
+        for (int i = 0; i < this.numServers; i++) {     // a server that is down doesn't hold the answer for long
+            this.stubs[i].withDeadlineAfter(5, TimeUnit.SECONDS).getStats(clientRequest, merger.observer(i));
+        }
+    }
+
+    /**
+     * @return the operation metrics of the frontend alone, for GET-STATS and the periodic dump
+     */
+    public TupleSpacesOuterClass.GetStatsResponse stats() {
+        return TupleSpacesOuterClass.GetStatsResponse
+                                    .newBuilder()
+                                    .setSource("frontend")
+                                    .addHistogram(histogramStats("put", this.putLatency, "us", 1000))
+                                    .addHistogram(histogramStats("read", this.readLatency, "us", 1000))
+                                    .addHistogram(histogramStats("take", this.takeLatency, "us", 1000))
+                                    .addHistogram(histogramStats("putAll", this.putAllLatency, "us", 1000))
+                                    .addHistogram(histogramStats("readAll", this.readAllLatency, "us", 1000))
+                                    .addHistogram(histogramStats("takeMany", this.takeManyLatency, "us", 1000))
+                                    .addHistogram(histogramStats("phase1", this.phase1Latency, "us", 1000))
+                                    .addHistogram(histogramStats("phase2", this.phase2Latency, "us", 1000))
+                                    .addHistogram(histogramStats("lockAttempts", this.lockAttempts, "rounds", 1))
+                                    .addHistogram(histogramStats("lockBackoff", this.retries.getWaits(), "us", 1000))
+                                    .putCounter("lockRetries", this.lockRetries.get())
+                                    .putCounter("lockRetriesWoken", this.retries.getWoken())
+                                    .putCounter("waiting", this.collector.getWaiting())
+                                    .build();
+    }
+
+    /**
+     * @param name the name of the histogram
+     * @param histogram the histogram
+     * @param unit the unit of the values reported
+     * @param scale what each recorded value is divided by, e.g. 1000 to report nanoseconds in microseconds
+     */
+    private static TupleSpacesOuterClass.HistogramStats histogramStats(String name, Histogram histogram, String unit, long scale) {
+        return TupleSpacesOuterClass.HistogramStats
+                                    .newBuilder()
+                                    .setName(name)
+                                    .setUnit(unit)
+                                    .setCount(histogram.getCount())
+                                    .setSum(histogram.getSum() / scale)
+                                    .setMax(histogram.getMax() / scale)
+                                    .setP50(histogram.getPercentile(0.5) / scale)
+                                    .setP90(histogram.getPercentile(0.9) / scale)
+                                    .setP99(histogram.getPercentile(0.99) / scale)
+                                    .setP999(histogram.getPercentile(0.999) / scale)
+                                    .build();
+    }
+
+    /**
+     * this method is called when a WATCH request is received from the client
+     * the request is forwarded to every server, and each tuple put is sent to the client once, by the first server
+     * that reports it (see FrontendWatchMerger), the handler returns right away
+     * 
+     * @param clientRequest the request received from the client
+     * @param clientResponseObserver the observer to send the tuples back to the client
+     */
+    @Override
+    public void watch(TupleSpacesOuterClass.WatchRequest clientRequest, StreamObserver<TupleSpacesOuterClass.WatchEvent> clientResponseObserver) {
+        int currentRequestId = this.requestId.getAndIncrement();
+
+        if (this.DEBUG) {
+            System.err.printf("\n[\u001B[34mDEBUG\u001B[0m] Frontend received WATCH request (#%d) from client in %s, %s", currentRequestId, Thread.currentThread().getName(), clientRequest);
+        }
+
+        FrontendWatchMerger merger = new FrontendWatchMerger(this.DEBUG, currentRequestId, this.numServers, clientResponseObserver);
+
+        for (int i = 0; i < this.numServers; i++) {     // the request of the client is forwarded as it is
+            this.stubs[i].watch(clientRequest, merger.observer(i));
+        }
+    }
+}
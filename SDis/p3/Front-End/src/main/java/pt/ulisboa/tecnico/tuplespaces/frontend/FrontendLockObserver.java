@@ -8,6 +8,7 @@ import io.grpc.stub.StreamObserver;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 
 public class FrontendLockObserver implements StreamObserver<TupleSpacesOuterClass.LockResponse> {
@@ -16,13 +17,15 @@ public class FrontendLockObserver implements StreamObserver<TupleSpacesOuterClas
     private final String request;
     private final int retryId;
     private ResponseCollector collector;
+    private final Consumer<List<String>> release;  // gives the locks back to the server, if the round no longer wants them
 
-    public FrontendLockObserver(int serverId, int requestId, String request, int retryId, ResponseCollector c) {
+    public FrontendLockObserver(int serverId, int requestId, String request, int retryId, ResponseCollector c, Consumer<List<String>> release) {
         this.serverId = serverId;
         this.requestId = requestId;
         this.request = request;
         this.retryId = retryId;
         this.collector = c;
+        this.release = release;
     }
 
     @Override
@@ -31,12 +34,15 @@ public class FrontendLockObserver implements StreamObserver<TupleSpacesOuterClas
         List<String> matches = new ArrayList<String>();
         for (int i = 0; i < len; i++) { matches.add(response.getMatch(i)); }
 
-        collector.addLockResponse("LOCK", this.requestId, this.request, matches, this.serverId, this.retryId);
+        if (!collector.addResponse(this.requestId, this.retryId, this.serverId, matches)) {
+            this.release.accept(matches);           // the round failed before this server answered
+        }
     }
 
     @Override
     public void onError(Throwable t) {
         System.out.println("LOCK error: " + t.getMessage());
+        collector.addFailure(this.requestId, this.retryId, this.serverId, t);
     }
 
     @Override
@@ -1,11 +1,18 @@
 package pt.ulisboa.tecnico.tuplespaces.frontend;
 
+import pt.ulisboa.tecnico.tuplespaces.common.ServerExecutors;
+import pt.ulisboa.tecnico.tuplespaces.common.StatsDump;
+
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerInterceptors;
 
 import java.io.IOException;
 import java.lang.InterruptedException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 
@@ -18,18 +25,62 @@ import java.lang.InterruptedException;
  */
 public class FrontendMain {
 
+    private static void printUsage() {
+        System.err.printf("Usage: java %s <port> <host-server-r1:port-server-r1> [<host-server-r2:port-server-r2> ...] [-debug] [-executor=<%s>] [-quorum=<%s>] [-backoff=<%s>] [-unlockWatch=<on|off>] [-stats=<file>] [-statsInterval=<seconds>]%n", FrontendMain.class.getName(), ServerExecutors.USAGE, QuorumSystem.USAGE, LockRetryScheduler.USAGE);
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException {
 
         System.out.println(FrontendMain.class.getSimpleName());
 
         // check arguments
-        if (args.length != 4 && args.length != 5) {
+        if (args.length < 2) {
             System.err.println("Invalid number of arguments");
-            System.err.printf("Usage: java %s <port> <host-server-r1:port-server-r1> <host-server-r2:port-server-r2> <host-server-r3:port-server-r3> [-debug]%n", FrontendMain.class.getName());
+            printUsage();
             return;
         }
 
-        final boolean DEBUG = (args.length == 5 && args[4].equals("-debug"));
+        boolean debug = false;
+        String executor = ServerExecutors.DEFAULT;
+        String quorum = QuorumSystem.DEFAULT;
+        String backoff = LockRetryScheduler.DEFAULT;
+        boolean unlockWatch = true;             // the LOCK retries also start when a server releases a lock
+        String statsFile = null;                // no dump, the stats are only sent to GET-STATS
+        int statsSeconds = 10;
+
+        // the servers come right after the port, the options after them
+        int numServers = 0;
+        while (1 + numServers < args.length && !args[1 + numServers].startsWith("-")) { numServers++; }
+
+        if (numServers == 0) {
+            System.err.println("No servers given");
+            printUsage();
+            return;
+        }
+
+        // the numeric options are checked below, a value that is not a number at all ends here
+        try {
+            for (int i = 1 + numServers; i < args.length; i++) {
+                if (args[i].equals("-debug")) { debug = true; }
+                else if (args[i].startsWith("-executor=")) { executor = args[i].substring("-executor=".length()); }
+                else if (args[i].startsWith("-quorum=")) { quorum = args[i].substring("-quorum=".length()); }
+                else if (args[i].startsWith("-backoff=")) { backoff = args[i].substring("-backoff=".length()); }
+                else if (args[i].equals("-unlockWatch=on") || args[i].equals("-unlockWatch=off")) { unlockWatch = args[i].endsWith("on"); }
+                else if (args[i].startsWith("-stats=")) { statsFile = args[i].substring("-stats=".length()); }
+                else if (args[i].startsWith("-statsInterval=")) { statsSeconds = Integer.parseInt(args[i].substring("-statsInterval=".length())); }
+                else {
+                    System.err.println("Invalid argument: " + args[i]);
+                    printUsage();
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number: " + e.getMessage());
+            printUsage();
+            return;
+        }
+
+        final boolean DEBUG = debug;
 
         if (DEBUG) {
             System.err.println("[\u001B[34mDEBUG\u001B[0m] Debug mode enabled");
@@ -38,34 +89,78 @@ public class FrontendMain {
             System.err.printf("[\u001B[34mDEBUG\u001B[0m] Received %d arguments%n", args.length);
             for (int i = 0; i < args.length; i++) {
                 System.err.printf("[\u001B[34mDEBUG\u001B[0m] arg[%d] = %s", i, args[i]);
-                if (i == 0 || i == 4) { System.err.println(); }
+                if (i == 0 || i > numServers) { System.err.println(); }
                 else { System.err.printf(" -------> \u001B[33mSERVER\u001B[0m %d%n", i-1); }
             }
         }
 
-        // TODO:    make frontend more robust by allowing for a variable number of servers
-        //          tip: look at lab 7 code (multi-step branch) for inspiration
-        //          for now, we assume there are exactly 3 servers
-        final int numServers = 3;
-
         final int port = Integer.parseInt(args[0]);
 
         final String[] servers = new String[numServers];
-        servers[0] = args[1];
-        servers[1] = args[2];
-        servers[2] = args[3];
+        System.arraycopy(args, 1, servers, 0, numServers);
+
+        final QuorumSystem quorums;
+        try {
+            quorums = QuorumSystem.parse(quorum, numServers);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        if (statsSeconds <= 0) {
+            System.err.println("Invalid stats interval: " + statsSeconds);
+            printUsage();
+            return;
+        }
 
         // create a new gRPC server instance on the specified port for client communication
-        Server server = ServerBuilder.forPort(port)
-                        .addService(ServerInterceptors.intercept(new FrontendImpl(DEBUG, numServers, servers), new HeaderServerInterceptor()))
-                        .build();
+        ServerBuilder<?> builder = ServerBuilder.forPort(port);
+        try {
+            ServerExecutors.configure(builder, executor);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        // the handlers never wait for the servers, the pauses before the LOCK retries are tasks on this timer
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "retry");
+            t.setDaemon(true);
+            return t;
+        });
+
+        final LockRetryScheduler retries;
+        try {
+            retries = LockRetryScheduler.parse(backoff, timer);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        FrontendImpl frontend = new FrontendImpl(DEBUG, servers, quorums, retries);
+        if (unlockWatch) { frontend.watchUnlocks(timer); }
+
+        // the stats are appended to the file every few seconds, and once more when the frontend stops
+        if (statsFile != null) {
+            StatsDump dump = new StatsDump(Paths.get(statsFile), frontend::stats);
+            ScheduledExecutorService dumps = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stats");
+                t.setDaemon(true);
+                return t;
+            });
+            dumps.scheduleAtFixedRate(dump, statsSeconds, statsSeconds, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(dump));
+        }
+
+        Server server = builder.addService(ServerInterceptors.intercept(frontend, new HeaderServerInterceptor()))
+                               .build();
 
         // start the server
         server.start();
         // server threads are running in the background
 
         if (DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend started, listening on port: %d\n\n", port);
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend started, listening on port: %d, executor: %s, %d servers, quorums: %s, LOCK retries: %s%s\n\n", port, executor, numServers, quorums, retries, unlockWatch ? " or on unlock" : "");
         }
 
         // do not exit the main thread. Wait until server is terminated.
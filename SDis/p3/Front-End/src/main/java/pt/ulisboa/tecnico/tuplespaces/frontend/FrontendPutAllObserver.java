@@ -0,0 +1,40 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * the FrontendPutAllObserver class is responsible for handling the PUT-ALL responses from a TupleSpaces server
+ * it handles the asynchronous responses from the server and forwards them to the ResponseCollector
+ * 
+ */
+public class FrontendPutAllObserver implements StreamObserver<TupleSpacesOuterClass.PutAllResponse> {
+    private final int serverId;
+    private final int requestId;
+    private final String request;
+    private ResponseCollector collector;
+
+    public FrontendPutAllObserver(int serverId, int requestId, String request, ResponseCollector c) {
+        this.serverId = serverId;
+        this.requestId = requestId;
+        this.request = request;
+        this.collector = c;
+    }
+
+    @Override
+    public void onNext(TupleSpacesOuterClass.PutAllResponse response) {
+        collector.addResponse(this.requestId, ResponseCollector.EXECUTE, this.serverId, response.getOk());   // same quorum as a PUT: every server
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        System.out.println("PUT-ALL error: " + t.getMessage());
+        collector.addFailure(this.requestId, ResponseCollector.EXECUTE, this.serverId, t);
+    }
+
+    @Override
+    public void onCompleted() {}
+}
@@ -35,7 +35,7 @@ public class FrontendPutObserver implements StreamObserver<TupleSpacesOuterClass
      */
     @Override
     public void onNext(TupleSpacesOuterClass.PutResponse response) {        
-        collector.addResponse("PUT", this.requestId, this.request, response.getOk(), this.serverId);
+        collector.addResponse(this.requestId, ResponseCollector.EXECUTE, this.serverId, response.getOk());
         // System.err.printf("[\u001B[34mDEBUG\u001B[0m] FrontendPutObserver: received PUT response from server %d: %s\n", this.serverId, response.getOk());
     }
 
@@ -47,6 +47,7 @@ public class FrontendPutObserver implements StreamObserver<TupleSpacesOuterClass
     @Override
     public void onError(Throwable t) {
         System.out.println("PUT error: " + t.getMessage());
+        collector.addFailure(this.requestId, ResponseCollector.EXECUTE, this.serverId, t);
     }
 
     /**
@@ -0,0 +1,46 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.stub.StreamObserver;
+import io.grpc.Status;
+
+
+/**
+ * the FrontendReadAllObserver class is responsible for handling the READ-ALL responses from a TupleSpaces server
+ * it handles the asynchronous responses from the server and forwards them to the ResponseCollector
+ * 
+ */
+public class FrontendReadAllObserver implements StreamObserver<TupleSpacesOuterClass.ReadAllResponse> {
+    private final int serverId;
+    private final int requestId;
+    private final String request;
+    private ResponseCollector collector;
+
+    public FrontendReadAllObserver(int serverId, int requestId, String request, ResponseCollector c) {
+        this.serverId = serverId;
+        this.requestId = requestId;
+        this.request = request;
+        this.collector = c;
+    }
+
+    @Override
+    public void onNext(TupleSpacesOuterClass.ReadAllResponse response) {
+        collector.addResponse(this.requestId, ResponseCollector.EXECUTE, this.serverId, response.getResultList());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        collector.addFailure(this.requestId, ResponseCollector.EXECUTE, this.serverId, t);
+
+        if (Status.fromThrowable(t).getCode().equals(Status.Code.CANCELLED)) { 
+            // ignore - loss of context
+            return;
+        }
+        System.err.printf("[\u001B[34mDEBUG\u001B[0m] FrontendReadAllObserver: error on READ-ALL request %d to server %d: %s\n", this.requestId, this.serverId, t.toString());
+    }
+
+    @Override
+    public void onCompleted() {}
+}
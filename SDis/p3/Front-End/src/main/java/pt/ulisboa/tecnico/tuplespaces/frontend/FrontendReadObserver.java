@@ -34,7 +34,7 @@ public class FrontendReadObserver implements StreamObserver<TupleSpacesOuterClas
      */
     @Override
     public void onNext(TupleSpacesOuterClass.ReadResponse response) {        
-        collector.addResponse("READ", this.requestId, this.request, response.getResult(), this.serverId);
+        collector.addResponse(this.requestId, ResponseCollector.EXECUTE, this.serverId, response.getResult());
         //System.err.printf("[\u001B[34mDEBUG\u001B[0m] FrontendReadObserver: received READ response from server %d: %s\n", this.serverId, response.getResult());
     }
 
@@ -45,6 +45,8 @@ public class FrontendReadObserver implements StreamObserver<TupleSpacesOuterClas
      */
     @Override
     public void onError(Throwable t) {
+        collector.addFailure(this.requestId, ResponseCollector.EXECUTE, this.serverId, t);
+
         if (Status.fromThrowable(t).getCode().equals(Status.Code.CANCELLED)) { 
             // ignore - loss of context
             return;
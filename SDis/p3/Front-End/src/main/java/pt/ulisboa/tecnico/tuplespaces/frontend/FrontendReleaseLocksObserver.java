@@ -0,0 +1,40 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * the FrontendReleaseLocksObserver class handles the answer of a server to a RELEASE-LOCKS
+ * only the next LOCK round of the client waits for it, and goes on even if it fails: if the release is lost, the locks
+ * are only held until the next TAKE of the client ends
+ */
+public class FrontendReleaseLocksObserver implements StreamObserver<TupleSpacesOuterClass.ReleaseLocksResponse> {
+    private final int serverId;
+    private final int requestId;
+    private final CompletableFuture<Void> answered;     // completed when the call ends, whatever the outcome
+
+    public FrontendReleaseLocksObserver(int serverId, int requestId, CompletableFuture<Void> answered) {
+        this.serverId = serverId;
+        this.requestId = requestId;
+        this.answered = answered;
+    }
+
+    @Override
+    public void onNext(TupleSpacesOuterClass.ReleaseLocksResponse response) {}
+
+    @Override
+    public void onError(Throwable t) {
+        System.out.printf("RELEASE-LOCKS error (#%d, server %d): %s\n", this.requestId, this.serverId, t.getMessage());
+        this.answered.complete(null);
+    }
+
+    @Override
+    public void onCompleted() {
+        this.answered.complete(null);
+    }
+}
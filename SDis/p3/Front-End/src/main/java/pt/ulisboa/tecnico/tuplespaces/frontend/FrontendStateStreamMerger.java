@@ -0,0 +1,144 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * the FrontendStateStreamMerger class merges the streamed GET-TUPLE-SPACES-STATE of every server into the stream sent to the client
+ * each chunk is forwarded as soon as it arrives, tagged with the server it came from, instead of collecting every state first
+ *
+ * the servers are pulled one chunk at a time (no automatic flow control): a server is only asked for its next chunk
+ * once the client can take more, so a slow client slows the servers down instead of filling the memory of the frontend
+ *
+ * NOTE: the chunks of the servers arrive on the threads of their channels, a ReentrantLock serializes them
+ *       (instead of synchronized, so a handler running on a virtual thread never pins its carrier thread)
+ */
+public class FrontendStateStreamMerger {
+
+    private final boolean DEBUG;
+    private final int requestId;
+    private final ServerCallStreamObserver<TupleSpacesOuterClass.TupleSpacesStateChunk> client;
+    private final List<ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest>> servers;  // request side of each server call, to pull or cancel
+    private final ArrayDeque<ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest>> paused; // server calls waiting for the client to be ready
+    private final ReentrantLock lock;           // protects everything below and the calls to client
+    private int open;                           // server streams not completed yet
+    private boolean finished;                   // the client call was completed, failed or cancelled
+
+
+    public FrontendStateStreamMerger(boolean debug, int requestId, int numServers, StreamObserver<TupleSpacesOuterClass.TupleSpacesStateChunk> client) {
+        this.DEBUG = debug;
+        this.requestId = requestId;
+        this.client = (ServerCallStreamObserver<TupleSpacesOuterClass.TupleSpacesStateChunk>) client;
+        this.servers = new ArrayList<ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest>>();
+        this.paused = new ArrayDeque<ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest>>();
+        this.lock = new ReentrantLock();
+        this.open = numServers;
+
+        this.client.setOnReadyHandler(this::resume);
+        this.client.setOnCancelHandler(this::cancel);
+    }
+
+    /**
+     * @param serverId the server the observer receives the chunks of
+     * @return the observer to pass to the call to that server
+     */
+    public ClientResponseObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest, TupleSpacesOuterClass.TupleSpacesStateChunk> observer(int serverId) {
+        return new ClientResponseObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest, TupleSpacesOuterClass.TupleSpacesStateChunk>() {
+            private ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest> call;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest> call) {
+                this.call = call;
+                call.disableAutoRequestWithInitial(1);     // only the first chunk, the next ones are pulled by forward
+                lock.lock();
+                try { servers.add(call); } finally { lock.unlock(); }
+            }
+
+            @Override
+            public void onNext(TupleSpacesOuterClass.TupleSpacesStateChunk chunk) { forward(serverId, chunk, this.call); }
+
+            @Override
+            public void onError(Throwable t) { fail(serverId, t); }
+
+            @Override
+            public void onCompleted() { complete(serverId); }
+        };
+    }
+
+    private void forward(int serverId, TupleSpacesOuterClass.TupleSpacesStateChunk chunk, ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest> call) {
+        lock.lock();
+        try {
+            if (this.finished) { return; }
+
+            this.client.onNext(chunk.toBuilder().setServer(serverId).build());
+
+            if (this.client.isReady()) { call.request(1); }
+            else { this.paused.add(call); }                 // resumed by the onReady of the client
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void resume() {
+        lock.lock();
+        try {
+            while (!this.finished && this.client.isReady() && !this.paused.isEmpty()) { this.paused.poll().request(1); }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(int serverId) {
+        lock.lock();
+        try {
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend received the whole STREAM-TUPLE-SPACES-STATE (#%d) of server %d\n", this.requestId, serverId);
+            }
+            if (--this.open > 0 || this.finished) { return; }
+
+            this.finished = true;
+            this.client.onCompleted();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(int serverId, Throwable t) {
+        lock.lock();
+        try {
+            if (this.finished) { return; }                 // cancelled by us or by the client
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend STREAM-TUPLE-SPACES-STATE (#%d) \u001B[31merror\u001B[0m from server %d: %s\n", this.requestId, serverId, t.getMessage());
+            }
+            this.finished = true;
+            for (ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest> call : this.servers) { call.cancel("another server failed", null); }
+            this.client.onError(Status.fromThrowable(t).augmentDescription("server " + serverId).asRuntimeException());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancel() {
+        lock.lock();
+        try {
+            this.finished = true;
+            for (ClientCallStreamObserver<TupleSpacesOuterClass.StreamTupleSpacesStateRequest> call : this.servers) { call.cancel("client cancelled", null); }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
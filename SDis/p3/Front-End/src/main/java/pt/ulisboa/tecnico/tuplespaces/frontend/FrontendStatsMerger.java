@@ -0,0 +1,73 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * FrontendStatsMerger answers a GET-STATS request with the metrics of the frontend and the ones of every server,
+ * once every server answered or failed (a server that fails is reported with an empty source)
+ */
+public class FrontendStatsMerger {
+
+    private final boolean DEBUG;
+    private final int requestId;
+    private final TupleSpacesOuterClass.GetStatsResponse own;           // the metrics of the frontend
+    private final TupleSpacesOuterClass.GetStatsResponse[] servers;     // the metrics of each server, as they arrive
+    private final AtomicInteger remaining;                              // servers that didn't answer or fail yet
+    private final StreamObserver<TupleSpacesOuterClass.GetStatsResponse> client;
+
+
+    public FrontendStatsMerger(boolean debug, int requestId, int numServers, TupleSpacesOuterClass.GetStatsResponse own, StreamObserver<TupleSpacesOuterClass.GetStatsResponse> client) {
+        this.DEBUG = debug;
+        this.requestId = requestId;
+        this.own = own;
+        this.servers = new TupleSpacesOuterClass.GetStatsResponse[numServers];
+        this.remaining = new AtomicInteger(numServers);
+        this.client = client;
+    }
+
+    /**
+     * @param serverId the server
+     * @return the observer of the GET-STATS call to the server
+     */
+    public StreamObserver<TupleSpacesOuterClass.GetStatsResponse> observer(int serverId) {
+        return new StreamObserver<TupleSpacesOuterClass.GetStatsResponse>() {
+            @Override
+            public void onNext(TupleSpacesOuterClass.GetStatsResponse response) {
+                servers[serverId] = response;               // written before the decrement in onCompleted, read after the last one
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (DEBUG) {
+                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend GET-STATS request (#%d) to server %d \u001B[31merror\u001B[0m: %s\n", requestId, serverId, t.getMessage());
+                }
+                done();
+            }
+
+            @Override
+            public void onCompleted() { done(); }
+        };
+    }
+
+    private void done() {
+        if (this.remaining.decrementAndGet() > 0) { return; }
+
+        TupleSpacesOuterClass.GetStatsResponse.Builder response = this.own.toBuilder();
+        for (TupleSpacesOuterClass.GetStatsResponse server : this.servers) {
+            response.addServer((server != null) ? server : TupleSpacesOuterClass.GetStatsResponse.getDefaultInstance());
+        }
+
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend sending GET-STATS response (#%d) back to client\n\n", this.requestId);
+        }
+
+        this.client.onNext(response.build());
+        this.client.onCompleted();
+    }
+}
@@ -0,0 +1,41 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * the FrontendTakeManyObserver class is responsible for handling the TAKE-EXACT-ALL responses from a TupleSpaces server,
+ * the second phase of a TAKE-MANY
+ * it handles the asynchronous responses from the server and forwards them to the ResponseCollector
+ * 
+ */
+public class FrontendTakeManyObserver implements StreamObserver<TupleSpacesOuterClass.TakeManyResponse> {
+    private final int serverId;
+    private final int requestId;
+    private final String request;
+    private ResponseCollector collector;
+
+    public FrontendTakeManyObserver(int serverId, int requestId, String request, ResponseCollector c) {
+        this.serverId = serverId;
+        this.requestId = requestId;
+        this.request = request;
+        this.collector = c;
+    }
+
+    @Override
+    public void onNext(TupleSpacesOuterClass.TakeManyResponse response) {
+        collector.addResponse(this.requestId, ResponseCollector.EXECUTE, this.serverId, response.getResultList());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        System.out.println("TAKE-MANY error: " + t.getMessage());
+        collector.addFailure(this.requestId, ResponseCollector.EXECUTE, this.serverId, t);
+    }
+
+    @Override
+    public void onCompleted() {}
+}
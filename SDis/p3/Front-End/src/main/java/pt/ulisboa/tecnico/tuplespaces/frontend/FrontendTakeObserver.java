@@ -33,7 +33,7 @@ public class FrontendTakeObserver implements StreamObserver<TupleSpacesOuterClas
      */
     @Override
     public void onNext(TupleSpacesOuterClass.TakeResponse response) {        
-        collector.addResponse("TAKE", this.requestId, this.request, response.getResult(), this.serverId);
+        collector.addResponse(this.requestId, ResponseCollector.EXECUTE, this.serverId, response.getResult());
         //System.err.printf("[\u001B[34mDEBUG\u001B[0m] FrontendTakeObserver: received TAKE response from server %d: %s\n", this.serverId, response.getResult());
     }
 
@@ -45,6 +45,7 @@ public class FrontendTakeObserver implements StreamObserver<TupleSpacesOuterClas
     @Override
     public void onError(Throwable t) {
         System.out.println("TAKE error: " + t.getMessage());
+        collector.addFailure(this.requestId, ResponseCollector.EXECUTE, this.serverId, t);
     }
 
     /**
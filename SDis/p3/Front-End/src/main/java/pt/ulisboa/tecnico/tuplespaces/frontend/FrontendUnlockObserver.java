@@ -0,0 +1,49 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.stub.StreamObserver;
+
+
+/**
+ * the FrontendUnlockObserver class receives the WATCH-UNLOCKS stream of a server: every lock it releases cuts the pause
+ * of the LOCK retries whose pattern matches the tuple, except the ones of the client that released it
+ * (see LockRetryScheduler)
+ *
+ * the stream lasts as long as the frontend, if it ends (e.g. the server is down) it is opened again after a while
+ */
+public class FrontendUnlockObserver implements StreamObserver<TupleSpacesOuterClass.WatchEvent> {
+    private final boolean DEBUG;
+    private final int serverId;
+    private final LockRetryScheduler retries;
+    private final Runnable reopen;          // opens the stream again, after a pause
+
+    public FrontendUnlockObserver(boolean debug, int serverId, LockRetryScheduler retries, Runnable reopen) {
+        this.DEBUG = debug;
+        this.serverId = serverId;
+        this.retries = retries;
+        this.reopen = reopen;
+    }
+
+    @Override
+    public void onNext(TupleSpacesOuterClass.WatchEvent event) {
+        int woken = this.retries.wake(event.getTuple(), event.getClientId());
+        if (this.DEBUG && woken > 0) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server %d released the lock of %s, cut the pause of %d LOCK retries\n", this.serverId, event.getTuple(), woken);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] WATCH-UNLOCKS of server %d failed: %s\n", this.serverId, t.getMessage());
+        }
+        this.reopen.run();
+    }
+
+    @Override
+    public void onCompleted() {
+        this.reopen.run();
+    }
+}
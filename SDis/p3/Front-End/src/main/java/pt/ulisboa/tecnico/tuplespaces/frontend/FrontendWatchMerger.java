@@ -0,0 +1,173 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * the FrontendWatchMerger class merges the WATCH streams of every server into the stream sent to the client
+ * every server reports every PUT, with the same putId, so a tuple is forwarded by the first server that reports it
+ * and the reports of the other servers are dropped
+ *
+ * seen = {"3fa2:17": 1, "3fa2:18": 2}      putId -> servers that reported it so far, forgotten once every server did
+ *                                          (or when it is among the oldest MAX_SEEN, if a server dropped it)
+ *
+ * the servers are pulled one tuple at a time, as in FrontendStateStreamMerger: while the client is not ready the
+ * servers are not asked for more, so their own bounded queues fill up instead of the memory of the frontend
+ *
+ * missed, the number of tuples a server dropped because the subscriber was too slow, is only known per server;
+ * the client gets an estimate, the smallest number dropped by any server not reported yet
+ */
+public class FrontendWatchMerger {
+
+    public static final int MAX_SEEN = 65536;
+
+    private final boolean DEBUG;
+    private final int requestId;
+    private final ServerCallStreamObserver<TupleSpacesOuterClass.WatchEvent> client;
+    private final List<ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest>> servers;      // request side of each server call, to pull or cancel
+    private final ArrayDeque<ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest>> paused;  // server calls waiting for the client to be ready
+    private final Map<String, Integer> seen;
+    private final long[] missed;                // tuples dropped by each server since the WATCH started
+    private final ReentrantLock lock;           // protects everything below and the calls to client
+    private long reportedMissed;                // tuples reported to the client as missed
+    private int live;                           // server streams still open
+    private boolean finished;                   // the client call was failed or cancelled
+
+
+    public FrontendWatchMerger(boolean debug, int requestId, int numServers, StreamObserver<TupleSpacesOuterClass.WatchEvent> client) {
+        this.DEBUG = debug;
+        this.requestId = requestId;
+        this.client = (ServerCallStreamObserver<TupleSpacesOuterClass.WatchEvent>) client;
+        this.servers = new ArrayList<ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest>>();
+        this.paused = new ArrayDeque<ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest>>();
+        this.seen = new LinkedHashMap<String, Integer>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) { return size() > MAX_SEEN; }
+        };
+        this.missed = new long[numServers];
+        this.lock = new ReentrantLock();
+        this.live = numServers;
+
+        this.client.setOnReadyHandler(this::resume);
+        this.client.setOnCancelHandler(this::cancel);
+    }
+
+    /**
+     * @param serverId the server the observer receives the tuples of
+     * @return the observer to pass to the call to that server
+     */
+    public ClientResponseObserver<TupleSpacesOuterClass.WatchRequest, TupleSpacesOuterClass.WatchEvent> observer(int serverId) {
+        return new ClientResponseObserver<TupleSpacesOuterClass.WatchRequest, TupleSpacesOuterClass.WatchEvent>() {
+            private ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest> call;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest> call) {
+                this.call = call;
+                call.disableAutoRequestWithInitial(1);     // only the first tuple, the next ones are pulled by forward
+                lock.lock();
+                try { servers.add(call); } finally { lock.unlock(); }
+            }
+
+            @Override
+            public void onNext(TupleSpacesOuterClass.WatchEvent event) { forward(serverId, event, this.call); }
+
+            @Override
+            public void onError(Throwable t) { lost(serverId, t); }
+
+            @Override
+            public void onCompleted() { lost(serverId, null); }
+        };
+    }
+
+    private void forward(int serverId, TupleSpacesOuterClass.WatchEvent event, ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest> call) {
+        lock.lock();
+        try {
+            if (this.finished) { return; }
+
+            this.missed[serverId] += event.getMissed();
+            if (this.DEBUG && event.getMissed() > 0) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend WATCH (#%d): server %d dropped %d tuples\n", this.requestId, serverId, event.getMissed());
+            }
+
+            if (isFirstReport(event.getPutId())) {
+                long missedByAll = Long.MAX_VALUE;
+                for (long m : this.missed) { missedByAll = Math.min(missedByAll, m); }
+
+                this.client.onNext(event.toBuilder().setMissed(missedByAll - this.reportedMissed).build());
+                this.reportedMissed = missedByAll;
+            }
+
+            if (this.client.isReady()) { call.request(1); }
+            else { this.paused.add(call); }                 // resumed by the onReady of the client
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param putId the identifier of the PUT reported by a server
+     * @return true if no other server reported it before
+     */
+    private boolean isFirstReport(String putId) {
+        if (putId.isEmpty()) { return true; }              // not a PUT made through a frontend, can't be matched
+
+        int reports = this.seen.merge(putId, 1, Integer::sum);
+        if (reports >= this.live) { this.seen.remove(putId); }  // every server reported it, no more copies to drop
+        return reports == 1;
+    }
+
+    private void resume() {
+        lock.lock();
+        try {
+            while (!this.finished && this.client.isReady() && !this.paused.isEmpty()) { this.paused.poll().request(1); }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * a server stream ended: the other servers keep the WATCH going, the client only gets an error once every server is gone
+     */
+    private void lost(int serverId, Throwable t) {
+        lock.lock();
+        try {
+            if (this.finished) { return; }                 // cancelled by the client
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Frontend WATCH (#%d) lost server %d: %s\n", this.requestId, serverId, (t == null) ? "completed" : t.getMessage());
+            }
+            this.missed[serverId] = Long.MAX_VALUE;         // no longer counts for the estimate of missed
+            if (--this.live > 0) { return; }
+
+            this.finished = true;
+            this.client.onError(Status.UNAVAILABLE.withDescription("WATCH lost every server").withCause(t).asRuntimeException());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancel() {
+        lock.lock();
+        try {
+            this.finished = true;
+            for (ClientCallStreamObserver<TupleSpacesOuterClass.WatchRequest> call : this.servers) { call.cancel("client cancelled", null); }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * GridQuorumSystem lays the servers out in a grid of ceil(sqrt(N)) columns and takes a whole row and a whole column
+ * as the voter set, about 2*sqrt(N) servers (Maekawa's quorums)
+ *
+ * e.g. N = 9       0 1 2       client 4: row 1 and column 1 => {1, 3, 4, 5, 7}
+ *                  3 4 5
+ *                  6 7 8
+ *
+ * two voter sets share a server where the row of one crosses the column of the other; when the last row is not full,
+ * only the full rows are chosen as rows, so that crossing always exists
+ */
+public class GridQuorumSystem implements QuorumSystem {
+
+    private final int numServers;
+    private final int columns;
+    private final int fullRows;
+
+
+    public GridQuorumSystem(int numServers) {
+        this.numServers = numServers;
+        this.columns = (int) Math.ceil(Math.sqrt(numServers));
+        this.fullRows = numServers / this.columns;
+    }
+
+    @Override
+    public int[] voters(int clientId) {
+        int client = Math.floorMod(clientId, this.fullRows * this.columns);
+        int row = client % this.fullRows;
+        int column = client / this.fullRows;
+
+        List<Integer> voters = new ArrayList<Integer>();
+        for (int server = 0; server < this.numServers; server++) {
+            if (server / this.columns == row || server % this.columns == column) { voters.add(server); }
+        }
+
+        return voters.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Override
+    public String toString() {
+        return "grid of " + this.columns + " columns";
+    }
+}
@@ -0,0 +1,197 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+import pt.ulisboa.tecnico.tuplespaces.common.Histogram;
+import pt.ulisboa.tecnico.tuplespaces.common.PatternCache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * the LockRetryScheduler class decides when a LOCK round whose voters had no common tuple is retried
+ *
+ * the pause grows exponentially with the round, from first up to cap, and is drawn at random between half of it and
+ * all of it, so the clients that collided don't collide again in lockstep:
+ *
+ * round    0        1        2        ...      n
+ * pause    ~first   ~2first  ~4first           ~min(cap, first * 2^n)
+ *
+ * a retry also starts earlier when a server reports that a lock of a tuple that matches its pattern was released (see
+ * wake and FrontendUnlockObserver): the pause is cut to its first half, or ends at once if that is already over; the
+ * timer is then only a fallback for the releases that are not reported
+ *
+ * the round that failed gives back its unused locks right before its pause, and so does the round of the client it
+ * collided with, so a release is often only the other end of the same collision: the releases of the client of the
+ * retry itself don't count, and the half of the pause that is kept, drawn at random as the pause itself, keeps the
+ * clients that collided from retrying in lockstep
+ *
+ * the waiting retries are grouped by pattern, so a release only tests each distinct pattern once against its tuple
+ */
+public class LockRetryScheduler {
+
+    public static final String USAGE = "<first ms>:<cap ms>";
+    public static final String DEFAULT = "2:1000";
+
+    private final long firstNanos;
+    private final long capNanos;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentHashMap<String, Map<Integer, Retry>> waiting;  // the retries whose pause is not over, by pattern and requestId
+    private final PatternCache patterns = new PatternCache();       // compiled as the servers do, to test the released tuples
+
+    private final Histogram waits = new Histogram();                // pause before each retry, until the timer or a release (nanoseconds)
+    private final AtomicLong woken = new AtomicLong();              // retries whose pause was cut by a release
+
+
+    /**
+     * a LOCK round waiting for its pause to end, started once, by the timer at the end of the pause or of its first half
+     */
+    private class Retry implements Runnable {
+        private final int requestId;
+        private final int clientId;
+        private final String pattern;
+        private final Runnable round;
+        private final long pause;
+        private final long scheduled = System.nanoTime();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;                // the end of the pause, null until it is scheduled
+
+        Retry(int requestId, int clientId, String pattern, Runnable round, long pause) {
+            this.requestId = requestId;
+            this.clientId = clientId;
+            this.pattern = pattern;
+            this.round = round;
+            this.pause = pause;
+        }
+
+        @Override
+        public void run() {
+            if (!this.started.compareAndSet(false, true)) { return; }
+
+            // the groups are only changed inside compute, so a retry is never added to a group that was just dropped
+            waiting.computeIfPresent(this.pattern, (pattern, group) -> {
+                group.remove(this.requestId, this);
+                return group.isEmpty() ? null : group;
+            });
+            waits.record(System.nanoTime() - this.scheduled);
+            this.round.run();
+        }
+    }
+
+
+    public LockRetryScheduler(long firstMillis, long capMillis, ScheduledExecutorService timer) {
+        this.firstNanos = TimeUnit.MILLISECONDS.toNanos(firstMillis);
+        this.capNanos = TimeUnit.MILLISECONDS.toNanos(capMillis);
+        this.timer = timer;
+        this.waiting = new ConcurrentHashMap<String, Map<Integer, Retry>>();
+    }
+
+    /**
+     * @param spec the first pause and the cap, see USAGE
+     * @param timer the timer the retries are started on
+     * @return the scheduler
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    public static LockRetryScheduler parse(String spec, ScheduledExecutorService timer) {
+        String[] parts = spec.split(":");
+        if (parts.length != 2) { throw new IllegalArgumentException("Invalid backoff: " + spec + ", expected " + USAGE); }
+
+        long first, cap;
+        try {
+            first = Long.parseLong(parts[0]);
+            cap = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid backoff: " + spec + ", expected " + USAGE);
+        }
+        if (first <= 0 || cap < first) {
+            throw new IllegalArgumentException("Invalid backoff: " + spec + ", the first pause must be positive and at most the cap");
+        }
+        return new LockRetryScheduler(first, cap, timer);
+    }
+
+    /**
+     * @param round the number of the LOCK round that failed, 0 for the first one
+     * @return the pause before the next round, in nanoseconds
+     */
+    public long pause(int round) {
+        boolean overflows = round >= Long.numberOfLeadingZeros(this.firstNanos) - 1;
+        long pause = overflows ? this.capNanos : Math.min(this.capNanos, this.firstNanos << round);
+        return ThreadLocalRandom.current().nextLong(pause / 2, pause + 1);
+    }
+
+    /**
+     * starts the next LOCK round of a request after the pause of the round that failed, or earlier if a lock is released
+     *
+     * @param requestId the request ID
+     * @param clientId the client of the request, its own releases don't start the round early
+     * @param pattern the pattern of the LOCK, only a release of a tuple that matches it starts the round early
+     * @param round the number of the LOCK round that failed
+     * @param next the next round, already bound to the gRPC Context of the request
+     * @return the pause, in nanoseconds
+     */
+    public long schedule(int requestId, int clientId, String pattern, int round, Runnable next) {
+        long pause = pause(round);
+        Retry retry = new Retry(requestId, clientId, pattern, next, pause);
+
+        this.waiting.compute(pattern, (p, group) -> {
+            if (group == null) { group = new ConcurrentHashMap<Integer, Retry>(); }
+            group.put(requestId, retry);
+            return group;
+        });
+        retry.timeout = this.timer.schedule(retry, pause, TimeUnit.NANOSECONDS);   // without holding a thread
+        return pause;
+    }
+
+    /**
+     * cuts to its first half the pause of every retry whose pattern matches a tuple a server released the lock of, and
+     * starts it on the timer when that half is over; the other retries, and the ones of the client that released the lock,
+     * keep their whole pause
+     *
+     * @param tuple the tuple released
+     * @param releasedBy the client that released the lock
+     * @return the number of retries whose pause was cut
+     */
+    public int wake(String tuple, int releasedBy) {
+        int cut = 0;
+
+        for (Map.Entry<String, Map<Integer, Retry>> entry : this.waiting.entrySet()) {
+            if (!this.patterns.get(entry.getKey()).matcher(tuple).matches()) { continue; }
+
+            Map<Integer, Retry> group = entry.getValue();
+            for (Retry retry : group.values()) {
+                if (retry.clientId == releasedBy) { continue; }               // its own release, the pause goes on
+                if (!group.remove(retry.requestId, retry)) { continue; }      // started or cut in the meantime
+
+                ScheduledFuture<?> timeout = retry.timeout;
+                if (timeout != null) { timeout.cancel(false); }
+                this.woken.incrementAndGet();
+                long left = retry.scheduled + retry.pause / 2 - System.nanoTime();
+                if (left > 0) { retry.timeout = this.timer.schedule(retry, left, TimeUnit.NANOSECONDS); }
+                else { this.timer.execute(retry); }
+                cut++;
+            }
+            this.waiting.computeIfPresent(entry.getKey(), (pattern, g) -> g.isEmpty() ? null : g);
+        }
+        return cut;
+    }
+
+    public Histogram getWaits() { return waits; }
+
+    public long getWoken() { return woken.get(); }
+
+    public int getWaiting() {
+        int size = 0;
+        for (Map<Integer, Retry> group : this.waiting.values()) { size += group.size(); }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "backoff " + TimeUnit.NANOSECONDS.toMillis(this.firstNanos) + "-" + TimeUnit.NANOSECONDS.toMillis(this.capNanos) + " ms";
+    }
+}
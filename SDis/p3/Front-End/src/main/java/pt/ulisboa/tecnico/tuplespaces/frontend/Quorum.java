@@ -0,0 +1,101 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * the Quorum class collects the responses of the servers to a single round of a request (see ResponseCollector)
+ * and completes its future as soon as enough of them arrived
+ *
+ * each response costs a couple of atomic operations, whatever the number of requests in flight
+ * the round fails as soon as so many servers failed that the quorum can no longer be reached
+ *
+ * @param <T> the type of the responses
+ */
+public class Quorum<T> {
+
+    private final AtomicReferenceArray<T> responses;            // by server, null until it answers
+    private final int asked;                                    // servers the request was sent to
+    private final int needed;                                   // responses that complete the round
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final CompletableFuture<List<T>> future = new CompletableFuture<List<T>>();
+
+
+    /**
+     * @param numServers the number of servers, the largest server id plus one
+     * @param asked the number of servers the request is sent to
+     * @param needed the number of responses to wait for
+     */
+    public Quorum(int numServers, int asked, int needed) {
+        this.responses = new AtomicReferenceArray<T>(numServers);
+        this.asked = asked;
+        this.needed = needed;
+    }
+
+    /**
+     * @return completes with the responses by server (null for the servers that didn't answer in time), or with the
+     *         StatusRuntimeException of the last server failure that made the quorum unreachable
+     */
+    public CompletableFuture<List<T>> getFuture() { return this.future; }
+
+    /**
+     * @return false if the round had already failed, so the response is of no use to it
+     */
+    public boolean add(int serverId, T response) {
+        this.responses.set(serverId, response);
+        if (this.received.incrementAndGet() == this.needed) { this.future.complete(snapshot()); }
+        return !this.future.isCompletedExceptionally();
+    }
+
+    public void fail(int serverId, Throwable t) {
+        if (this.failed.incrementAndGet() == this.asked - this.needed + 1) {
+            this.future.completeExceptionally((t instanceof StatusRuntimeException) ? t : Status.fromThrowable(t).asRuntimeException());
+        }
+    }
+
+    /**
+     * @return the responses received so far, by server (null for the servers that didn't answer), e.g. to undo what
+     *         the servers did for a round that failed
+     */
+    public List<T> getReceived() { return snapshot(); }
+
+    private List<T> snapshot() {
+        List<T> byServer = new ArrayList<T>(this.responses.length());
+        for (int i = 0; i < this.responses.length(); i++) { byServer.add(this.responses.get(i)); }
+        return byServer;
+    }
+
+    /**
+     * fails the round as soon as the client of the request gives up (deadline or cancellation), so it doesn't wait
+     * for the servers in vain
+     *
+     * @param context the gRPC Context of the request
+     */
+    public void cancelWith(Context context) {
+        Context.CancellationListener giveUp = c -> this.future.completeExceptionally(Contexts.statusFromCancelled(c).asRuntimeException());
+
+        context.addListener(giveUp, Runnable::run);
+        this.future.whenComplete((responses, t) -> context.removeListener(giveUp));
+    }
+
+    /**
+     * @return the first response in the order of the servers, or null if there is none
+     */
+    public static <T> T first(List<T> responses) {
+        for (T response : responses) {
+            if (response != null) { return response; }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+import java.util.Arrays;
+
+
+/**
+ * QuorumSystem chooses the voter set of a client, the servers a TAKE locks its tuples in (phase 1)
+ * any two voter sets share at least one server, so two clients can't both lock the same tuple in all of their voters
+ *
+ * majority                 the next floor(N/2)+1 servers from clientId % N                     N=3: 2, N=9: 5, N=25: 13
+ * grid                     a row and a column of the servers laid out in a sqrt(N) grid        N=3: 2-3, N=9: 5, N=25: 9
+ * weighted:<w0>,...        the heaviest servers (ties from clientId % N) until they hold more than half of the weight
+ *
+ * PUT and phase 2 of TAKE still go to every server and READ to any of them, so the voter sets only need to intersect
+ * one another
+ */
+public interface QuorumSystem {
+
+    String USAGE = "majority | grid | weighted:<w1>,...,<wN>";
+    String DEFAULT = "majority";
+
+    /**
+     * @param clientId the client
+     * @return the servers of its voter set, always the same for the same client
+     */
+    int[] voters(int clientId);
+
+    /**
+     * @param spec the quorum system, see USAGE
+     * @param numServers the number of servers
+     * @return the quorum system
+     * @throws IllegalArgumentException if the spec is not valid
+     */
+    static QuorumSystem parse(String spec, int numServers) {
+        if (spec.equals("majority")) {
+            int[] weights = new int[numServers];
+            Arrays.fill(weights, 1);
+            return new WeightedQuorumSystem(weights);
+        }
+        else if (spec.equals("grid")) {
+            return new GridQuorumSystem(numServers);
+        }
+        else if (spec.startsWith("weighted:")) {
+            String[] parts = spec.substring("weighted:".length()).split(",");
+            if (parts.length != numServers) {
+                throw new IllegalArgumentException("Invalid quorum system: " + spec + ", it needs one weight per server (" + numServers + ")");
+            }
+
+            int[] weights = new int[numServers];
+            try {
+                for (int i = 0; i < numServers; i++) { weights[i] = Integer.parseInt(parts[i]); }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid quorum system: " + spec);
+            }
+            for (int weight : weights) {
+                if (weight <= 0) { throw new IllegalArgumentException("Invalid quorum system: " + spec + ", the weights must be positive"); }
+            }
+            return new WeightedQuorumSystem(weights);
+        }
+        else {
+            throw new IllegalArgumentException("Invalid quorum system: " + spec);
+        }
+    }
+}
@@ -1,240 +1,87 @@
 package pt.ulisboa.tecnico.tuplespaces.frontend;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
  * the ResponseCollector class is responsible for collecting the responses from the TupleSpaces servers
  * it collects the responses from the servers through the observers
+ *
+ * every round of a request that waits for the servers has its own Quorum, registered before the request is sent
+ *
+ * | requestId | round |          quorum           |
+ * |     1     |  -1   | PUT, N of N servers       |
+ * |     2     |   0   | LOCK, V of V voters       |
+ * |     2     |   1   | LOCK (retry), V of V      |
+ * |     2     |  -1   | TAKE-EXACT, N of N        |
+ *
+ * a response finds its quorum in O(1) and the quorum is removed as soon as it completes (or fails, or its client gives
+ * up), so the table only holds the rounds in flight; responses that arrive later (e.g. the READs of the slower servers)
+ * are dropped
  */
 public class ResponseCollector {
 
-    private ArrayList<ResponseEntry> collectedHistory;          // table with all the PUT/READ/TAKE responses received from the servers
-                                                                // | requestType | requestId | request | response | serverId |
-                                                                // |     PUT     |     1     |   ...   |   ...    |    0     |
-                                                                // |     PUT     |     1     |   ...   |   ...    |    1     |
-                                                                // |     PUT     |     1     |   ...   |   ...    |    2     |
+    public static final int EXECUTE = -1;                      // the round that executes the operation, the LOCK rounds are numbered from 0
 
-    private ArrayList<ResponseLockEntry> collectedLockHistory;  // table with all the LOCK/UNLOCK responses received from the servers
-                                                                // | requestType | requestId | request | response | serverId | retryId |
-                                                                // |     LOCK    |     1     |   ...   |   ...    |    0     |    0    |
-                                                                // |     LOCK    |     1     |   ...   |   ...    |    2     |    0    |
-                                                                // |     LOCK    |     1     |   ...   |   ...    |    0     |    1    |
-                                                                // |     LOCK    |     1     |   ...   |   ...    |    2     |    1    |
-                                                                // |    UNLOCK   |     1     |   ...   |   ...    |    0     |    1    |
-                                                                // |    UNLOCK   |     1     |   ...   |   ...    |    2     |    1    |
+    private final int numServers;
+    private final ConcurrentHashMap<Long, Quorum<?>> pending;  // the rounds waiting for the servers, by requestId and round
 
-    private ArrayList<ResponseGetEntry> collectedGetHistory;    // table with all the GET responses received from the servers
-                                                                // | requestId |    response    | serverId |
-                                                                // |     1     | [<1,2>, <3,4>] |    0     |
-                                                                // |     1     | [<1,2>, <3,4>] |    1     |
-                                                                // |     1     | [<1,2>, <3,4>] |    2     |
 
-
-    public ResponseCollector() {
-        this.collectedHistory = new ArrayList<ResponseEntry>();
-        this.collectedLockHistory = new ArrayList<ResponseLockEntry>();
-        this.collectedGetHistory = new ArrayList<ResponseGetEntry>();
+    public ResponseCollector(int numServers) {
+        this.numServers = numServers;
+        this.pending = new ConcurrentHashMap<Long, Quorum<?>>();
     }
 
-
     /**
-     * this method is used to add a response to the collected history
-     * @param requestType the type of the request (PUT, READ, TAKE)
-     * @param requestId the request ID
-     * @param request the request
-     * @param response the response
-     * @param serverId the server ID
+     * @return the number of rounds waiting for the servers right now
      */
-    public synchronized void addResponse(String requestType, int requestId, String request, String response, int serverId) {
-        this.collectedHistory.add(new ResponseEntry(requestType, requestId, request, response, serverId));
-        notifyAll();
-    }
+    public int getWaiting() { return this.pending.size(); }
 
     /**
-     * this method is used to get the response for a given request ID
-     * NOTE: requests IDs are unique! in the table, there are 3 entries for each request ID, one for each server
-     * 
+     * registers a round of a request, before it is sent to the servers
+     *
      * @param requestId the request ID
-     * @param requestType the type of the request (PUT, READ, TAKE)
-     * @return the response for the given request ID
-     */
-    public synchronized String getResponse(int requestId, String requestType) {
-        if (requestType.equals("PUT")) {
-            int requestsCounter = 0;
-            int okCounter = 0;
-
-            for (ResponseEntry e : this.collectedHistory) {
-                if (e.getRequestId() == requestId) {
-                    // System.err.println("[\u001B[34mDEBUG\u001B[0m] entry = " + e.toString());
-                    requestsCounter++;
-                    if (e.getResponse().equals("OK")) { okCounter++; }
-                    if (requestsCounter == 3) { break; }
-                }
-            }
-            if (okCounter == 3) { return "OK"; }
-            else { return "NO"; }
-        }
-        else if (requestType.equals("READ")) {
-            for (ResponseEntry e : this.collectedHistory) {     // READ waits only for 1 response
-                if (e.getRequestId() == requestId) {            // therefore we get the first response we find
-                    return e.getResponse();
-                }
-            }
-        }
-        else if (requestType.equals("TAKE")) {                  // TAKE waits for 3 responses
-            for (ResponseEntry e : this.collectedHistory) {     // but with Maekawa algorithm we can get consistency between servers
-                if (e.getRequestId() == requestId) {            // therefore we get the first response we find
-                    return e.getResponse();
-                }
-            }
-        }
-
-        return "NO";
-    }
-
-    /**
-     * this method is used to wait until N the responses for a given request ID are received.
-     * @param requestId the request ID to wait for
-     * @param n the number of responses to wait for
+     * @param round the round, EXECUTE or the number of the LOCK round
+     * @param asked the number of servers the round is sent to
+     * @param needed the number of responses to wait for
+     * @return the quorum of the round
      */
-    public synchronized void waitUntilAllReceived(int requestId, int n) {
-        int requestsCounter;
-
-        while (true) {
-            requestsCounter = 0;
+    public <T> Quorum<T> expect(int requestId, int round, int asked, int needed) {
+        long key = key(requestId, round);
+        Quorum<T> quorum = new Quorum<T>(this.numServers, asked, needed);
 
-            if (n == 3) {
-                for (ResponseEntry e : this.collectedHistory) {
-                    if (e.getRequestId() == requestId) {
-                        requestsCounter++;
-                        if (requestsCounter == 3) { return; }
-                    }
-                }
-                
-                try { wait(); }
-                catch (InterruptedException e) { e.printStackTrace(); }
-            }
-            else if (n == 1) {
-                for (ResponseEntry e : this.collectedHistory) {
-                    if (e.getRequestId() == requestId) {
-                        return;
-                    }
-                }
-
-                try { wait(); }
-                catch (InterruptedException e) { e.printStackTrace(); }
-            }
-        }
+        this.pending.put(key, quorum);
+        quorum.getFuture().whenComplete((responses, t) -> this.pending.remove(key, quorum));
+        return quorum;
     }
 
     /**
-     * this method is used to add a lock response to the collected history
-     * @param requestType the type of the request (LOCK, UNLOCK)
+     * this method is used to add the response of a server to the quorum of its round
      * @param requestId the request ID
-     * @param request the request
-     * @param response the response
+     * @param round the round
      * @param serverId the server ID
-     */
-    public synchronized void addLockResponse(String requestType, int requestId, String request, List<String> response, int serverId, int retryId) {
-        this.collectedLockHistory.add(new ResponseLockEntry(requestType, requestId, request, response, serverId, retryId));
-        notifyAll();
-    }
-
-    /**
-     * this method is used to get the lock response for a given request ID
-     * NOTE: requests IDs are unique! in the table, there are 2 entries for each request ID, one for each server
-     * 
-     * @param requestId the request ID
-     * @param serverId the server ID
-     * @return the lock response for the given request ID
-     */
-    public synchronized List<String> getLockResponse(int requestId, int serverId, int retryId) {
-        for (ResponseLockEntry e : this.collectedLockHistory) {
-            if (e.getRequestId() == requestId && e.getServerId() == serverId && e.getRetryId() == retryId) {
-                System.err.println("[\u001B[34mDEBUG\u001B[0m] entry = " + e.toString());
-                return e.getResponse();
-            }
-        }
-        return null;
-    }
-
-    /**
-     * this method is used to wait until all the lock responses for a given request ID and retry ID are received.
-     * @param requestId the request ID to wait for
-     * @param retryId the retry ID to wait for
-     * @param requestType the type of the request (LOCK, UNLOCK)
-     */
-    public synchronized void waitUntilAllLockReceived(int requestId, int retryId, String requestType) {
-        int requestsCounter;
-
-        while (true) {
-            requestsCounter = 0;
-
-            for (ResponseLockEntry e : this.collectedLockHistory) {
-                if (e.getRequestId() == requestId && e.getRetryId() == retryId && e.getRequestType().equals(requestType)) {
-                    requestsCounter++;
-                    if (requestsCounter == 2) { return; }
-                }
-            }
-            
-            try { wait(); }
-            catch (InterruptedException e) { e.printStackTrace(); }
-            
-        }
-    }
-
-    /**
-     * this method is used to add a get response to the collected history
-     * @param requestId the request ID
      * @param response the response
-     * @param serverId the server ID
+     * @return false if the round is over or failed, so nobody will use the response
      */
-    public synchronized void addGetResponse(int requestId, List<String> response, int serverId) {
-        this.collectedGetHistory.add(new ResponseGetEntry(requestId, response, serverId));
-        notifyAll();
+    @SuppressWarnings("unchecked")
+    public <T> boolean addResponse(int requestId, int round, int serverId, T response) {
+        Quorum<T> quorum = (Quorum<T>) this.pending.get(key(requestId, round));
+        return quorum != null && quorum.add(serverId, response);
     }
 
     /**
-     * this method is used to get tuple spaces from each server and combine them into a single response
-     * NOTE: requests IDs are unique! in the table, there are 3 entries for each request ID, one for each server
-     * 
+     * this method is used to add the failure of a server to the quorum of its round
      * @param requestId the request ID
-     * @return the combined response with the tuple spaces from each server
+     * @param round the round
+     * @param serverId the server ID
+     * @param t the error
      */
-    public synchronized List<String> getGetResponse(int requestId) {
-        List<String> combinedResponse = new ArrayList<>();
-        
-        for (ResponseGetEntry e : this.collectedGetHistory) {
-            if (e.getRequestId() == requestId) {
-                combinedResponse.addAll(e.getResponse());
-            }
-        }
-        
-        return combinedResponse;
+    public void addFailure(int requestId, int round, int serverId, Throwable t) {
+        Quorum<?> quorum = this.pending.get(key(requestId, round));
+        if (quorum != null) { quorum.fail(serverId, t); }
     }
 
-    /**
-     * this method is used to wait until all the get responses for a given request ID are received.
-     * @param requestId the request ID to wait for
-     */
-    public synchronized void waitUntilAllGetReceived(int requestId) {
-        int requestsCounter;
-
-        while (true) {
-            requestsCounter = 0;
-
-            for (ResponseGetEntry e : this.collectedGetHistory) {
-                if (e.getRequestId() == requestId) {
-                    requestsCounter++;
-                    if (requestsCounter == 3) { return; }
-                }
-            }
-            
-            try { wait(); }
-            catch (InterruptedException e) { e.printStackTrace(); }
-        }
+    private static long key(int requestId, int round) {
+        return ((long) requestId << 32) | (round & 0xFFFFFFFFL);
     }
 }
-
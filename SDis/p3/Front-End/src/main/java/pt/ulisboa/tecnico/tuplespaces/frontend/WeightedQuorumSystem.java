@@ -0,0 +1,54 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * WeightedQuorumSystem gives each server a number of votes: a voter set is any set of servers with more than half of
+ * the votes, so any two of them share a server
+ *
+ * each client takes the servers with the most votes first, so the voter sets are as small as they can be; servers with
+ * the same number of votes are taken from clientId % N on, to spread the clients over them
+ * with one vote per server, the voter set is a majority: the next floor(N/2)+1 servers from clientId % N
+ */
+public class WeightedQuorumSystem implements QuorumSystem {
+
+    private final int[] weights;
+    private final int total;
+
+
+    public WeightedQuorumSystem(int[] weights) {
+        int total = 0;
+        for (int weight : weights) { total += weight; }
+
+        this.weights = weights.clone();
+        this.total = total;
+    }
+
+    @Override
+    public int[] voters(int clientId) {
+        int n = this.weights.length;
+        int first = Math.floorMod(clientId, n);
+
+        List<Integer> order = new ArrayList<Integer>(n);
+        for (int i = 0; i < n; i++) { order.add((first + i) % n); }
+        order.sort((a, b) -> this.weights[b] - this.weights[a]);  // stable: the same weights stay in the order of the client
+
+        List<Integer> voters = new ArrayList<Integer>();
+        int votes = 0;
+        for (int server : order) {
+            if (2 * votes > this.total) { break; }
+            voters.add(server);
+            votes += this.weights[server];
+        }
+
+        return voters.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    @Override
+    public String toString() {
+        return (this.total == this.weights.length) ? "majority" : "weighted " + Arrays.toString(this.weights);
+    }
+}
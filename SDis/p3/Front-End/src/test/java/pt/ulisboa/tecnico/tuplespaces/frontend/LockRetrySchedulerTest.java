@@ -0,0 +1,101 @@
+package pt.ulisboa.tecnico.tuplespaces.frontend;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * tests of the pauses between the LOCK rounds of the takes that collided
+ */
+public class LockRetrySchedulerTest {
+
+    private static final long FIRST_MILLIS = 40;
+    private static final int ROUNDS = 3;
+
+    private ScheduledExecutorService timer;
+    private LockRetryScheduler retries;
+
+
+    @Before
+    public void setUp() {
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.retries = new LockRetryScheduler(FIRST_MILLIS, 1000, this.timer);
+    }
+
+    @After
+    public void tearDown() {
+        this.timer.shutdownNow();
+    }
+
+    /**
+     * a take whose LOCK rounds keep failing: at the end of each round it gives back its locks, as phase 1.2 does, and
+     * the server reports the release (WATCH-UNLOCKS) before the next round is scheduled
+     */
+    private class Take {
+        private final int clientId;
+        private final List<Long> rounds = Collections.synchronizedList(new ArrayList<Long>());   // when each round started
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Take(int clientId) { this.clientId = clientId; }
+
+        void round(int round) {
+            this.rounds.add(System.nanoTime());
+            if (round == ROUNDS) { this.done.countDown(); return; }
+
+            retries.wake("<job,1>", this.clientId);             // its own release, reported right away
+            retries.schedule(this.clientId, this.clientId, "<job,.*>", round, () -> round(round + 1));
+            retries.wake("<job,1>", this.clientId);             // or after the round is scheduled
+        }
+    }
+
+    @Test
+    public void contendingTakesWaitTheirPauseBetweenRounds() throws Exception {
+        Take first = new Take(1);
+        Take second = new Take(2);
+        this.timer.execute(() -> first.round(0));
+        this.timer.execute(() -> second.round(0));
+
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+        assertTrue(second.done.await(5, TimeUnit.SECONDS));
+
+        for (Take take : List.of(first, second)) {
+            assertEquals(ROUNDS + 1, take.rounds.size());
+            for (int round = 0; round < ROUNDS; round++) {
+                long gap = take.rounds.get(round + 1) - take.rounds.get(round);
+                long least = TimeUnit.MILLISECONDS.toNanos(FIRST_MILLIS << round) / 4;    // half of a pause drawn from [p/2, p]
+                assertTrue("round " + round + " of client " + take.clientId + " retried after " + gap / 1000 + " us", gap >= least);
+            }
+        }
+    }
+
+    @Test
+    public void releaseOfAnotherClientCutsThePauseInHalf() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        LockRetryScheduler slow = new LockRetryScheduler(1000, 1000, this.timer);
+        long scheduled = System.nanoTime();
+        long pause = slow.schedule(7, 1, "<job,.*>", 0, started::countDown);
+
+        assertEquals(0, slow.wake("<job,1>", 1));          // its own release
+        assertEquals(0, slow.wake("<other,1>", 2));        // does not match
+        assertEquals(1, slow.getWaiting());
+        assertEquals(1, slow.wake("<job,1>", 2));
+        assertEquals(0, slow.getWaiting());
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        long waited = System.nanoTime() - scheduled;
+        assertTrue("waited " + waited / 1000 + " us of " + pause / 1000, waited >= pause / 2 && waited < pause * 3 / 4);
+        assertEquals(1, slow.getWoken());
+    }
+}
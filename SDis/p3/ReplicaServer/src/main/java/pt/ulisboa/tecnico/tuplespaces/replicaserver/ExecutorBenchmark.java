@@ -0,0 +1,152 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver;
+
+import pt.ulisboa.tecnico.tuplespaces.common.ServerExecutors;
+
+// classes generated from the proto file
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesGrpc;
+import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
+
+import pt.ulisboa.tecnico.tuplespaces.replicaserver.domain.ServerState;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.stub.StreamObserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * ExecutorBenchmark compares the executors a replica can run its service handlers on (see ServerExecutors)
+ *
+ * for each executor a replica is started on an ephemeral port and driven by an in-process client:
+ *  1. closed loop: <clients> concurrent callers issue <operations> PUT/READ requests in total
+ *  2. parking:     <parked> READs wait for tuples that do not exist yet, then a PUT for each one wakes them up
+ *
+ * the client runs its callbacks on the transport threads, so the thread counts reported are the server's plus a constant
+ *
+ * Usage: java ExecutorBenchmark [clients] [operations] [parked]
+ */
+public class ExecutorBenchmark {
+
+    private static final String[] MODES = { "cached", "virtual", "pool:8", "direct" };
+
+
+    public static void main(String[] args) throws Exception {
+        final int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        final int operations = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        final int parked = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+
+        System.out.printf("%d clients, %d operations, %d parked reads%n%n", clients, operations, parked);
+        System.out.printf("%-10s %12s %14s %14s %12s%n", "executor", "ops/s", "threads@park", "peak threads", "wake (ms)");
+
+        run("cached", clients, operations, parked, false);     // warm up the JIT, not reported
+        for (String mode : MODES) { run(mode, clients, operations, parked, true); }
+    }
+
+    private static void run(String mode, int clients, int operations, int parked, boolean report) throws Exception {
+        ServerBuilder<?> builder = ServerBuilder.forPort(0);
+        ExecutorService executor;
+        try {
+            executor = ServerExecutors.configure(builder, mode);
+        } catch (IllegalArgumentException e) {
+            System.out.printf("%-10s skipped: %s%n", mode, e.getMessage());
+            return;
+        }
+
+        Server server = builder.addService(ServerInterceptors.intercept(new TupleSpacesServiceImpl(false, new ServerState(false)), new HeaderServerInterceptor()))
+                               .build()
+                               .start();
+        ManagedChannel channel = ManagedChannelBuilder.forAddress("localhost", server.getPort())
+                                                      .usePlaintext()
+                                                      .directExecutor()
+                                                      .build();
+        TupleSpacesGrpc.TupleSpacesStub stub = TupleSpacesGrpc.newStub(channel);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        try {
+            TupleSpacesGrpc.newBlockingStub(channel).put(TupleSpacesOuterClass.PutRequest.newBuilder().setNewTuple("<bench,seed>").build());
+            threads.resetPeakThreadCount();
+
+            // 1. closed loop
+            CountDownLatch finished = new CountDownLatch(clients);
+            AtomicInteger issued = new AtomicInteger();
+
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) { next(stub, issued, operations, finished); }
+            finished.await();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            // 2. parking
+            CountDownLatch woken = new CountDownLatch(parked);
+            for (int i = 0; i < parked; i++) {
+                stub.read(TupleSpacesOuterClass.ReadRequest.newBuilder().setSearchPattern("<parked," + i + ">").build(), new Callback<>(woken::countDown));
+            }
+            Thread.sleep(1000);     // let every READ reach the server and park
+            int parkedThreads = threads.getThreadCount();
+
+            long wakeStart = System.nanoTime();
+            for (int i = 0; i < parked; i++) {
+                stub.put(TupleSpacesOuterClass.PutRequest.newBuilder().setNewTuple("<parked," + i + ">").build(), new Callback<>(() -> {}));
+            }
+            woken.await();
+            double wakeMillis = (System.nanoTime() - wakeStart) / 1e6;
+
+            if (report) { System.out.printf("%-10s %12.0f %14d %14d %12.1f%n", mode, operations / seconds, parkedThreads, threads.getPeakThreadCount(), wakeMillis); }
+        }
+        finally {
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            if (executor != null) { executor.shutdownNow(); }
+        }
+    }
+
+    /**
+     * issues the next operation of the closed loop when the previous one completes
+     * even operations add a new tuple, odd operations read the seed tuple
+     */
+    private static void next(TupleSpacesGrpc.TupleSpacesStub stub, AtomicInteger issued, int operations, CountDownLatch finished) {
+        int i = issued.getAndIncrement();
+        if (i >= operations) {
+            finished.countDown();
+            return;
+        }
+
+        Runnable then = () -> next(stub, issued, operations, finished);
+        if (i % 2 == 0) {
+            stub.put(TupleSpacesOuterClass.PutRequest.newBuilder().setNewTuple("<bench," + i + ">").build(), new Callback<>(then));
+        }
+        else {
+            stub.read(TupleSpacesOuterClass.ReadRequest.newBuilder().setSearchPattern("<bench,seed>").build(), new Callback<>(then));
+        }
+    }
+
+    /**
+     * runs an action when a call ends, successfully or not
+     */
+    private static class Callback<T> implements StreamObserver<T> {
+
+        private final Runnable then;
+
+        Callback(Runnable then) { this.then = then; }
+
+        @Override
+        public void onNext(T response) {}
+
+        @Override
+        public void onError(Throwable t) {
+            System.err.println("Benchmark request failed: " + t.getMessage());
+            then.run();
+        }
+
+        @Override
+        public void onCompleted() { then.run(); }
+    }
+}
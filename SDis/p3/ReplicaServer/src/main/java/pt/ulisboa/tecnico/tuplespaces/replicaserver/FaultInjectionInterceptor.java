@@ -0,0 +1,185 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver;
+
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+ * FaultInjectionInterceptor makes a replica slow or unreliable on purpose, to benchmark the frontend against it
+ *
+ * every request can be:
+ *  - delayed:  by a latency drawn from the distribution of the replica (-latency=) plus the "delay" header of the request (seconds)
+ *  - dropped:  never answered, the client only finds out through its deadline (-drop=<probability> or the header "fault: drop")
+ *  - failed:   answered right away with UNAVAILABLE (-error=<probability> or the header "fault: error")
+ *
+ * a delayed request doesn't hold any thread while it waits: the start of the call is scheduled on a ScheduledExecutorService,
+ * whose threads only hand it over to the executor of the handlers; the start and every event the transport delivers go
+ * through a sequential executor of their own over it, so they run in order, one at a time, and no lock is held while the
+ * handler runs; the events that arrive before the start are kept and replayed right after it
+ * a request whose client gives up while it is delayed never starts
+ */
+public class FaultInjectionInterceptor implements ServerInterceptor {
+
+    static final Metadata.Key<String> FAULT_HEADER_KEY = Metadata.Key.of("fault", Metadata.ASCII_STRING_MARSHALLER);
+
+    private final boolean DEBUG;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;                    // the executor of the handlers, the delayed calls start there
+    private final LatencyDistribution latency;
+    private final double dropProbability;
+    private final double errorProbability;
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+
+    public FaultInjectionInterceptor(boolean debug, ScheduledExecutorService scheduler, Executor executor, LatencyDistribution latency, double dropProbability, double errorProbability) {
+        if (dropProbability < 0 || dropProbability > 1 || errorProbability < 0 || errorProbability > 1) {
+            throw new IllegalArgumentException("The probabilities of -drop and -error must be between 0 and 1");
+        }
+        this.DEBUG = debug;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.latency = latency;
+        this.dropProbability = dropProbability;
+        this.errorProbability = errorProbability;
+    }
+
+    public long getDelayed() { return delayed.get(); }
+
+    public long getDropped() { return dropped.get(); }
+
+    public long getFailed() { return failed.get(); }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        String fault = headers.get(FAULT_HEADER_KEY);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if ("drop".equals(fault) || (this.dropProbability > 0 && random.nextDouble() < this.dropProbability)) {
+            this.dropped.incrementAndGet();
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] \u001B[31mDropping\u001B[0m %s\n", call.getMethodDescriptor().getFullMethodName());
+            }
+            return new ServerCall.Listener<ReqT>() {};     // never started, never answered
+        }
+
+        if ("error".equals(fault) || (this.errorProbability > 0 && random.nextDouble() < this.errorProbability)) {
+            this.failed.incrementAndGet();
+            call.close(Status.UNAVAILABLE.withDescription("Injected fault"), new Metadata());
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        long delay = this.latency.sampleMillis() + delayHeaderMillis(headers);
+        if (delay <= 0) { return next.startCall(call, headers); }
+
+        this.delayed.incrementAndGet();
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] \u001B[31mD E L A Y I N G\u001B[0m %s for %d ms\n", call.getMethodDescriptor().getFullMethodName(), delay);
+        }
+
+        Context context = Context.current();                // the context of the call, its deadline and the header values
+        DelayedListener<ReqT> listener = new DelayedListener<ReqT>(MoreExecutors.newSequentialExecutor(this.executor), context);
+        listener.scheduled = this.scheduler.schedule(() -> listener.submit(() -> {
+            if (!listener.cancelled) { listener.start(next.startCall(call, headers)); }
+        }), delay, TimeUnit.MILLISECONDS);
+
+        return listener;
+    }
+
+    /**
+     * @return the delay asked for in the "delay" header, in milliseconds, 0 if there is none or it is not a number
+     */
+    private static long delayHeaderMillis(Metadata headers) {
+        String value = headers.get(HeaderServerInterceptor.CUSTOM_HEADER_KEY);
+        if (value == null) { return 0; }
+
+        try {
+            return Math.max(0, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * keeps the events of a call until the call is started, then hands them over in the same order
+     * the start and the events all run on the sequential executor of the call, so the fields below need no lock
+     */
+    private static class DelayedListener<ReqT> extends ServerCall.Listener<ReqT> {
+        private final Executor serializer;                          // runs the tasks of the call one at a time, in order
+        private final Context context;
+        private List<Consumer<ServerCall.Listener<ReqT>>> pending = new ArrayList<Consumer<ServerCall.Listener<ReqT>>>();
+        private ServerCall.Listener<ReqT> delegate;                 // null until the call is started
+        private boolean cancelled;
+        private volatile ScheduledFuture<?> scheduled;
+
+        DelayedListener(Executor serializer, Context context) {
+            this.serializer = serializer;
+            this.context = context;
+        }
+
+        /**
+         * runs a task of the call on its sequential executor, in the context of the call
+         */
+        void submit(Runnable task) {
+            this.serializer.execute(this.context.wrap(task));
+        }
+
+        void start(ServerCall.Listener<ReqT> delegate) {
+            this.delegate = delegate;
+            for (Consumer<ServerCall.Listener<ReqT>> event : this.pending) { event.accept(delegate); }
+            this.pending = null;
+        }
+
+        private void deliver(Consumer<ServerCall.Listener<ReqT>> event) {
+            submit(() -> {
+                if (this.cancelled) { return; }
+                if (this.delegate == null) { this.pending.add(event); }
+                else { event.accept(this.delegate); }
+            });
+        }
+
+        @Override
+        public void onMessage(ReqT message) { deliver(l -> l.onMessage(message)); }
+
+        @Override
+        public void onHalfClose() { deliver(ServerCall.Listener::onHalfClose); }
+
+        @Override
+        public void onComplete() { deliver(ServerCall.Listener::onComplete); }
+
+        @Override
+        public void onReady() { deliver(ServerCall.Listener::onReady); }
+
+        @Override
+        public void onCancel() {
+            submit(() -> {
+                if (this.delegate == null) {                        // gave up while delayed: the call will never start
+                    this.cancelled = true;
+                    this.pending.clear();
+                    ScheduledFuture<?> scheduled = this.scheduled;
+                    if (scheduled != null) { scheduled.cancel(false); }
+                    return;
+                }
+                this.delegate.onCancel();
+            });
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * LatencyDistribution is the extra latency a replica adds to every request, to benchmark the frontend
+ * against slow replicas (see FaultInjectionInterceptor)
+ *
+ * fixed:<ms>                  always ms
+ * uniform:<min>:<max>         any value between min and max ms, equally likely
+ * exp:<mean>                  exponential with the given mean, most requests fast, a few slow
+ * lognormal:<median>:<sigma>  lognormal, a long tail like real network and disk latencies (sigma 0.5 to 1.5)
+ */
+public class LatencyDistribution {
+
+    public static final String USAGE = "fixed:<ms> | uniform:<min>:<max> | exp:<mean> | lognormal:<median>:<sigma>";
+    public static final LatencyDistribution NONE = new LatencyDistribution("fixed", 0, 0);
+
+    private final String kind;
+    private final double a;
+    private final double b;
+
+
+    private LatencyDistribution(String kind, double a, double b) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * @param spec the distribution, see USAGE
+     * @return the distribution
+     * @throws IllegalArgumentException if the distribution is not valid
+     */
+    public static LatencyDistribution parse(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "fixed":
+                    if (parts.length == 2) { return checked(new LatencyDistribution("fixed", Double.parseDouble(parts[1]), 0), spec); }
+                    break;
+                case "uniform":
+                    if (parts.length == 3) { return checked(new LatencyDistribution("uniform", Double.parseDouble(parts[1]), Double.parseDouble(parts[2])), spec); }
+                    break;
+                case "exp":
+                    if (parts.length == 2) { return checked(new LatencyDistribution("exp", Double.parseDouble(parts[1]), 0), spec); }
+                    break;
+                case "lognormal":
+                    if (parts.length == 3) { return checked(new LatencyDistribution("lognormal", Double.parseDouble(parts[1]), Double.parseDouble(parts[2])), spec); }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // falls through to the error below
+        }
+        throw new IllegalArgumentException("Invalid latency distribution: " + spec + " (" + USAGE + ")");
+    }
+
+    private static LatencyDistribution checked(LatencyDistribution d, String spec) {
+        if (d.a < 0 || d.b < 0 || (d.kind.equals("uniform") && d.b < d.a)) {
+            throw new IllegalArgumentException("Invalid latency distribution: " + spec + " (" + USAGE + ")");
+        }
+        return d;
+    }
+
+    /**
+     * @return a latency drawn from the distribution, in milliseconds
+     */
+    public long sampleMillis() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        switch (this.kind) {
+            case "uniform":
+                return Math.round(this.a + random.nextDouble() * (this.b - this.a));
+            case "exp":
+                return Math.round(-this.a * Math.log(1 - random.nextDouble()));
+            case "lognormal":
+                return Math.round(this.a * Math.exp(this.b * random.nextGaussian()));
+            default:
+                return Math.round(this.a);
+        }
+    }
+
+    public boolean isNone() { return this.kind.equals("fixed") && this.a == 0; }
+
+    @Override
+    public String toString() {
+        switch (this.kind) {
+            case "uniform":
+            case "lognormal":
+                return this.kind + ":" + this.a + ":" + this.b;
+            default:
+                return this.kind + ":" + this.a;
+        }
+    }
+}
@@ -1,28 +1,84 @@
 package pt.ulisboa.tecnico.tuplespaces.replicaserver;
 
+import pt.ulisboa.tecnico.tuplespaces.common.ServerExecutors;
+import pt.ulisboa.tecnico.tuplespaces.common.StatsDump;
+
+import pt.ulisboa.tecnico.tuplespaces.replicaserver.domain.ServerState;
+import pt.ulisboa.tecnico.tuplespaces.replicaserver.domain.WriteAheadLog;
+
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerInterceptors;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 import java.io.IOException;
 import java.lang.InterruptedException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 public class ServerMain {
 
+    private static void printUsage() {
+        System.err.printf("Usage: java %s <port> [-debug] [-executor=<%s>] [-shards=<n>] [-wal=<dir>] [-sync=<%s>] [-snapshot=<seconds>] [-latency=<%s>] [-drop=<p>] [-error=<p>] [-stats=<file>] [-statsInterval=<seconds>]%n", ServerMain.class.getName(), ServerExecutors.USAGE, WriteAheadLog.USAGE, LatencyDistribution.USAGE);
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException {
 
         System.out.println(ServerMain.class.getSimpleName());
 
         // check arguments
-        if (args.length != 1 && args.length != 2) {
+        if (args.length < 1) {
             System.err.println("Invalid number of arguments");
-            System.err.printf("Usage: java %s <port> [-debug]%n", ServerMain.class.getName());
+            printUsage();
+            return;
+        }
+
+        boolean debug = false;
+        String executor = ServerExecutors.DEFAULT;
+        int numShards = ServerState.DEFAULT_SHARDS;
+        String walDir = null;                   // no write-ahead log: the tuple space is lost when the replica stops
+        String sync = "always";
+        int snapshotSeconds = 60;               // 0: never take snapshots, the whole log is replayed
+        String latency = null;                  // no latency added, only the delay asked for in each request
+        double dropProbability = 0;
+        double errorProbability = 0;
+        String statsFile = null;                // no dump, the stats are only sent to GET-STATS
+        int statsSeconds = 10;
+
+        // the numeric options are checked below, a value that is not a number at all ends here
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("-debug")) { debug = true; }
+                else if (args[i].startsWith("-executor=")) { executor = args[i].substring("-executor=".length()); }
+                else if (args[i].startsWith("-shards=")) { numShards = Integer.parseInt(args[i].substring("-shards=".length())); }
+                else if (args[i].startsWith("-wal=")) { walDir = args[i].substring("-wal=".length()); }
+                else if (args[i].startsWith("-snapshot=")) { snapshotSeconds = Integer.parseInt(args[i].substring("-snapshot=".length())); }
+                else if (args[i].startsWith("-sync=")) { sync = args[i].substring("-sync=".length()); }
+                else if (args[i].startsWith("-latency=")) { latency = args[i].substring("-latency=".length()); }
+                else if (args[i].startsWith("-drop=")) { dropProbability = Double.parseDouble(args[i].substring("-drop=".length())); }
+                else if (args[i].startsWith("-error=")) { errorProbability = Double.parseDouble(args[i].substring("-error=".length())); }
+                else if (args[i].startsWith("-stats=")) { statsFile = args[i].substring("-stats=".length()); }
+                else if (args[i].startsWith("-statsInterval=")) { statsSeconds = Integer.parseInt(args[i].substring("-statsInterval=".length())); }
+                else {
+                    System.err.println("Invalid argument: " + args[i]);
+                    printUsage();
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number: " + e.getMessage());
+            printUsage();
             return;
         }
 
         // check if debug mode is enabled
-        final boolean DEBUG = (args.length == 2 && args[1].equals("-debug"));
+        final boolean DEBUG = debug;
 
         if (DEBUG) {
             System.err.println("[\u001B[34mDEBUG\u001B[0m] Debug mode enabled");
@@ -36,17 +92,114 @@ public class ServerMain {
 
         final int port = Integer.parseInt(args[0]);
 
-        // create a new gRPC server instance on the specified port
-        Server server = ServerBuilder.forPort(port)
-                                    .addService(ServerInterceptors.intercept(new TupleSpacesServiceImpl(DEBUG), new HeaderServerInterceptor()))
-                                    .build();
+        if (snapshotSeconds < 0) {
+            System.err.println("Invalid snapshot interval: " + snapshotSeconds);
+            return;
+        }
+
+        if (numShards <= 0) {
+            System.err.println("Invalid number of shards: " + numShards);
+            return;
+        }
+
+        if (statsSeconds <= 0) {
+            System.err.println("Invalid stats interval: " + statsSeconds);
+            printUsage();
+            return;
+        }
+
+        // create a new gRPC server instance on the specified port, running the handlers on the chosen executor
+        ServerBuilder<?> builder = ServerBuilder.forPort(port);
+        final ExecutorService handlers;
+        try {
+            handlers = ServerExecutors.configure(builder, executor);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        // delays, drops and errors injected to benchmark the frontend, scheduled without holding a handler thread
+        final FaultInjectionInterceptor faults;
+        try {
+            ScheduledExecutorService delays = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+                Thread t = new Thread(r, "delay");
+                t.setDaemon(true);
+                return t;
+            });
+            // the delayed calls start on the executor of the handlers; gRPC doesn't expose its default one, so "cached" gets its own
+            Executor delayed = (handlers != null) ? handlers : executor.equals("direct") ? MoreExecutors.directExecutor() : Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "delayed-call");
+                t.setDaemon(true);
+                return t;
+            });
+            faults = new FaultInjectionInterceptor(DEBUG, delays, delayed, latency == null ? LatencyDistribution.NONE : LatencyDistribution.parse(latency), dropProbability, errorProbability);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        ServerState serverState = new ServerState(DEBUG, numShards);
+
+        // rebuild the tuple space from the latest snapshot and the write-ahead log before serving any request
+        if (walDir != null) {
+            final WriteAheadLog wal;
+            try {
+                wal = new WriteAheadLog(Paths.get(walDir), sync);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+            long records = serverState.recover(wal);
+            System.out.printf("Recovered the tuple space from %s (%d log records replayed), sync: %s%n", walDir, records, sync);
+
+            // snapshots are written in the background, so the log replayed on the next start stays short
+            if (snapshotSeconds > 0) {
+                ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "snapshot");
+                    t.setDaemon(true);
+                    return t;
+                });
+                snapshots.scheduleWithFixedDelay(() -> {
+                    try {
+                        serverState.snapshot();
+                    } catch (IOException e) {
+                        System.err.println("Could not write a snapshot: " + e.getMessage());
+                    }
+                }, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    wal.close();                // flush what is still in memory
+                } catch (IOException e) {
+                    System.err.println("Could not close the write-ahead log: " + e.getMessage());
+                }
+            }));
+        }
+
+        TupleSpacesServiceImpl service = new TupleSpacesServiceImpl(DEBUG, serverState, port);
+
+        // the stats are appended to the file every few seconds, and once more when the replica stops
+        if (statsFile != null) {
+            StatsDump dump = new StatsDump(Paths.get(statsFile), service::stats);
+            ScheduledExecutorService dumps = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stats");
+                t.setDaemon(true);
+                return t;
+            });
+            dumps.scheduleAtFixedRate(dump, statsSeconds, statsSeconds, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(dump));
+        }
+
+        Server server = builder.addService(ServerInterceptors.intercept(service, new HeaderServerInterceptor(), faults))
+                               .build();
 
         // start the server
         server.start();
         // server threads are running in the background
 
         if (DEBUG) {
-            System.out.printf("[\u001B[34mDEBUG\u001B[0m] Server started, listening on port: %d\n\n", port);
+            System.out.printf("[\u001B[34mDEBUG\u001B[0m] Server started, listening on port: %d, executor: %s, shards: %d, latency: %s, drop: %s, error: %s\n\n", port, executor, numShards, latency == null ? "none" : latency, dropProbability, errorProbability);
         }
 
         // do not exit the main thread. Wait until server is terminated.
@@ -1,15 +1,30 @@
 package pt.ulisboa.tecnico.tuplespaces.replicaserver;
 
+import pt.ulisboa.tecnico.tuplespaces.common.Histogram;
+
 // classes generated from the proto file
 import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesGrpc;
 import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
 
+import pt.ulisboa.tecnico.tuplespaces.replicaserver.domain.LockGrant;
 import pt.ulisboa.tecnico.tuplespaces.replicaserver.domain.ServerState;
+import pt.ulisboa.tecnico.tuplespaces.replicaserver.domain.StateCursor;
+import pt.ulisboa.tecnico.tuplespaces.replicaserver.domain.Subscription;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Random;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 
@@ -22,16 +37,39 @@ import io.grpc.stub.StreamObserver;
  */
 public class TupleSpacesServiceImpl extends TupleSpacesGrpc.TupleSpacesImplBase {
 
+    public static final int DEFAULT_CHUNK_SIZE = 1000;     // tuples per chunk of the streamed GET-TUPLE-SPACES-STATE
+    public static final int MAX_CHUNK_SIZE = 65536;         // keeps a chunk well below the maximum message size of gRPC
+    public static final int DEFAULT_WATCH_BUFFER = 1024;    // tuples kept for a slow WATCH subscriber
+    public static final int MAX_WATCH_BUFFER = 65536;
+
     private boolean DEBUG;
     private ServerState serverState;
+    private final int port;                                 // tells the replicas apart in the stats
+
+    // time from the arrival of a request to its response, parked time included (nanoseconds)
+    private final Histogram putLatency = new Histogram();
+    private final Histogram readLatency = new Histogram();
+    private final Histogram takeLatency = new Histogram();  // TAKE and TAKE-EXACT
+    private final Histogram lockLatency = new Histogram();
+    private final Histogram putAllLatency = new Histogram();
+    private final Histogram readAllLatency = new Histogram();
+    private final Histogram takeManyLatency = new Histogram();  // TAKE-MANY and TAKE-EXACT-ALL
+    private final AtomicLong emptyLocks = new AtomicLong(); // LOCKs answered without any lock, every match held by other clients: the frontend retries
+    private final AtomicLong releasedLocks = new AtomicLong();  // locks given back by RELEASE-LOCKS, before the TAKE of their client
+
+    public TupleSpacesServiceImpl(boolean debug, ServerState serverState) {
+        this(debug, serverState, 0);
+    }
 
-    public TupleSpacesServiceImpl(boolean debug) {
+    public TupleSpacesServiceImpl(boolean debug, ServerState serverState, int port) {
         this.DEBUG = debug;
-        this.serverState = new ServerState(debug); 
+        this.serverState = serverState;         // already recovered from the write-ahead log, if the replica has one
+        this.port = port;
     }
 
     @Override
     public void put(TupleSpacesOuterClass.PutRequest request, StreamObserver<TupleSpacesOuterClass.PutResponse> responseObserver) {
+        long start = System.nanoTime();
         String headerValue = HeaderServerInterceptor.HEADER_VALUE_CONTEXT_KEY.get();// get the header value from the context
                 
         if (this.DEBUG) {
@@ -43,32 +81,29 @@ public class TupleSpacesServiceImpl extends TupleSpacesGrpc.TupleSpacesImplBase
             }
         }
 
-        if (headerValue != null) {
-            try {
-                int sleepTime = Integer.parseInt(headerValue);
-                if (this.DEBUG) {
-                    System.out.println("[\u001B[34mDEBUG\u001B[0m] \u001B[31mS L E E P I N G\u001B[0m for " + sleepTime + "s");
-                }
-                Thread.sleep(sleepTime * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        this.serverState.put(request.getNewTuple(), request.getPutId());   // add tuple to tuple space
 
-        this.serverState.put(request.getNewTuple());                // add tuple to tuple space
+        this.serverState.sync().whenComplete((v, e) -> {            // answer once the tuple is durable, together with the other operations of the same flush
+            if (e != null) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Write-ahead log failed").withCause(e).asRuntimeException());
+                return;
+            }
 
-        TupleSpacesOuterClass.PutResponse response = 
-            TupleSpacesOuterClass.PutResponse.newBuilder().setOk("OK").build(); // construct a new Protobuffer object to send as response
+            TupleSpacesOuterClass.PutResponse response = 
+                TupleSpacesOuterClass.PutResponse.newBuilder().setOk("OK").build(); // construct a new Protobuffer object to send as response
 
-        if (this.DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending PUT response in %s, OK\n\n", Thread.currentThread().getName());
-        }
-        responseObserver.onNext(response);                          // use the responseObserver to send the response
-        responseObserver.onCompleted();                             // after sending the response, complete the call
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending PUT response in %s, OK\n\n", Thread.currentThread().getName());
+            }
+            this.putLatency.recordSince(start);
+            responseObserver.onNext(response);                      // use the responseObserver to send the response
+            responseObserver.onCompleted();                         // after sending the response, complete the call
+        });
     }
 
     @Override
     public void read(TupleSpacesOuterClass.ReadRequest request, StreamObserver<TupleSpacesOuterClass.ReadResponse> responseObserver) {
+        long start = System.nanoTime();
         String headerValue = HeaderServerInterceptor.HEADER_VALUE_CONTEXT_KEY.get();// get the header value from the context
                 
         if (this.DEBUG) {
@@ -80,37 +115,37 @@ public class TupleSpacesServiceImpl extends TupleSpacesGrpc.TupleSpacesImplBase
             }
         }
 
-        if (headerValue != null) {
-            try {
-                int sleepTime = Integer.parseInt(headerValue);
-                if (this.DEBUG) {
-                    System.out.println("[\u001B[34mDEBUG\u001B[0m] \u001B[31mS L E E P I N G\u001B[0m for " + sleepTime + "s");
-                }
-                Thread.sleep(sleepTime * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
 
-        String tuple = this.serverState
-                            .read(request.getSearchPattern());      // read tuple from tuple space
+        ServerCallStreamObserver<TupleSpacesOuterClass.ReadResponse> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.ReadResponse>) responseObserver;
 
-        TupleSpacesOuterClass.ReadResponse response = 
-            TupleSpacesOuterClass.ReadResponse
-                                .newBuilder()
-                                .setResult(tuple)
-                                .build();                           // construct a new Protobuffer object to send as response
+        CompletableFuture<String> pending = this.serverState
+                                                .readAsync(request.getSearchPattern()); // read tuple from tuple space, parked if there is none yet
 
-        if (this.DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending READ response in %s, %s\n\n", Thread.currentThread().getName(), tuple);
-        }
-        
-        responseObserver.onNext(response);                          // use the responseObserver to send the response
-        responseObserver.onCompleted();                             // after sending the response, complete the call
+        abandonOnCancel(call, pending);                             // client gave up (cancellation or deadline), drop the parked request
+
+        pending.thenAccept(tuple -> {                               // runs when a matching tuple is found, no thread waits for it
+            if (call.isCancelled()) { return; }                     // client is gone, nobody to answer to
+
+            TupleSpacesOuterClass.ReadResponse response = 
+                TupleSpacesOuterClass.ReadResponse
+                                    .newBuilder()
+                                    .setResult(tuple)
+                                    .build();                       // construct a new Protobuffer object to send as response
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending READ response in %s, %s\n\n", Thread.currentThread().getName(), tuple);
+            }
+
+            this.readLatency.recordSince(start);
+            responseObserver.onNext(response);                      // use the responseObserver to send the response
+            responseObserver.onCompleted();                         // after sending the response, complete the call
+        });
     }
 
     @Override
     public void take(TupleSpacesOuterClass.TakeRequest request, StreamObserver<TupleSpacesOuterClass.TakeResponse> responseObserver) {        
+        long start = System.nanoTime();
         String headerValue = HeaderServerInterceptor.HEADER_VALUE_CONTEXT_KEY.get();// get the header value from the context
 
         if (this.DEBUG) {
@@ -122,64 +157,298 @@ public class TupleSpacesServiceImpl extends TupleSpacesGrpc.TupleSpacesImplBase
             }
         }
 
-        if (headerValue != null) {
-            try {
-                int sleepTime = Integer.parseInt(headerValue);
-                if (this.DEBUG) {
-                    System.out.println("[\u001B[34mDEBUG\u001B[0m] \u001B[31mS L E E P I N G\u001B[0m for " + sleepTime + "s");
+
+        CompletableFuture<String> pending = this.serverState
+                                                .takeAsync(request.getSearchPattern()); // take tuple from tuple space, parked if there is none yet
+
+        respondTake(pending, request.getClientId(), false, start, responseObserver);
+    }
+
+    @Override
+    public void takeExact(TupleSpacesOuterClass.TakeExactRequest request, StreamObserver<TupleSpacesOuterClass.TakeResponse> responseObserver) {
+        long start = System.nanoTime();
+        String headerValue = HeaderServerInterceptor.HEADER_VALUE_CONTEXT_KEY.get();// get the header value from the context
+
+        if (this.DEBUG) {
+            if (headerValue != null) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received TAKE-EXACT request in %s, with delay (%s), %s", Thread.currentThread().getName(), headerValue, request);
+            }
+            else {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received TAKE-EXACT request in %s, %s", Thread.currentThread().getName(), request);
+            }
+        }
+
+
+        CompletableFuture<String> pending = this.serverState
+                                                .takeExactAsync(request.getClientId(), request.getTuple());    // remove exactly this tuple, parked if it is not there yet
+
+        respondTake(pending, request.getClientId(), true, start, responseObserver);
+    }
+
+    /**
+     * sends the response of a TAKE (or TAKE-EXACT) once its tuple is known, and releases the locks of the client
+     *
+     * a TAKE-EXACT is phase 2 of a replicated take, which every replica must carry out: it is never abandoned nor undone
+     * here when its caller goes away, or this replica would keep the tuple the others removed
+     *
+     * @param pending the future of the take
+     * @param clientId the client that asked for the take
+     * @param exact true for a TAKE-EXACT
+     * @param start when the request arrived (System.nanoTime())
+     * @param responseObserver the observer of the call
+     */
+    private void respondTake(CompletableFuture<String> pending, int clientId, boolean exact, long start, StreamObserver<TupleSpacesOuterClass.TakeResponse> responseObserver) {
+        ServerCallStreamObserver<TupleSpacesOuterClass.TakeResponse> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.TakeResponse>) responseObserver;
+
+        if (!exact) { abandonOnCancel(call, pending); }             // client gave up (cancellation or deadline), drop the parked request
+
+        pending.thenAccept(tuple -> {                               // runs when a matching tuple is found, no thread waits for it
+            if (call.isCancelled() && !exact) {                     // client is gone, the tuple goes back to the tuple space
+                this.serverState.restore(tuple);
+                return;
+            }
+
+            TupleSpacesOuterClass.TakeResponse response = 
+                TupleSpacesOuterClass.TakeResponse
+                                    .newBuilder()
+                                    .setResult(tuple)
+                                    .build();                       // construct a new Protobuffer object to send as response
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending TAKE response in %s, %s\n\n", Thread.currentThread().getName(), tuple);
+            }
+
+            this.serverState.freeLock(clientId);                    // free the lock after taking the tuple
+
+            this.serverState.sync().whenComplete((v, e) -> {        // answer once the removal is durable
+                if (e != null) {
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription("Write-ahead log failed").withCause(e).asRuntimeException());
+                    return;
                 }
-                Thread.sleep(sleepTime * 1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                if (call.isCancelled()) {                           // gave up while the removal was being flushed, the tuple goes back
+                    if (!exact) { this.serverState.restore(tuple); }
+                    return;
+                }
+                this.takeLatency.recordSince(start);
+                try {
+                    responseObserver.onNext(response);              // use the responseObserver to send the response
+                    responseObserver.onCompleted();                 // after sending the response, complete the call
+                } catch (StatusRuntimeException | IllegalStateException ex) {
+                    if (!exact) { this.serverState.restore(tuple); }   // cancelled after the check above, the tuple goes back too
+                }
+            });
+        });
+    }
+
+    @Override
+    public void putAll(TupleSpacesOuterClass.PutAllRequest request, StreamObserver<TupleSpacesOuterClass.PutAllResponse> responseObserver) {
+        long start = System.nanoTime();
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received PUT-ALL request in %s, %d tuples%n", Thread.currentThread().getName(), request.getNewTupleCount());
+        }
+
+        this.serverState.putAll(request.getNewTupleList(), request.getPutId());    // add every tuple of the batch under a single lock acquisition
+
+        this.serverState.sync().whenComplete((v, e) -> {            // answer once the batch is durable
+            if (e != null) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Write-ahead log failed").withCause(e).asRuntimeException());
+                return;
             }
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending PUT-ALL response in %s, OK\n\n", Thread.currentThread().getName());
+            }
+            this.putAllLatency.recordSince(start);
+            responseObserver.onNext(TupleSpacesOuterClass.PutAllResponse.newBuilder().setOk("OK").build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void readAll(TupleSpacesOuterClass.ReadAllRequest request, StreamObserver<TupleSpacesOuterClass.ReadAllResponse> responseObserver) {
+        long start = System.nanoTime();
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received READ-ALL request in %s, %s", Thread.currentThread().getName(), request);
         }
 
-        int clientId = request.getClientId();
+        ServerCallStreamObserver<TupleSpacesOuterClass.ReadAllResponse> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.ReadAllResponse>) responseObserver;
+
+        CompletableFuture<List<String>> pending = this.serverState
+                                                    .readAllAsync(request.getSearchPattern(), request.getLimit());  // parked if there is no matching tuple yet
 
-        String tuple = this.serverState
-                            .take(request.getSearchPattern());      // take tuple from tuple space
+        abandonOnCancel(call, pending);                             // client gave up (cancellation or deadline), drop the parked request
 
-        TupleSpacesOuterClass.TakeResponse response = 
-            TupleSpacesOuterClass.TakeResponse
-                                .newBuilder()
-                                .setResult(tuple)
-                                .build();                           // construct a new Protobuffer object to send as response
+        pending.thenAccept(tuples -> {
+            if (call.isCancelled()) { return; }                     // client is gone, nobody to answer to
 
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending READ-ALL response in %s, %s\n\n", Thread.currentThread().getName(), tuples);
+            }
+            this.readAllLatency.recordSince(start);
+            responseObserver.onNext(TupleSpacesOuterClass.ReadAllResponse.newBuilder().addAllResult(tuples).build());
+            responseObserver.onCompleted();
+        });
+    }
+
+    @Override
+    public void takeMany(TupleSpacesOuterClass.TakeManyRequest request, StreamObserver<TupleSpacesOuterClass.TakeManyResponse> responseObserver) {
+        long start = System.nanoTime();
         if (this.DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending TAKE response in %s, %s\n\n", Thread.currentThread().getName(), tuple);
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received TAKE-MANY request in %s, %s", Thread.currentThread().getName(), request);
         }
 
-        this.serverState.freeLock(clientId);                        // free the lock after taking the tuple
+        if (request.getN() <= 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("TAKE-MANY needs n > 0").asRuntimeException());
+            return;
+        }
 
-        responseObserver.onNext(response);                          // use the responseObserver to send the response
-        responseObserver.onCompleted();                             // after sending the response, complete the call
+        CompletableFuture<List<String>> pending = this.serverState
+                                                    .takeManyAsync(request.getSearchPattern(), request.getN()); // parked if there is no matching tuple yet
+
+        respondTakeMany(pending, request.getClientId(), false, start, responseObserver);
+    }
+
+    @Override
+    public void takeExactAll(TupleSpacesOuterClass.TakeExactAllRequest request, StreamObserver<TupleSpacesOuterClass.TakeManyResponse> responseObserver) {
+        long start = System.nanoTime();
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received TAKE-EXACT-ALL request in %s, %s", Thread.currentThread().getName(), request);
+        }
+
+        CompletableFuture<List<String>> pending = this.serverState
+                                                    .takeExactAllAsync(request.getClientId(), request.getTupleList());  // the tuples not there yet are parked
+
+        respondTakeMany(pending, request.getClientId(), true, start, responseObserver);
+    }
+
+    /**
+     * sends the response of a TAKE-MANY (or TAKE-EXACT-ALL) once its tuples are known, and releases the locks of the client
+     * a TAKE-EXACT-ALL is never abandoned nor undone, as in respondTake
+     *
+     * @param pending the future of the take
+     * @param clientId the client that asked for the take
+     * @param exact true for a TAKE-EXACT-ALL
+     * @param start when the request arrived (System.nanoTime())
+     * @param responseObserver the observer of the call
+     */
+    private void respondTakeMany(CompletableFuture<List<String>> pending, int clientId, boolean exact, long start, StreamObserver<TupleSpacesOuterClass.TakeManyResponse> responseObserver) {
+        ServerCallStreamObserver<TupleSpacesOuterClass.TakeManyResponse> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.TakeManyResponse>) responseObserver;
+
+        if (!exact) { abandonOnCancel(call, pending); }             // client gave up (cancellation or deadline), drop the parked request
+
+        pending.thenAccept(tuples -> {
+            if (call.isCancelled() && !exact) {                     // client is gone, the tuples go back to the tuple space
+                this.serverState.restoreAll(tuples);
+                return;
+            }
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending TAKE-MANY response in %s, %s\n\n", Thread.currentThread().getName(), tuples);
+            }
+
+            this.serverState.freeLock(clientId);                    // free the locks after taking the tuples
+
+            this.serverState.sync().whenComplete((v, e) -> {        // answer once the removals are durable
+                if (e != null) {
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription("Write-ahead log failed").withCause(e).asRuntimeException());
+                    return;
+                }
+                if (call.isCancelled()) {                           // gave up while the removals were being flushed, the tuples go back
+                    if (!exact) { this.serverState.restoreAll(tuples); }
+                    return;
+                }
+                this.takeManyLatency.recordSince(start);
+                try {
+                    responseObserver.onNext(TupleSpacesOuterClass.TakeManyResponse.newBuilder().addAllResult(tuples).build());
+                    responseObserver.onCompleted();
+                } catch (StatusRuntimeException | IllegalStateException ex) {
+                    if (!exact) { this.serverState.restoreAll(tuples); }   // cancelled after the check above, the tuples go back too
+                }
+            });
+        });
     }
 
     @Override
     public void requestLock(TupleSpacesOuterClass.LockRequest request, StreamObserver<TupleSpacesOuterClass.LockResponse> responseObserver) {
+        long start = System.nanoTime();
         int clientId = request.getClientId();
         String pattern = request.getSearchPattern();    // server now receives the tuple/pattern to look for
+        int copies = Math.max(1, request.getCopies());  // a TAKE-MANY may take more than one copy of each tuple
 
         if (this.DEBUG) {
             System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received LOCK request in %s, %s", Thread.currentThread().getName(), request);
         }
 
-        List<String> matches = serverState.acquireLock(clientId, pattern);    // acquire lock at any cost
+        ServerCallStreamObserver<TupleSpacesOuterClass.LockResponse> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.LockResponse>) responseObserver;
+
+        CompletableFuture<LockGrant> pending = serverState.acquireLockAsync(clientId, pattern, copies); // parked if there are no matching tuples yet
 
-        TupleSpacesOuterClass.LockResponse.Builder responseBuilder = 
-            TupleSpacesOuterClass.LockResponse
-                                .newBuilder();
+        abandonOnCancel(call, pending);                             // client gave up (cancellation or deadline), drop the parked request
 
-        for (String t : matches) { responseBuilder.addMatch(t); }
+        pending.thenAccept(grant -> {
+            // client is gone: the locks this LOCK granted are released, the ones the client already held stay with it
+            if (call.isCancelled()) {
+                this.serverState.releaseLocks(clientId, grant.getGranted());
+                return;
+            }
+            List<String> matches = grant.getMatches();
+
+            TupleSpacesOuterClass.LockResponse.Builder responseBuilder = 
+                TupleSpacesOuterClass.LockResponse
+                                    .newBuilder();
+
+            for (String t : matches) { responseBuilder.addMatch(t); }
+
+            TupleSpacesOuterClass.LockResponse response = responseBuilder.build();
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending LOCK response in %s, %s\n\n", Thread.currentThread().getName(), matches);
+            }
+
+            this.serverState.sync().whenComplete((v, e) -> {        // answer once the locks are durable
+                if (e != null) {
+                    responseObserver.onError(Status.UNAVAILABLE.withDescription("Write-ahead log failed").withCause(e).asRuntimeException());
+                    return;
+                }
+                if (call.isCancelled()) {                           // gave up while the locks were being flushed
+                    this.serverState.releaseLocks(clientId, grant.getGranted());
+                    return;
+                }
+                if (matches.isEmpty()) { this.emptyLocks.incrementAndGet(); }
+                this.lockLatency.recordSince(start);
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+            });
+        });
+    }
+
+    /**
+     * RELEASE-LOCKS: gives back the locks a client got in a LOCK but won't take (e.g. its voters had no common tuple),
+     * so the other clients don't have to wait for its TAKE to end to lock them
+     */
+    @Override
+    public void releaseLocks(TupleSpacesOuterClass.ReleaseLocksRequest request, StreamObserver<TupleSpacesOuterClass.ReleaseLocksResponse> responseObserver) {
+        int clientId = request.getClientId();
+        List<String> tuples = request.getTupleList();
 
-        TupleSpacesOuterClass.LockResponse response = responseBuilder.build();
-        
         if (this.DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending LOCK response in %s, %s\n\n", Thread.currentThread().getName(), matches);
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received RELEASE-LOCKS request in %s, %s", Thread.currentThread().getName(), request);
         }
 
-        responseObserver.onNext(response);
-        responseObserver.onCompleted();
+        this.releasedLocks.addAndGet(this.serverState.releaseLocks(clientId, tuples));
+
+        this.serverState.sync().whenComplete((v, e) -> {            // answer once the releases are durable
+            if (e != null) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Write-ahead log failed").withCause(e).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(TupleSpacesOuterClass.ReleaseLocksResponse.getDefaultInstance());
+            responseObserver.onCompleted();
+        });
     }
 
     @Override
@@ -208,5 +477,214 @@ public class TupleSpacesServiceImpl extends TupleSpacesGrpc.TupleSpacesImplBase
         responseObserver.onNext(response);                          // use the responseObserver to send the response
         responseObserver.onCompleted();                             // after sending the response, complete the call
     }
-}
 
+    @Override
+    public void getStats(TupleSpacesOuterClass.GetStatsRequest request, StreamObserver<TupleSpacesOuterClass.GetStatsResponse> responseObserver) {
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received GET-STATS request in %s%n", Thread.currentThread().getName());
+        }
+
+        responseObserver.onNext(stats());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * @return the operation metrics of the replica, for GET-STATS and the periodic dump
+     */
+    public TupleSpacesOuterClass.GetStatsResponse stats() {
+        TupleSpacesOuterClass.GetStatsResponse.Builder stats =
+                TupleSpacesOuterClass.GetStatsResponse
+                                    .newBuilder()
+                                    .setSource("replica " + this.port);
+
+        stats.addHistogram(histogramStats("put", this.putLatency, "us", 1000))
+             .addHistogram(histogramStats("read", this.readLatency, "us", 1000))
+             .addHistogram(histogramStats("take", this.takeLatency, "us", 1000))
+             .addHistogram(histogramStats("lock", this.lockLatency, "us", 1000))
+             .addHistogram(histogramStats("putAll", this.putAllLatency, "us", 1000))
+             .addHistogram(histogramStats("readAll", this.readAllLatency, "us", 1000))
+             .addHistogram(histogramStats("takeMany", this.takeManyLatency, "us", 1000))
+             .addHistogram(histogramStats("scanLength", this.serverState.getScanLengths(), "tuples", 1));
+
+        Map<Integer, Integer> lockTable = this.serverState.getLockTableSizes();
+        long locksHeld = 0;
+        for (int held : lockTable.values()) { locksHeld += held; }
+
+        stats.putCounter("tuples", this.serverState.getSize())
+             .putCounter("parked", this.serverState.getParked())
+             .putCounter("expiredWaits", this.serverState.getExpiredWaits())
+             .putCounter("cancelledWaits", this.serverState.getCancelledWaits())
+             .putCounter("lockConflicts", this.serverState.getLockConflicts())
+             .putCounter("emptyLocks", this.emptyLocks.get())
+             .putCounter("releasedLocks", this.releasedLocks.get())
+             .putCounter("lockHolders", lockTable.size())
+             .putCounter("locksHeld", locksHeld);
+
+        if (this.serverState.getLog() != null) {
+            stats.putCounter("walRecords", this.serverState.getLog().getRecords())
+                 .putCounter("walFsyncs", this.serverState.getLog().getFsyncs());
+        }
+
+        return stats.build();
+    }
+
+    /**
+     * @param name the name of the histogram
+     * @param histogram the histogram
+     * @param unit the unit of the values reported
+     * @param scale what each recorded value is divided by, e.g. 1000 to report nanoseconds in microseconds
+     */
+    private static TupleSpacesOuterClass.HistogramStats histogramStats(String name, Histogram histogram, String unit, long scale) {
+        return TupleSpacesOuterClass.HistogramStats
+                                    .newBuilder()
+                                    .setName(name)
+                                    .setUnit(unit)
+                                    .setCount(histogram.getCount())
+                                    .setSum(histogram.getSum() / scale)
+                                    .setMax(histogram.getMax() / scale)
+                                    .setP50(histogram.getPercentile(0.5) / scale)
+                                    .setP90(histogram.getPercentile(0.9) / scale)
+                                    .setP99(histogram.getPercentile(0.99) / scale)
+                                    .setP999(histogram.getPercentile(0.999) / scale)
+                                    .build();
+    }
+
+    /**
+     * drops the parked operation of a call as soon as the client gives up on it, counting whether its deadline passed
+     * or it was cancelled (see ServerState.abandon); the thread of the call was released long before, when it parked
+     *
+     * @param call the call
+     * @param pending the future of the operation of the call
+     */
+    private void abandonOnCancel(ServerCallStreamObserver<?> call, CompletableFuture<?> pending) {
+        Context context = Context.current();                        // the context of the call, with its deadline
+
+        call.setOnCancelHandler(() -> {
+            Deadline deadline = context.getDeadline();
+            this.serverState.abandon(pending, deadline != null && deadline.isExpired());
+        });
+    }
+
+    /**
+     * streamed GET-TUPLE-SPACES-STATE: sends the tuples that match the pattern in chunks, from a cursor over the tuple space
+     * a chunk is only built when the transport can take it (onReady), so a slow client doesn't make the replica
+     * buffer the whole tuple space, and no lock of the tuple space is held while a chunk is sent
+     */
+    @Override
+    public void streamTupleSpacesState(TupleSpacesOuterClass.StreamTupleSpacesStateRequest request, StreamObserver<TupleSpacesOuterClass.TupleSpacesStateChunk> responseObserver) {
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received STREAM-TUPLE-SPACES-STATE request in %s, %s", Thread.currentThread().getName(), request);
+        }
+
+        ServerCallStreamObserver<TupleSpacesOuterClass.TupleSpacesStateChunk> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.TupleSpacesStateChunk>) responseObserver;
+
+        String pattern = request.getSearchPattern().isEmpty() ? ".*" : request.getSearchPattern();
+        int chunkSize = (request.getChunkSize() <= 0) ? DEFAULT_CHUNK_SIZE : Math.min(request.getChunkSize(), MAX_CHUNK_SIZE);
+        StateCursor cursor = this.serverState.openCursor(pattern);
+        boolean[] done = { false };                                 // the handlers of a call run one at a time
+
+        call.setOnCancelHandler(() -> done[0] = true);              // client gave up, stop walking the tuple space
+        call.setOnReadyHandler(() -> {
+            int chunks = 0;
+            while (!done[0] && call.isReady()) {
+                List<String> chunk = cursor.next(chunkSize);
+                if (chunk.isEmpty()) {
+                    done[0] = true;
+                    call.onCompleted();
+                    break;
+                }
+                call.onNext(TupleSpacesOuterClass.TupleSpacesStateChunk.newBuilder().addAllTuple(chunk).build());
+                chunks++;
+            }
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sent %d STREAM-TUPLE-SPACES-STATE chunks in %s%s\n", chunks, Thread.currentThread().getName(), done[0] ? ", done" : "");
+            }
+        });
+    }
+
+    /**
+     * WATCH: streams every tuple put from now on that matches the pattern, until the client cancels the call
+     * the tuples are queued in a bounded subscription (see Subscription) and sent only while the transport is ready,
+     * so a slow subscriber makes its own queue overflow instead of holding up the PUTs or the memory of the replica
+     */
+    @Override
+    public void watch(TupleSpacesOuterClass.WatchRequest request, StreamObserver<TupleSpacesOuterClass.WatchEvent> responseObserver) {
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received WATCH request in %s, %s", Thread.currentThread().getName(), request);
+        }
+
+        startWatch(request, responseObserver, false);
+    }
+
+    /**
+     * WATCH-UNLOCKS: streams every tuple that matches the pattern each time a client releases its lock, until the client
+     * cancels the call; the frontend retries its LOCKs as soon as one of them is released instead of waiting out its backoff
+     * the stream is the same as the one of WATCH, without putId
+     */
+    @Override
+    public void watchUnlocks(TupleSpacesOuterClass.WatchRequest request, StreamObserver<TupleSpacesOuterClass.WatchEvent> responseObserver) {
+        if (this.DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received WATCH-UNLOCKS request in %s, %s", Thread.currentThread().getName(), request);
+        }
+
+        startWatch(request, responseObserver, true);
+    }
+
+    /**
+     * @param unlocks true for WATCH-UNLOCKS, false for WATCH
+     */
+    private void startWatch(TupleSpacesOuterClass.WatchRequest request, StreamObserver<TupleSpacesOuterClass.WatchEvent> responseObserver, boolean unlocks) {
+        ServerCallStreamObserver<TupleSpacesOuterClass.WatchEvent> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.WatchEvent>) responseObserver;
+
+        String pattern = request.getSearchPattern().isEmpty() ? ".*" : request.getSearchPattern();
+        int bufferSize = (request.getBufferSize() <= 0) ? DEFAULT_WATCH_BUFFER : Math.min(request.getBufferSize(), MAX_WATCH_BUFFER);
+        WatchStream stream = new WatchStream(call);
+        Subscription subscription = unlocks ? this.serverState.watchUnlocks(pattern, bufferSize, stream::schedule)
+                                            : this.serverState.watch(pattern, bufferSize, stream::schedule);
+        stream.subscription = subscription;
+
+        call.setOnCancelHandler(() -> this.serverState.unwatch(subscription));  // the only way a WATCH ends
+        call.setOnReadyHandler(stream::schedule);
+        stream.schedule();                                          // a tuple may have been queued before the subscription was set
+    }
+
+    /**
+     * sends the queued tuples of a WATCH
+     * a drain is scheduled whenever the queue stops being empty (on the thread of the PUT) or the transport becomes ready;
+     * at most one drain runs at a time (pending counts the requests, the drain loops until it catches up with them),
+     * so the call is never used by two threads at once
+     */
+    private static class WatchStream {
+        private final ServerCallStreamObserver<TupleSpacesOuterClass.WatchEvent> call;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile Subscription subscription;
+
+        WatchStream(ServerCallStreamObserver<TupleSpacesOuterClass.WatchEvent> call) { this.call = call; }
+
+        void schedule() {
+            if (this.pending.getAndIncrement() == 0) { ForkJoinPool.commonPool().execute(this::drain); }   // never on the thread of the PUT
+        }
+
+        private void drain() {
+            int requests = 1;
+            do {
+                Subscription subscription = this.subscription;
+                while (subscription != null && !this.call.isCancelled() && this.call.isReady()) {
+                    Subscription.Event event = subscription.poll();
+                    if (event == null) { break; }
+
+                    this.call.onNext(TupleSpacesOuterClass.WatchEvent.newBuilder()
+                                                            .setTuple(event.getTuple())
+                                                            .setPutId(event.getPutId())
+                                                            .setClientId(event.getClientId())
+                                                            .setMissed(event.getMissed())
+                                                            .build());
+                }
+                requests = this.pending.addAndGet(-requests);
+            } while (requests != 0);
+        }
+    }
+}
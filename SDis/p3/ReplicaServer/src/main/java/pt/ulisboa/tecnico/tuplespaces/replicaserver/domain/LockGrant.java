@@ -0,0 +1,51 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * LockGrant is the result of a LOCK: every copy of a matching tuple the client holds the lock of, and among them the ones
+ * this LOCK granted, that the client did not hold before; a tuple appears once per copy
+ *
+ * a client may ask again for tuples it already holds (e.g. in the retried round of a take), so when the caller of a LOCK
+ * is gone only the granted tuples are released, the others still belong to the LOCK that got them first
+ */
+public class LockGrant {
+
+    private final List<String> matches;     // copies the client holds the lock of, sent in the response
+    private final List<String> granted;     // the ones locked by this LOCK
+
+
+    public LockGrant() {
+        this.matches = new ArrayList<String>();
+        this.granted = new ArrayList<String>();
+    }
+
+    /**
+     * @param tuple a tuple the client holds the lock of one more copy of
+     * @param held whether the client held the lock of that copy before this LOCK
+     */
+    public void add(String tuple, boolean held) {
+        this.matches.add(tuple);
+        if (!held) { this.granted.add(tuple); }
+    }
+
+    /**
+     * adds the tuples locked in another shard
+     * @param other the result of the other shard
+     */
+    public void addAll(LockGrant other) {
+        this.matches.addAll(other.matches);
+        this.granted.addAll(other.granted);
+    }
+
+    public List<String> getMatches() { return matches; }
+
+    public List<String> getGranted() { return granted; }
+
+    @Override
+    public String toString() {
+        return this.matches.toString();
+    }
+}
@@ -1,207 +1,1142 @@
 package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
 
+import pt.ulisboa.tecnico.tuplespaces.common.PatternCache;
+import pt.ulisboa.tecnico.tuplespaces.common.Histogram;
+
+import java.io.IOException;
+
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Queue;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 
 import java.util.Map;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.TreeMap;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
+
+/**
+ * ServerState is the tuple space of a replica, partitioned into shards by the first field of the tuples
+ *
+ * shards[i]            tuples whose first field hashes to i, and the operations parked on a pattern with a fixed first field
+ * crossShardWaiters    operations parked on a pattern that may match tuples of any shard, e.g. "<.*,b>"
+ *
+ * an operation whose pattern fixes the first field only takes the lock of its shard
+ * any other operation fans out: it searches the shards one at a time, and only if nothing matches anywhere
+ * it searches again holding every shard lock, so that no PUT can slip in before the operation is parked
+ *
+ * lock order: shard locks by increasing index, then crossShardLock
+ */
 public class ServerState {
 
-    boolean DEBUG;    
-    private Map<String, Integer> space;                     // tuple space with mapped lock for the TAKE operation
-                                                            // space={"<a,b>": -1, "<c,d>": 1, "<e,f>": -1, "<g,h>": 2, ...}
-                                                            // key: tuple, value: N (lock status)
-                                                            // N = -1 => the tuple is free
-                                                            // N > 0  => the tuple is locked by client N
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
+
+    boolean DEBUG;
+    private final Shard[] shards;                           // partitions of the tuple space, each with its own lock
+    private final PatternCache patterns;                    // compiled search patterns, shared by READ, TAKE and LOCK
+    private final WaiterRegistry crossShardWaiters;         // parked operations whose pattern may match tuples of any shard
+    private final ReentrantLock crossShardLock;             // protects crossShardWaiters
+    private final AtomicLong waiterSequence;                // order of arrival of the parked operations, across all shards
+    private WriteAheadLog log;                              // where the shards record their changes, null if the replica is not durable
+    private volatile long lastSnapshot;                     // bytes appended to the log when the last snapshot was taken
+    private final List<Subscription> subscriptions;         // active WATCHes, read by every PUT and rarely changed
+    private final List<Subscription> unlockSubscriptions;   // active WATCH-UNLOCKS, read by every release of a lock
+    private final AtomicLong expiredWaits;                  // parked operations dropped because their deadline passed
+    private final AtomicLong cancelledWaits;                // parked operations dropped because the caller gave up or was interrupted
+    private final Histogram scanLengths;                    // tuples tested against the pattern by each search of a shard
+    private final AtomicLong lockConflicts;                 // matching tuples a LOCK could not get, every copy held by other clients
 
 
     public ServerState(boolean debug) {
+        this(debug, DEFAULT_SHARDS);
+    }
+
+    public ServerState(boolean debug, int numShards) {
         this.DEBUG = debug;
-        this.space = new HashMap<String, Integer>();
+        this.patterns = new PatternCache();
+        this.scanLengths = new Histogram();
+        this.lockConflicts = new AtomicLong();
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) { this.shards[i] = new Shard(debug, this.patterns, this.scanLengths, this.lockConflicts); }
+        this.crossShardWaiters = new WaiterRegistry(this.patterns);
+        this.crossShardLock = new ReentrantLock();
+        this.waiterSequence = new AtomicLong();
+        this.subscriptions = new CopyOnWriteArrayList<Subscription>();
+        this.unlockSubscriptions = new CopyOnWriteArrayList<Subscription>();
+        this.expiredWaits = new AtomicLong();
+        this.cancelledWaits = new AtomicLong();
+    }
+
+    public int getNumShards() { return shards.length; }
+
+    /**
+     * rebuilds the tuple space from the latest snapshot and the records of the write-ahead log written after it,
+     * and records every change made from now on in the log
+     * must be called before the replica starts serving requests
+     * the records of each tuple are replayed in order, so the number of shards may differ from the previous run
+     *
+     * @param log the write-ahead log
+     * @return the number of records replayed
+     * @throws IOException if the snapshot or the log can't be read
+     */
+    public long recover(WriteAheadLog log) throws IOException {
+        long start = System.nanoTime();
+        Snapshot snapshot = Snapshot.loadLatest(log.getDirectory(), (tuple, count, holders) -> shardOfTuple(tuple).restore(tuple, count, holders));
+
+        long generation = (snapshot == null) ? 0 : snapshot.getGeneration();
+        long from = (snapshot == null) ? 0 : snapshot.getLogStart();
+
+        long records = log.replay(generation, from, (position, type, clientId, tuple) -> {
+            // the shards were copied at different positions of the log, skip the records the copy of this tuple's shard has
+            if (snapshot != null && position < snapshot.getMark(shardIndex(tuple, snapshot.getNumShards()))) { return; }
+            shardOfTuple(tuple).replay(type, clientId, tuple);
+        });
+        for (Shard shard : this.shards) { shard.setLog(log); }
+        this.log = log;
+        this.lastSnapshot = (records == 0) ? log.getAppended() : -1;   // a replayed tail is folded into the next snapshot
+
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Recovered %s and %d records of the log in %.1f ms, locks held per client %s\n",
+                              (snapshot == null) ? "no snapshot" : "snapshot " + snapshot.getGeneration(), records, (System.nanoTime() - start) / 1e6, getLockTableSizes());
+        }
+        return records;
+    }
+
+    /**
+     * writes a snapshot of the tuple space and truncates the write-ahead log behind it
+     * the shards are copied one at a time, so only the requests of the shard being copied wait, and only for the copy;
+     * the file is written after every lock is released
+     *
+     * @return true if a snapshot was written, false if the tuple space didn't change since the last one
+     * @throws IOException if the snapshot can't be written
+     */
+    public boolean snapshot() throws IOException {
+        if (this.log == null || this.log.getAppended() == this.lastSnapshot) { return false; }
+
+        long appended = this.log.getAppended();
+        long generation = this.log.getGeneration();     // only truncate() changes it, and the previous one has finished
+        long[] marks = new long[this.shards.length];
+        List<Snapshot.Entry> entries = new ArrayList<Snapshot.Entry>();
+
+        for (int i = 0; i < this.shards.length; i++) {
+            Shard shard = this.shards[i];
+            shard.getLock().lock();
+            try {
+                shard.copyTo(entries);
+                marks[i] = this.log.mark();             // the records of the shard before this position are in the copy
+            } finally {
+                shard.getLock().unlock();
+            }
+        }
+
+        Snapshot snapshot = Snapshot.write(this.log.getDirectory(), generation, marks, entries);
+        try {
+            this.log.truncate(snapshot.getLogStart()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while truncating the write-ahead log");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not truncate the write-ahead log: " + e.getCause().getMessage());
+        }
+        this.lastSnapshot = appended;
+
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Wrote snapshot %d with %d tuples, log truncated at %d\n", generation, entries.size(), snapshot.getLogStart());
+        }
+        return true;
+    }
+
+    /**
+     * the changes made so far are durable when the returned future completes, according to the sync policy of the log
+     * operations are acknowledged after it completes, so many of them share a single disk flush
+     *
+     * @return a future to wait on before answering a request that changed the tuple space
+     */
+    public CompletableFuture<Void> sync() {
+        return (this.log == null) ? CompletableFuture.completedFuture(null) : this.log.sync();
+    }
+
+    private int shardOf(String firstField) {
+        return Math.floorMod(firstField.hashCode(), this.shards.length);
+    }
+
+    /**
+     * String.hashCode is fixed by the language, so the index is the same in every run with the same number of shards
+     *
+     * @param tuple a tuple in the form "<f1,f2,...,fn>"
+     * @param numShards the number of shards
+     * @return the index of the shard the tuple belongs to
+     */
+    public static int shardIndex(String tuple, int numShards) {
+        String[] fields = TupleIndex.fieldsOf(tuple);
+        return Math.floorMod((fields.length > 0 ? fields[0] : tuple).hashCode(), numShards);
+    }
+
+    /**
+     * @param tuple a tuple in the form "<f1,f2,...,fn>"
+     * @return the shard the tuple belongs to
+     */
+    private Shard shardOfTuple(String tuple) {
+        return this.shards[shardIndex(tuple, this.shards.length)];
+    }
+
+    /**
+     * @param tuplePattern the analysed pattern
+     * @return the only shard with tuples that may match the pattern, or null if the pattern may match tuples of any shard
+     */
+    private Shard shardOfPattern(TuplePattern tuplePattern) {
+        if (tuplePattern.isExact()) {
+            return shardOfTuple(tuplePattern.getPattern());
+        }
+        if (tuplePattern.getFixedFieldCount() > 0 && tuplePattern.getFixedField(0) != null) {
+            return this.shards[shardOf(tuplePattern.getFixedField(0))];
+        }
+        return null;
+    }
+
+    private void lockAllShards() {
+        for (Shard shard : this.shards) { shard.getLock().lock(); }
+    }
+
+    private void unlockAllShards() {
+        for (int i = this.shards.length - 1; i >= 0; i--) { this.shards[i].getLock().unlock(); }
+    }
+
+    /**
+     * @param tuples a batch of tuples
+     * @return the indices of the shards of the batch, in increasing order and without repetitions
+     */
+    private int[] shardIndices(List<String> tuples) {
+        boolean[] used = new boolean[this.shards.length];
+        for (String tuple : tuples) { used[shardIndex(tuple, this.shards.length)] = true; }
+
+        int count = 0;
+        for (boolean u : used) { if (u) { count++; } }
+
+        int[] indices = new int[count];
+        for (int i = 0, j = 0; i < used.length; i++) { if (used[i]) { indices[j++] = i; } }
+        return indices;
+    }
+
+    private void lockShards(int[] indices) {
+        for (int i : indices) { this.shards[i].getLock().lock(); }
+    }
+
+    private void unlockShards(int[] indices) {
+        for (int i = indices.length - 1; i >= 0; i--) { this.shards[indices[i]].getLock().unlock(); }
+    }
+
+    /**
+     * parks an operation until a PUT of a matching tuple decides its result
+     * the caller must hold the lock that protects the registry
+     *
+     * @param registry where the operation is parked
+     * @param registryLock the lock that protects the registry
+     * @param operation the parked operation
+     * @param pattern the pattern the operation is waiting for
+     * @param clientId the client that asked for the LOCK, -1 for READ/TAKE
+     * @param copies the copies of each matching tuple the LOCK wants, 1 for READ/TAKE
+     * @param literal true if the pattern can only match itself
+     * @return the waiter, whose future completes when a matching tuple is added
+     */
+    private <T> Waiter<T> park(WaiterRegistry registry, ReentrantLock registryLock, Waiter.Operation operation, String pattern, int clientId, int copies, boolean literal) {
+        Waiter<T> waiter = new Waiter<T>(operation, pattern, clientId, copies, this.waiterSequence.getAndIncrement());
+        registry.add(waiter, literal);
+
+        waiter.getFuture().whenComplete((result, e) -> {
+            if (waiter.isCancelled()) { forget(registry, registryLock, waiter); }   // the caller gave up, e.g. the gRPC call was cancelled
+        });
+
+        return waiter;
+    }
+
+    /**
+     * parks an operation that may match tuples of any shard
+     * the caller must hold every shard lock
+     */
+    private <T> Waiter<T> parkCrossShard(Waiter.Operation operation, String pattern, int clientId, int copies, TuplePattern tuplePattern) {
+        this.crossShardLock.lock();
+        try {
+            return park(this.crossShardWaiters, this.crossShardLock, operation, pattern, clientId, copies, tuplePattern.isExact());
+        } finally {
+            this.crossShardLock.unlock();
+        }
+    }
+
+    /**
+     * removes a parked operation whose caller gave up waiting
+     * @param registry where the operation is parked
+     * @param registryLock the lock that protects the registry
+     * @param waiter the waiter to remove
+     */
+    private void forget(WaiterRegistry registry, ReentrantLock registryLock, Waiter<?> waiter) {
+        registryLock.lock();
+        try {
+            registry.remove(waiter);
+
+            if (DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Dropped parked %s for pattern: %s\n", waiter.getOperation(), waiter.getPattern());
+            }
+        } finally {
+            registryLock.unlock();
+        }
+    }
+
+    /**
+     * drops an operation whose caller gave up: if it is still parked, its waiter is removed from its registry
+     * (see parkIn), so a tuple put later is not handed to nobody
+     *
+     * @param pending the future of the operation
+     * @param expired true if the caller gave up because its deadline passed, false if it cancelled
+     * @return true if the operation was still parked
+     */
+    public boolean abandon(CompletableFuture<?> pending, boolean expired) {
+        if (!pending.cancel(false)) { return false; }      // already done, the caller must undo its effects itself
+
+        (expired ? this.expiredWaits : this.cancelledWaits).incrementAndGet();
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Abandoned a parked operation (%s), %d expired and %d cancelled so far\n", expired ? "deadline" : "cancelled", this.expiredWaits.get(), this.cancelledWaits.get());
+        }
+        return true;
+    }
+
+    public long getExpiredWaits() { return expiredWaits.get(); }
+
+    public long getCancelledWaits() { return cancelledWaits.get(); }
+
+    public Histogram getScanLengths() { return scanLengths; }
+
+    public long getLockConflicts() { return lockConflicts.get(); }
+
+    /**
+     * @return the number of operations parked right now, read without taking any lock
+     */
+    public int getParked() {
+        int parked = this.crossShardWaiters.size();
+        for (Shard shard : this.shards) { parked += shard.getWaiters().size(); }
+        return parked;
+    }
+
+    /**
+     * @return the number of tuples (every copy) in the tuple space, the shards are counted one at a time
+     */
+    public long getSize() {
+        long size = 0;
+        for (Shard shard : this.shards) {
+            shard.getLock().lock();
+            try {
+                size += shard.size();
+            } finally {
+                shard.getLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the write-ahead log of the replica, null if it is not durable
+     */
+    public WriteAheadLog getLog() { return log; }
+
+    /**
+     * blocks the calling thread until an asynchronous operation completes or the timeout passes
+     * either way the thread never stays behind: on timeout or interruption the operation is abandoned
+     *
+     * @param pending the future of the operation
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return the result of the operation
+     * @throws InterruptedException if the thread is interrupted while waiting for a parked operation
+     * @throws TimeoutException if the operation didn't complete in time
+     */
+    public <T> T await(CompletableFuture<T> pending, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        try {
+            return pending.get(timeout, unit);
+        } catch (TimeoutException e) {
+            if (abandon(pending, true)) { throw e; }
+            return await(pending);                          // completed right at the deadline
+        } catch (InterruptedException e) {
+            if (abandon(pending, false)) { throw e; }
+            Thread.currentThread().interrupt();             // completed anyway: the result is not lost, the interruption is kept for later
+            return pending.join();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * blocks the calling thread until an asynchronous operation completes, the operation is abandoned if the thread is interrupted
+     * @param pending the future of the operation
+     * @return the result of the operation
+     * @throws InterruptedException if the thread is interrupted while waiting for a parked operation
+     */
+    private <T> T await(CompletableFuture<T> pending) throws InterruptedException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            if (abandon(pending, false)) { throw e; }
+            Thread.currentThread().interrupt();             // completed anyway: the result is not lost, the interruption is kept for later
+            return pending.join();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * adds the tuples a shard locked for a client to the tuples locked in the other shards
+     * @return the combined result, null only if both are a MISS
+     */
+    private static LockGrant combineLocks(LockGrant locked, LockGrant shardLocked) {
+        if (shardLocked == null) { return locked; }
+        if (locked == null) { return shardLocked; }
+        locked.addAll(shardLocked);
+        return locked;
     }
 
     /**
      * REQUEST-LOCK operation:  tries to acquire the lock(s) for a client
+     *                          if there are no matching tuples, the request is parked until one is added
      *
      * @param clientId the client ID
      * @param pattern the pattern to match. the pattern may be a regular expression or a simple tuple
-     * @return true if the lock is granted to the client
-     */
-    public List<String> acquireLock(int clientId, String pattern) {
-        boolean hasAtLeastOneMatchLocked = false;
-
-        while (true) {
-            synchronized (this) {
-                
-                List<String> matches = new ArrayList<String>(); // list of tuples that match the pattern
-                
-                for (Map.Entry<String, Integer> entry : this.space.entrySet()) {    // iterate over the tuple space
-                    if (entry.getKey().matches(pattern)) {                              // if the tuple matches the pattern
-                        if (entry.getValue() == -1 || entry.getValue() == clientId) {   // if the tuple is free or if the tuple is locked, but it's locked by the client
-                            entry.setValue(clientId);       // lock the tuple for the client
-                            matches.add(entry.getKey());    // add the tuple to the list of matches
-                            if (DEBUG) {
-                                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Lock granted to client %d for tuple %s\n", clientId, entry.getKey());
-                            }
-                        }
-                        else {
-                            // if the tuple matches the pattern but is locked by another client
-                            // we keep going to check the other tuples
-                            hasAtLeastOneMatchLocked = true;
-                            if (DEBUG) {
-                                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Lock denied to client %d for tuple %s - locked by client %d\n", clientId, entry.getKey(), entry.getValue());
-                            }
-                        }
-                    }
-                }
+     * @return a future with the tuples locked for the client, and which of them it did not hold before
+     */
+    public CompletableFuture<LockGrant> acquireLockAsync(int clientId, String pattern) {
+        return acquireLockAsync(clientId, pattern, 1);
+    }
 
-                if (matches.isEmpty() && !hasAtLeastOneMatchLocked) {    // MISS: the client didn't get any locks because there are no matching tuples
+    /**
+     * REQUEST-LOCK operation of a TAKE-MANY, see acquireLockAsync(clientId, pattern)
+     * the client locks up to some copies of each matching tuple, so it can take more than one copy of the same tuple
+     *
+     * @param clientId the client ID
+     * @param pattern the pattern to match. the pattern may be a regular expression or a simple tuple
+     * @param copies the copies of each matching tuple the client wants to hold the lock of
+     * @return a future with the copies locked for the client (a tuple appears once per copy), and which of them it did not hold before
+     */
+    public CompletableFuture<LockGrant> acquireLockAsync(int clientId, String pattern, int copies) {
+        TuplePattern tuplePattern = TuplePattern.parse(pattern);
+        Pattern compiledPattern = this.patterns.get(pattern);
+        Shard shard = shardOfPattern(tuplePattern);
+
+        if (shard != null) {
+            shard.getLock().lock();
+            try {
+                LockGrant matches = shard.lockMatching(clientId, compiledPattern, tuplePattern, copies);
+                if (matches != null) {
                     if (DEBUG) {
-                        System.err.printf("[\u001B[34mDEBUG\u001B[0m] MISS: No tuples found for client %d with pattern %s. Block until a tuple is added\n", clientId, pattern);
-                    }
-                    try {
-                        wait();             // block until a tuple is added
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
+                        System.err.println("[\u001B[34mDEBUG\u001B[0m] HIT: " + shard);
                     }
+                    return CompletableFuture.completedFuture(matches);
                 }
-                else {                      // HIT: the client successfully acquired locks for the tuples OR the client got no locks but it has matching tuples that are locked by other clients
-                    if (DEBUG) {
-                        System.err.println("[\u001B[34mDEBUG\u001B[0m] HIT: " + this.space);
-                    }
-                    return matches; // return the list of tuples that match the pattern
+
+                if (DEBUG) {
+                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] MISS: No tuples found for client %d with pattern %s. Parking until a tuple is added\n", clientId, pattern);
                 }
+                return this.<LockGrant>park(shard.getWaiters(), shard.getLock(), Waiter.Operation.LOCK, pattern, clientId, copies, tuplePattern.isExact()).getFuture();
+            } finally {
+                shard.getLock().unlock();
             }
         }
+
+        // the pattern may match tuples of any shard: lock what matches in each one of them
+        LockGrant matches = null;
+        for (Shard s : this.shards) {
+            s.getLock().lock();
+            try {
+                matches = combineLocks(matches, s.lockMatching(clientId, compiledPattern, tuplePattern, copies));
+            } finally {
+                s.getLock().unlock();
+            }
+        }
+        if (matches != null) { return CompletableFuture.completedFuture(matches); }
+
+        lockAllShards();
+        try {
+            for (Shard s : this.shards) { matches = combineLocks(matches, s.lockMatching(clientId, compiledPattern, tuplePattern, copies)); }
+            if (matches != null) { return CompletableFuture.completedFuture(matches); }
+
+            if (DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] MISS: No tuples found in any shard for client %d with pattern %s. Parking until a tuple is added\n", clientId, pattern);
+            }
+            return this.<LockGrant>parkCrossShard(Waiter.Operation.LOCK, pattern, clientId, copies, tuplePattern).getFuture();
+        } finally {
+            unlockAllShards();
+        }
+    }
+
+    /**
+     * REQUEST-LOCK operation:  blocking version of acquireLockAsync
+     *
+     * @param clientId the client ID
+     * @param pattern the pattern to match. the pattern may be a regular expression or a simple tuple
+     * @return the list of tuples locked for the client
+     * @throws InterruptedException if the thread is interrupted while the operation is parked, which is then abandoned
+     */
+    public List<String> acquireLock(int clientId, String pattern) throws InterruptedException {
+        return await(acquireLockAsync(clientId, pattern)).getMatches();
     }
 
     /**
      * REQUEST-UNLOCK operation:    releases the lock(s) for a client
-     * 
+     *
      * @param clientId the client ID
      */
-    public synchronized void freeLock(int clientId) {
-        
+    public void freeLock(int clientId) {
         if (DEBUG) {
             System.err.printf("[\u001B[34mDEBUG\u001B[0m] Freeing possible locks for client %d\n", clientId);
         }
 
-        for (Map.Entry<String, Integer> entry : this.space.entrySet()) {    // iterate over the tuple space
-            if (entry.getValue() == clientId) {       // if the tuple is locked by the client
-                entry.setValue(-1);                   // unlock the tuple for the client
-                if (DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Lock released for client %d for tuple %s\n", clientId, entry.getKey());
-                }
+        for (Shard shard : this.shards) {
+            if (!shard.holdsLocks(clientId)) { continue; }     // most shards hold nothing for the client, don't even take their lock
+
+            Set<String> unlocked;
+            shard.getLock().lock();
+            try {
+                unlocked = shard.freeLock(clientId);
+            } finally {
+                shard.getLock().unlock();
             }
+            if (unlocked != null) { publishUnlocks(clientId, unlocked); }
         }
     }
 
+    /**
+     * releases the locks a client holds on some tuples, e.g. the ones a LOCK granted after its caller gave up
+     * the locks of the client on other tuples are kept
+     *
+     * @param clientId the client ID
+     * @param tuples the tuples to unlock
+     * @return the number of tuples the client held the lock of, and no longer does
+     */
+    public int releaseLocks(int clientId, List<String> tuples) {
+        int[] indices = shardIndices(tuples);
+        List<String> unlocked = new ArrayList<String>(tuples.size());
+
+        lockShards(indices);
+        try {
+            for (String tuple : tuples) {
+                if (shardOfTuple(tuple).unlock(clientId, tuple)) { unlocked.add(tuple); }
+            }
+        } finally {
+            unlockShards(indices);
+        }
+        publishUnlocks(clientId, unlocked);
+        return unlocked.size();
+    }
+
+    /**
+     * @return the number of tuples each client holds the lock of, across all shards
+     */
+    public Map<Integer, Integer> getLockTableSizes() {
+        Map<Integer, Integer> sizes = new TreeMap<Integer, Integer>();
+
+        for (Shard shard : this.shards) {
+            shard.getLock().lock();
+            try {
+                for (Map.Entry<Integer, Integer> entry : shard.getLockTableSizes().entrySet()) { sizes.merge(entry.getKey(), entry.getValue(), Integer::sum); }
+            } finally {
+                shard.getLock().unlock();
+            }
+        }
+
+        return sizes;
+    }
+
     /**
      * PUT operation:   adds a tuple to the tuple space
+     *                  only the parked operations whose pattern matches the tuple are woken up
+     *                  if a parked TAKE matches, the tuple is handed to it and never enters the space
+     * @param tuple the tuple to be added
+     */
+    public void put(String tuple) {
+        put(tuple, "");
+    }
+
+    /**
+     * PUT operation, see put(tuple)
+     * once the tuple is added, it is queued in every WATCH whose pattern matches it
+     *
      * @param tuple the tuple to be added
+     * @param putId the identifier of the PUT given to the WATCHes, empty if it has none
+     */
+    public void put(String tuple, String putId) {
+        add(tuple, false);
+        publish(tuple, putId);
+    }
+
+    /**
+     * gives back a tuple taken by a TAKE (or TAKE-MANY) whose caller went away before the response was sent
+     * the tuple wakes the parked operations as a PUT does, but it is not a new tuple: the WATCHes are not told again,
+     * and it is logged as a RESTORE, the undo of the TAKE record, not as a PUT
+     *
+     * @param tuple the tuple to give back
      */
-    public synchronized void put(String tuple) {
-        this.space.put(tuple, -1);
+    public void restore(String tuple) {
+        add(tuple, true);
+    }
 
-        if (DEBUG) {
-            System.err.println("[\u001B[34mDEBUG\u001B[0m] Added tuple: " + tuple);
+    /**
+     * gives back the tuples of a TAKE-MANY, see restore(tuple)
+     * @param tuples the tuples to give back
+     */
+    public void restoreAll(List<String> tuples) {
+        for (String tuple : tuples) { add(tuple, true); }
+    }
+
+    /**
+     * adds a tuple, see put(tuple), without telling the WATCHes
+     * @param tuple the tuple to be added
+     * @param restored true if the tuple is given back by restore
+     */
+    private void add(String tuple, boolean restored) {
+        List<Waiter<?>> woken = new ArrayList<Waiter<?>>();
+        Waiter<String> taker;
+        Shard shard = shardOfTuple(tuple);
+
+        shard.getLock().lock();
+        try {
+            // an operation is parked in crossShardWaiters while holding every shard lock, so under our shard lock the size is up to date
+            taker = putLocked(shard, tuple, restored, this.crossShardWaiters.size() > 0, woken);
+        } finally {
+            shard.getLock().unlock();
+        }
+
+        for (Waiter<?> w : woken) {         // run the continuations outside the lock
+            if (!w.deliver()) { undeliverable(w, w == taker ? tuple : null, restored); }
+        }
+    }
+
+    /**
+     * undoes what a PUT decided for a parked operation whose caller gave up in the meantime
+     * called outside the locks, after deliver() failed
+     *
+     * @param w the operation
+     * @param handed the tuple handed to it if it is a TAKE, null otherwise
+     * @param restored true if the tuple was given back by restore
+     */
+    private void undeliverable(Waiter<?> w, String handed, boolean restored) {
+        if (handed != null) {
+            add(handed, restored);          // the TAKE gave up, the tuple goes to the space after all
+        }
+        else if (w.getOperation() == Waiter.Operation.LOCK && w.getResult() != null) {
+            releaseLocks(w.getClientId(), ((LockGrant) w.getResult()).getGranted());   // the LOCK gave up, nobody will take what it locked
+        }
+    }
+
+    /**
+     * PUT-ALL operation:   adds a batch of tuples to the tuple space, as PUT does for each one of them
+     *                      the locks of the shards of the batch are taken once, in order, for the whole batch
+     * @param tuples the tuples to be added
+     */
+    public void putAll(List<String> tuples) {
+        putAll(tuples, "");
+    }
+
+    /**
+     * PUT-ALL operation, see putAll(tuples)
+     * the identifier of the PUT of the i-th tuple of the batch, given to the WATCHes, is putId#i
+     *
+     * @param tuples the tuples to be added
+     * @param putId the identifier of the batch, empty if it has none
+     */
+    public void putAll(List<String> tuples, String putId) {
+        List<Waiter<?>> woken = new ArrayList<Waiter<?>>();
+        Map<Waiter<?>, String> handed = new IdentityHashMap<Waiter<?>, String>();  // TAKEs handed a tuple of the batch
+        int[] indices = shardIndices(tuples);
+
+        lockShards(indices);
+        try {
+            boolean crossShard = this.crossShardWaiters.size() > 0;
+            for (String tuple : tuples) {
+                Waiter<String> taker = putLocked(shardOfTuple(tuple), tuple, false, crossShard, woken);
+                if (taker != null) { handed.put(taker, tuple); }
+            }
+        } finally {
+            unlockShards(indices);
         }
 
-        notifyAll();
+        for (Waiter<?> w : woken) {         // run the continuations outside the locks
+            if (!w.deliver()) { undeliverable(w, handed.get(w), false); }
+        }
+
+        for (int i = 0; i < tuples.size(); i++) { publish(tuples.get(i), putId.isEmpty() ? "" : putId + "#" + i); }
     }
 
     /**
-     * returns a tuple that matches the pattern that may be a regular expression
+     * WATCH operation: from now on, every tuple put that matches the pattern is queued in the subscription
+     *
      * @param pattern the pattern to match
-     * @return the tuple that matches the pattern
+     * @param capacity the maximum number of tuples queued, the next ones are dropped until the subscriber catches up
+     * @param onAvailable called, without any lock of the tuple space held, when the queue stops being empty
+     * @return the subscription
      */
-    private String getMatchingTuple(String pattern) {
-        for (Map.Entry<String, Integer> entry : this.space.entrySet()) {
-            if (entry.getKey().matches(pattern)) { return entry.getKey(); }
+    public Subscription watch(String pattern, int capacity, Runnable onAvailable) {
+        Subscription subscription = new Subscription(pattern, this.patterns.get(pattern), capacity, onAvailable);
+        this.subscriptions.add(subscription);
+
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Watching pattern %s, %d subscriptions\n", pattern, this.subscriptions.size());
         }
+        return subscription;
+    }
 
-        return null;
+    /**
+     * WATCH-UNLOCKS operation: from now on, every tuple that matches the pattern is queued in the subscription whenever
+     * a client releases its lock, so whoever is waiting for the lock (the frontend, before retrying a LOCK) knows when
+     *
+     * @param pattern the pattern to match
+     * @param capacity the maximum number of tuples queued, the next ones are dropped until the subscriber catches up
+     * @param onAvailable called, without any lock of the tuple space held, when the queue stops being empty
+     * @return the subscription, ended with unwatch
+     */
+    public Subscription watchUnlocks(String pattern, int capacity, Runnable onAvailable) {
+        Subscription subscription = new Subscription(pattern, this.patterns.get(pattern), capacity, onAvailable);
+        this.unlockSubscriptions.add(subscription);
+
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Watching the unlocks of pattern %s, %d subscriptions\n", pattern, this.unlockSubscriptions.size());
+        }
+        return subscription;
+    }
+
+    /**
+     * ends a WATCH or a WATCH-UNLOCKS
+     * @param subscription the subscription returned by watch or watchUnlocks
+     */
+    public void unwatch(Subscription subscription) {
+        this.subscriptions.remove(subscription);
+        this.unlockSubscriptions.remove(subscription);
+
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Stopped watching pattern %s, %d tuples dropped, %d subscriptions\n", subscription.getPattern(), subscription.getDropped(), this.subscriptions.size());
+        }
+    }
+
+    /**
+     * queues a tuple just put in the WATCHes whose pattern matches it
+     * called after the locks of the PUT are released, so a subscriber never holds up the shard
+     */
+    private void publish(String tuple, String putId) {
+        for (Subscription subscription : this.subscriptions) {
+            if (subscription.matches(tuple)) { subscription.offer(tuple, putId); }
+        }
+    }
+
+    /**
+     * queues the tuples just unlocked in the WATCH-UNLOCKS whose pattern matches them
+     * called after the locks of the shards are released, like publish
+     *
+     * @param clientId the client that released the locks, sent with the tuples so it can ignore its own releases
+     * @param tuples the tuples unlocked
+     */
+    private void publishUnlocks(int clientId, Collection<String> tuples) {
+        for (Subscription subscription : this.unlockSubscriptions) {
+            for (String tuple : tuples) {
+                if (subscription.matches(tuple)) { subscription.offer(tuple, "", clientId); }
+            }
+        }
+    }
+
+    /**
+     * adds a tuple to its shard, or hands it to the oldest parked TAKE that matches it, and decides the result of the
+     * parked operations it wakes up; they are added to woken, to be delivered once the locks are released
+     * the caller must hold the lock of the shard
+     *
+     * @param shard the shard of the tuple
+     * @param tuple the tuple to be added
+     * @param restored true if the tuple is given back by restore, it is logged as a RESTORE
+     * @param crossShard true if there are operations parked in crossShardWaiters
+     * @param woken where the woken operations are added
+     * @return the TAKE the tuple was handed to, or null if it was added to the shard
+     */
+    @SuppressWarnings("unchecked")
+    private Waiter<String> putLocked(Shard shard, String tuple, boolean restored, boolean crossShard, List<Waiter<?>> woken) {
+        Waiter<String> taker;
+        int first = woken.size();
+
+        if (crossShard) { this.crossShardLock.lock(); }
+        try {
+            List<String> shardRegex = shard.getWaiters().matchingRegex(tuple);
+            List<String> crossShardRegex = crossShard ? this.crossShardWaiters.matchingRegex(tuple) : Collections.<String>emptyList();
+
+            // the oldest TAKE among both registries gets the tuple
+            taker = shard.getWaiters().oldestTake(tuple, shardRegex, null);
+            if (crossShard) { taker = this.crossShardWaiters.oldestTake(tuple, crossShardRegex, taker); }
+
+            shard.getWaiters().wakeMatching(tuple, shardRegex, taker, woken);
+            if (crossShard) { this.crossShardWaiters.wakeMatching(tuple, crossShardRegex, taker, woken); }
+        } finally {
+            if (crossShard) { this.crossShardLock.unlock(); }
+        }
+
+        if (taker == null) {
+            if (restored) { shard.restore(tuple); }
+            else { shard.add(tuple); }
+
+            for (Waiter<?> w : woken.subList(first, woken.size())) {
+                if (w.getOperation() == Waiter.Operation.LOCK) {        // the new tuple matches, so the LOCK is a HIT now
+                    // a parked LOCK saw no matching tuple anywhere and any other matching PUT would have woken it,
+                    // so the only tuples it can lock are in this shard
+                    ((Waiter<LockGrant>) w).setResult(shard.lockMatching(w.getClientId(), this.patterns.get(w.getPattern()), TuplePattern.parse(w.getPattern()), w.getCopies()));
+                }
+            }
+        }
+
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] %s tuple: %s, woke %d parked operations\n", (taker == null) ? "Added" : "Handed parked take", tuple, woken.size() - first);
+        }
+        return taker;
     }
 
     /**
      * READ operation:  accepts a tuple description to find a match in the tuple space
-     *                  blocks the client until there is a tuple that satisfies description
+     *                  if there is none, the request is parked until a tuple that satisfies description is added
      *                  the tuple is not removed from the tuple space
      *
      * @param pattern the pattern to match
+     * @return a future with the tuple that matches the pattern
+     */
+    public CompletableFuture<String> readAsync(String pattern) {
+        return search(pattern, false);
+    }
+
+    /**
+     * READ operation:  blocking version of readAsync
+     *
+     * @param pattern the pattern to match
      * @return the tuple that matches the pattern
+     * @throws InterruptedException if the thread is interrupted while the operation is parked, which is then abandoned
      */
-    public synchronized String read(String pattern) {
-        while (true) {
-            String t = getMatchingTuple(pattern);
-            if (t != null) {
-                if (DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Read tuple %s for pattern: %s%n", t, pattern);
+    public String read(String pattern) throws InterruptedException {
+        return await(readAsync(pattern));
+    }
+
+    /**
+     * TAKE operation:  accepts a tuple description to find a match in the tuple space
+     *                  if there is none, the request is parked until a tuple that satisfies description is added
+     *                  the tuple is removed from the tuple space
+     *
+     * @param pattern the pattern to match
+     * @return a future with the tuple that matches the pattern
+     */
+    public CompletableFuture<String> takeAsync(String pattern) {
+        return search(pattern, true);
+    }
+
+    /**
+     * TAKE operation:  blocking version of takeAsync
+     *
+     * @param pattern the pattern to match
+     * @return the tuple that matches the pattern
+     * @throws InterruptedException if the thread is interrupted while the operation is parked, which is then abandoned
+     */
+    public String take(String pattern) throws InterruptedException {
+        return await(takeAsync(pattern));
+    }
+
+    /**
+     * TAKE-EXACT operation:    removes exactly the given tuple, chosen in the lock phase of the replicated take
+     *                          the tuple is not a pattern, so it is a single lookup even if it has regular expression metacharacters
+     *                          if the tuple is not in the tuple space yet (e.g. its PUT is still on the way), the request is parked
+     *
+     * @param clientId the client that takes the tuple, the copy it holds the lock of is the one removed
+     * @param tuple the tuple to remove
+     * @return a future with the removed tuple
+     */
+    public CompletableFuture<String> takeExactAsync(int clientId, String tuple) {
+        Shard shard = shardOfTuple(tuple);
+
+        shard.getLock().lock();
+        try {
+            if (shard.contains(tuple)) {
+                shard.removeOne(tuple, clientId);
+                return found(tuple, tuple, true);
+            }
+
+            if (DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Parking TAKE because tuple %s is not in the tuple space yet\n\n", tuple);
+            }
+            return this.<String>park(shard.getWaiters(), shard.getLock(), Waiter.Operation.TAKE, tuple, -1, 1, true).getFuture();
+        } finally {
+            shard.getLock().unlock();
+        }
+    }
+
+    /**
+     * TAKE-EXACT operation:    blocking version of takeExactAsync
+     *
+     * @param clientId the client that takes the tuple
+     * @param tuple the tuple to remove
+     * @return the removed tuple
+     * @throws InterruptedException if the thread is interrupted while the operation is parked, which is then abandoned
+     */
+    public String takeExact(int clientId, String tuple) throws InterruptedException {
+        return await(takeExactAsync(clientId, tuple));
+    }
+
+    /**
+     * READ-ALL operation:  returns the tuples that match the pattern, up to a limit
+     *                      if there is none, the request is parked like a READ and returns the tuple that wakes it
+     *
+     * @param pattern the pattern to match
+     * @param limit the maximum number of tuples, 0 or less for no limit
+     * @return a future with the tuples that match the pattern
+     */
+    public CompletableFuture<List<String>> readAllAsync(String pattern, int limit) {
+        return searchAll(pattern, (limit <= 0) ? Integer.MAX_VALUE : limit, false);
+    }
+
+    public List<String> readAll(String pattern, int limit) throws InterruptedException {
+        return await(readAllAsync(pattern, limit));
+    }
+
+    /**
+     * TAKE-MANY operation: removes up to n tuples that match the pattern
+     *                      if there is none, the request is parked like a TAKE and returns the tuple that wakes it
+     *
+     * @param pattern the pattern to match
+     * @param n the maximum number of tuples, at least 1
+     * @return a future with the removed tuples
+     */
+    public CompletableFuture<List<String>> takeManyAsync(String pattern, int n) {
+        return searchAll(pattern, Math.max(n, 1), true);
+    }
+
+    public List<String> takeMany(String pattern, int n) throws InterruptedException {
+        return await(takeManyAsync(pattern, n));
+    }
+
+    /**
+     * TAKE-EXACT-ALL operation:    second phase of the replicated TAKE-MANY, removes exactly these tuples (see takeExactAsync)
+     *                              the tuples that are not in the tuple space yet are parked, each one on its own
+     *
+     * @param clientId the client that takes the tuples, the copies it holds the lock of are the ones removed
+     * @param tuples the tuples to remove
+     * @return a future with the removed tuples, once all of them are removed
+     */
+    public CompletableFuture<List<String>> takeExactAllAsync(int clientId, List<String> tuples) {
+        List<CompletableFuture<String>> parts = new ArrayList<CompletableFuture<String>>();
+        int[] indices = shardIndices(tuples);
+
+        lockShards(indices);
+        try {
+            for (String tuple : tuples) {
+                Shard shard = shardOfTuple(tuple);
+                if (shard.contains(tuple)) {
+                    shard.removeOne(tuple, clientId);
+                    parts.add(CompletableFuture.completedFuture(tuple));
+                }
+                else {
+                    parts.add(this.<String>park(shard.getWaiters(), shard.getLock(), Waiter.Operation.TAKE, tuple, -1, 1, true).getFuture());
                 }
-                return t;
             }
 
             if (DEBUG) {
-                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Blocking %s because no tuple found for pattern: %s\n\n", Thread.currentThread().getName(), pattern);
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Took tuples %s for client %d\n", tuples, clientId);
             }
+        } finally {
+            unlockShards(indices);
+        }
+
+        CompletableFuture<List<String>> all = CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<String> taken = new ArrayList<String>(parts.size());
+            for (CompletableFuture<String> part : parts) { taken.add(part.join()); }
+            return taken;
+        });
+        all.whenComplete((r, e) -> {
+            if (all.isCancelled()) { for (CompletableFuture<String> part : parts) { part.cancel(false); } }   // drop the parked parts
+        });
+        return all;
+    }
+
+    public List<String> takeExactAll(int clientId, List<String> tuples) throws InterruptedException {
+        return await(takeExactAllAsync(clientId, tuples));
+    }
+
+    /**
+     * READ-ALL and TAKE-MANY: collects up to limit tuples that match the pattern, holding the lock of the pattern's shard,
+     * or every shard lock, once; if none matches, the operation is parked like a READ or a TAKE
+     *
+     * @param pattern the pattern to match
+     * @param limit the maximum number of tuples
+     * @param take true for TAKE-MANY, false for READ-ALL
+     * @return a future with the tuples
+     */
+    private CompletableFuture<List<String>> searchAll(String pattern, int limit, boolean take) {
+        TuplePattern tuplePattern = TuplePattern.parse(pattern);
+        Pattern compiledPattern = this.patterns.get(pattern);
+        Waiter.Operation operation = take ? Waiter.Operation.TAKE : Waiter.Operation.READ;
+        Shard shard = shardOfPattern(tuplePattern);
+        List<String> matches = new ArrayList<String>();
+        Waiter<String> waiter;
 
+        if (shard != null) {
+            shard.getLock().lock();
             try {
-                wait(); // waits until a tuple is available
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                shard.getMatchingTuples(compiledPattern, tuplePattern, limit, matches);
+                if (!matches.isEmpty()) {
+                    if (take) { for (String t : matches) { shard.remove(t); } }
+                    return foundAll(matches, pattern, take);
+                }
+                waiter = park(shard.getWaiters(), shard.getLock(), operation, pattern, -1, 1, tuplePattern.isExact());
+            } finally {
+                shard.getLock().unlock();
             }
         }
+        else {
+            lockAllShards();
+            try {
+                for (Shard s : this.shards) {
+                    int before = matches.size();
+                    s.getMatchingTuples(compiledPattern, tuplePattern, limit, matches);
+                    if (take) { for (String t : matches.subList(before, matches.size())) { s.remove(t); } }
+                }
+                if (!matches.isEmpty()) { return foundAll(matches, pattern, take); }
+                waiter = parkCrossShard(operation, pattern, -1, 1, tuplePattern);
+            } finally {
+                unlockAllShards();
+            }
+        }
+
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Parking %s (batch) because no tuple found for pattern: %s\n\n", operation, pattern);
+        }
+        CompletableFuture<String> parked = waiter.getFuture();
+        CompletableFuture<List<String>> result = parked.thenApply(t -> Collections.singletonList(t));
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) { parked.cancel(false); }    // the caller gave up, drop the parked operation
+        });
+        return result;
+    }
+
+    private CompletableFuture<List<String>> foundAll(List<String> matches, String pattern, boolean take) {
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] %s %d tuples %s for pattern: %s%n", take ? "Took" : "Read", matches.size(), matches, pattern);
+        }
+        return CompletableFuture.completedFuture(matches);
     }
 
     /**
-     * TAKE operation:  accepts a tuple description to find a match in the tuple space
-     *                  blocks the client until there is a tuple that satisfies description
-     *                  the tuple is removed from the tuple space
+     * looks for a tuple that matches the pattern in a shard, and removes it for a TAKE
+     * the caller must hold the lock of the shard
+     */
+    private String findIn(Shard shard, Pattern compiledPattern, TuplePattern tuplePattern, boolean take) {
+        String t = shard.getMatchingTuple(compiledPattern, tuplePattern);
+        if (t != null && take) { shard.remove(t); }
+        return t;
+    }
+
+    private CompletableFuture<String> found(String t, String pattern, boolean take) {
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] %s tuple %s for pattern: %s%n", take ? "Took" : "Read", t, pattern);
+        }
+        return CompletableFuture.completedFuture(t);
+    }
+
+    /**
+     * READ and TAKE: finds a tuple that matches the pattern, in its shard or in every shard, or parks the operation
+     * a parked operation is handed the tuple by the PUT that wakes it, already removed in the case of TAKE
      *
      * @param pattern the pattern to match
-     * @return the tuple that matches the pattern
+     * @param take true for TAKE, false for READ
+     * @return a future with the tuple that matches the pattern
      */
-    public synchronized String take(String pattern) {
-        while (true) {
-            String t = getMatchingTuple(pattern);
-            if (t != null) {
-                this.space.remove(t);
+    private CompletableFuture<String> search(String pattern, boolean take) {
+        TuplePattern tuplePattern = TuplePattern.parse(pattern);
+        Pattern compiledPattern = this.patterns.get(pattern);
+        Waiter.Operation operation = take ? Waiter.Operation.TAKE : Waiter.Operation.READ;
+        Shard shard = shardOfPattern(tuplePattern);
+
+        if (shard != null) {
+            shard.getLock().lock();
+            try {
+                String t = findIn(shard, compiledPattern, tuplePattern, take);
+                if (t != null) { return found(t, pattern, take); }
 
                 if (DEBUG) {
-                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Took tuple %s for pattern: %s%n", t, pattern);
+                    System.err.printf("[\u001B[34mDEBUG\u001B[0m] Parking %s because no tuple found for pattern: %s\n\n", operation, pattern);
                 }
+                return this.<String>park(shard.getWaiters(), shard.getLock(), operation, pattern, -1, 1, tuplePattern.isExact()).getFuture();
+            } finally {
+                shard.getLock().unlock();
+            }
+        }
 
-                return t;
+        // the pattern may match tuples of any shard: fan out, one shard at a time
+        for (Shard s : this.shards) {
+            s.getLock().lock();
+            try {
+                String t = findIn(s, compiledPattern, tuplePattern, take);
+                if (t != null) { return found(t, pattern, take); }
+            } finally {
+                s.getLock().unlock();
             }
+        }
 
-            if (DEBUG) {
-                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Blocking %s because no tuple found for pattern: %s\n\n", Thread.currentThread().getName(), pattern);
+        lockAllShards();
+        try {
+            for (Shard s : this.shards) {
+                String t = findIn(s, compiledPattern, tuplePattern, take);
+                if (t != null) { return found(t, pattern, take); }
             }
 
-            try {
-                wait(); // waits until a tuple is available
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+            if (DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Parking %s because no tuple found in any shard for pattern: %s\n\n", operation, pattern);
             }
+            return this.<String>parkCrossShard(operation, pattern, -1, 1, tuplePattern).getFuture();
+        } finally {
+            unlockAllShards();
         }
     }
 
+    /**
+     * streamed GET-TUPLE-SPACES-STATE operation: opens a cursor over the tuples that match a pattern
+     * only the shard of the pattern is visited if the pattern fixes the first field
+     *
+     * @param pattern the pattern to match
+     * @return the cursor, that hands out the tuples in chunks
+     */
+    public StateCursor openCursor(String pattern) {
+        TuplePattern tuplePattern = TuplePattern.parse(pattern);
+        Shard shard = shardOfPattern(tuplePattern);
+        Shard[] shards = (shard != null) ? new Shard[] { shard } : this.shards;
+
+        return new StateCursor(shards, this.patterns.get(pattern), tuplePattern);
+    }
+
     /**
      * GET-TUPLE-SPACES-STATE operation: returns the tuple space state of the server
      * @return the tuple space state of the server
      */
-    public synchronized List<String> getTupleSpacesState() {
+    public List<String> getTupleSpacesState() {
+        lockAllShards();
+        try {
+            List<String> tupleSpacesState = new ArrayList<String>();
+            int parked = this.crossShardWaiters.size();
 
-        List<String> tupleSpacesState = new ArrayList<String>(this.space.keySet());
+            for (Shard shard : this.shards) {
+                tupleSpacesState.addAll(shard.getTuples());
+                parked += shard.getWaiters().size();
+            }
 
-        if (DEBUG) {
-            System.err.println("[\u001B[34mDEBUG\u001B[0m] Got tuple space state");
-        }
+            if (DEBUG) {
+                System.err.println("[\u001B[34mDEBUG\u001B[0m] Got tuple space state from " + this.shards.length + " shards, pattern cache " + this.patterns + ", " + parked + " parked operations (" + this.expiredWaits.get() + " expired, " + this.cancelledWaits.get() + " cancelled so far), locks held per client " + getLockTableSizes());
+            }
 
-        return tupleSpacesState;
+            return tupleSpacesState;
+        } finally {
+            unlockAllShards();
+        }
     }
 }
@@ -0,0 +1,378 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import pt.ulisboa.tecnico.tuplespaces.common.PatternCache;
+import pt.ulisboa.tecnico.tuplespaces.common.Histogram;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+
+/**
+ * Shard is one partition of the tuple space of a replica, with its own lock and its own parked operations
+ * tuples are assigned to shards by their first field, so every tuple an operation with a fixed first field can match
+ * is in a single shard, and operations on different shards run in parallel
+ *
+ * NOTE: apart from getLock(), holdsLocks() and the size of the waiters, every method must be called while holding the lock of the shard
+ */
+public class Shard {
+
+    boolean DEBUG;
+    private final Map<String, TupleEntry> space;            // tuples of this shard (a multiset) with the locks for the TAKE operation
+                                                            // space={"<a,b>": x1, "<c,d>": x3 locked by [1], "<job>": x1000000 locked by [2, 2, 5]}
+                                                            // key: tuple, value: number of copies and the clients that hold the lock of some of them
+    private int size;                                       // number of copies of all the tuples of this shard
+    private final Map<Integer, Set<String>> locksByClient;  // client -> tuples of this shard it holds the lock of, the inverse of space
+                                                            // locksByClient={1: {"<c,d>"}, 2: {"<g,h>"}}
+                                                            // concurrent so that holdsLocks can be asked without the lock
+    private final TupleIndex index;                         // tuples of this shard indexed by arity and by field value
+    private final WaiterRegistry waiters;                   // parked operations whose pattern can only match tuples of this shard
+    private final ReentrantLock lock;                       // protects all of the above
+    private WriteAheadLog log;                              // where the changes are recorded, null if the replica is not durable
+    private final Histogram scanLengths;                    // tuples tested against a pattern per search, shared by all the shards
+    private final AtomicLong lockConflicts;                 // matching tuples a LOCK could not get because other clients held every copy
+
+
+    public Shard(boolean debug, PatternCache patterns, Histogram scanLengths, AtomicLong lockConflicts) {
+        this.DEBUG = debug;
+        this.space = new HashMap<String, TupleEntry>();
+        this.size = 0;
+        this.locksByClient = new ConcurrentHashMap<Integer, Set<String>>();
+        this.index = new TupleIndex();
+        this.waiters = new WaiterRegistry(patterns);
+        this.lock = new ReentrantLock();
+        this.scanLengths = scanLengths;
+        this.lockConflicts = lockConflicts;
+    }
+
+    public ReentrantLock getLock() { return lock; }
+
+    public WaiterRegistry getWaiters() { return waiters; }
+
+    public int size() { return size; }
+
+    /**
+     * starts recording the changes of the shard in the write-ahead log, after it has been replayed
+     * @param log the write-ahead log
+     */
+    public void setLog(WriteAheadLog log) { this.log = log; }
+
+    public boolean contains(String tuple) { return space.containsKey(tuple); }
+
+    /**
+     * @return every copy of every tuple of the shard
+     */
+    public List<String> getTuples() {
+        List<String> tuples = new ArrayList<String>(this.size);
+        for (Map.Entry<String, TupleEntry> entry : this.space.entrySet()) {
+            for (int i = 0; i < entry.getValue().getCount(); i++) { tuples.add(entry.getKey()); }
+        }
+        return tuples;
+    }
+
+    /**
+     * adds a free copy of a tuple to the shard
+     * @param tuple the tuple to add
+     */
+    public void add(String tuple) {
+        add(tuple, WriteAheadLog.PUT);
+    }
+
+    /**
+     * gives back a free copy of a tuple removed for a client that went away before it got it, see ServerState.restore
+     * @param tuple the tuple to give back
+     */
+    public void restore(String tuple) {
+        add(tuple, WriteAheadLog.RESTORE);
+    }
+
+    private void add(String tuple, byte record) {
+        TupleEntry entry = this.space.get(tuple);
+        if (entry == null) {                        // first copy, the index only knows distinct tuples
+            entry = new TupleEntry();
+            this.space.put(tuple, entry);
+            this.index.add(tuple);
+        }
+        entry.add();
+        this.size++;
+        if (this.log != null) { this.log.append(record, -1, tuple); }
+    }
+
+    /**
+     * removes a copy of a tuple from the shard, preferably a free one
+     * @param tuple the tuple to remove
+     */
+    public void remove(String tuple) {
+        removeOne(tuple, -1);
+    }
+
+    /**
+     * removes a copy of a tuple from the shard, preferring the copy locked by the client, then a free one (see TupleEntry.removeOne)
+     * the caller must make sure the tuple is in the shard
+     *
+     * @param tuple the tuple to remove
+     * @param clientId the client that removes the tuple, -1 if none
+     */
+    public void removeOne(String tuple, int clientId) {
+        TupleEntry entry = this.space.get(tuple);
+
+        int owner = entry.removeOne(clientId);
+        if (owner != -1 && entry.heldBy(owner) == 0) { unlockedBy(owner, tuple); }
+
+        if (entry.getCount() == 0) {                // last copy
+            this.space.remove(tuple);
+            this.index.remove(tuple);
+        }
+        this.size--;
+        if (this.log != null) { this.log.append(WriteAheadLog.TAKE, clientId, tuple); }
+    }
+
+    private void unlockedBy(int clientId, String tuple) {
+        Set<String> held = this.locksByClient.get(clientId);
+        if (held == null) { return; }
+        held.remove(tuple);
+        if (held.isEmpty()) { this.locksByClient.remove(clientId); }
+    }
+
+    /**
+     * can be called without the lock: a client only frees its locks once its own LOCK requests have been answered
+     * @return true if the client holds the lock of some tuple of the shard
+     */
+    public boolean holdsLocks(int clientId) { return this.locksByClient.containsKey(clientId); }
+
+    /**
+     * @return the number of tuples of the shard each client holds the lock of
+     */
+    public Map<Integer, Integer> getLockTableSizes() {
+        Map<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+        for (Map.Entry<Integer, Set<String>> entry : this.locksByClient.entrySet()) { sizes.put(entry.getKey(), entry.getValue().size()); }
+        return sizes;
+    }
+
+    /**
+     * returns a tuple of the shard that matches the pattern
+     * @param compiledPattern the compiled pattern
+     * @param tuplePattern the analysed pattern
+     * @return the tuple that matches the pattern, or null
+     */
+    public String getMatchingTuple(Pattern compiledPattern, TuplePattern tuplePattern) {
+        int scanned = 0;
+        for (String tuple : this.index.candidates(tuplePattern)) {  // only the tuples that may match are tested
+            scanned++;
+            if (compiledPattern.matcher(tuple).matches()) {
+                this.scanLengths.record(scanned);
+                return tuple;
+            }
+        }
+
+        this.scanLengths.record(scanned);
+        return null;
+    }
+
+    /**
+     * adds to a list the copies of the tuples of the shard that match the pattern, up to a limit
+     *
+     * @param compiledPattern the compiled pattern
+     * @param tuplePattern the analysed pattern
+     * @param limit the maximum size of the list
+     * @param matches where the copies are added
+     */
+    public void getMatchingTuples(Pattern compiledPattern, TuplePattern tuplePattern, int limit, List<String> matches) {
+        int scanned = 0;
+        for (String tuple : this.index.candidates(tuplePattern)) {
+            if (matches.size() >= limit) { break; }
+            scanned++;
+            if (compiledPattern.matcher(tuple).matches()) {
+                int copies = Math.min(this.space.get(tuple).getCount(), limit - matches.size());
+                for (int i = 0; i < copies; i++) { matches.add(tuple); }
+            }
+        }
+
+        this.scanLengths.record(scanned);
+    }
+
+    /**
+     * @param tuplePattern the analysed pattern
+     * @return the distinct tuples of the shard that may match the pattern, to be tested without the lock
+     */
+    public String[] getCandidates(TuplePattern tuplePattern) {
+        return this.index.candidates(tuplePattern).toArray(new String[0]);
+    }
+
+    /**
+     * @param tuple the tuple
+     * @return the number of copies of the tuple in the shard
+     */
+    public int count(String tuple) {
+        TupleEntry entry = this.space.get(tuple);
+        return (entry == null) ? 0 : entry.getCount();
+    }
+
+    /**
+     * locks, for a client, up to some copies of every tuple of the shard that matches the pattern and has free copies
+     *
+     * @param clientId the client ID
+     * @param compiledPattern the compiled pattern
+     * @param tuplePattern the analysed pattern
+     * @param copies the copies of each tuple the client wants to hold, 1 for a TAKE
+     * @return the copies locked for the client, or null if there is no matching tuple at all (MISS)
+     */
+    public LockGrant lockMatching(int clientId, Pattern compiledPattern, TuplePattern tuplePattern, int copies) {
+        boolean hasAtLeastOneMatchLocked = false;
+
+        LockGrant matches = new LockGrant();            // tuples that match the pattern and are locked for the client
+
+        int scanned = 0;
+        for (String tuple : this.index.candidates(tuplePattern)) {          // iterate over the tuples that may match the pattern
+            scanned++;
+            if (compiledPattern.matcher(tuple).matches()) {                     // if the tuple matches the pattern
+                TupleEntry entry = this.space.get(tuple);
+                int held = entry.heldBy(clientId);
+                int holds = entry.lock(clientId, copies);
+                if (holds > 0) {                                                // if a copy is free or if the client already holds the lock of a copy
+                    if (this.log != null) {
+                        for (int i = held; i < holds; i++) { this.log.append(WriteAheadLog.LOCK, clientId, tuple); }   // one record per copy
+                    }
+                    this.locksByClient.computeIfAbsent(clientId, k -> new HashSet<String>()).add(tuple);
+                    for (int i = 0; i < holds; i++) { matches.add(tuple, i < held); }  // add each copy to the list of matches
+                    if (DEBUG) {
+                        System.err.printf("[\u001B[34mDEBUG\u001B[0m] Lock granted to client %d for %d copies of tuple %s\n", clientId, holds, tuple);
+                    }
+                }
+                else {
+                    // if the tuple matches the pattern but all its copies are locked by other clients
+                    // we keep going to check the other tuples
+                    hasAtLeastOneMatchLocked = true;
+                    this.lockConflicts.incrementAndGet();
+                    if (DEBUG) {
+                        System.err.printf("[\u001B[34mDEBUG\u001B[0m] Lock denied to client %d for tuple %s - locked by clients %s\n", clientId, tuple, Arrays.toString(entry.getHolders()));
+                    }
+                }
+            }
+        }
+
+        this.scanLengths.record(scanned);
+
+        if (matches.getMatches().isEmpty() && !hasAtLeastOneMatchLocked) {    // MISS: the client didn't get any locks because there are no matching tuples
+            return null;
+        }
+
+        // HIT: the client successfully acquired locks for the tuples OR the client got no locks but it has matching tuples that are locked by other clients
+        return matches;
+    }
+
+    /**
+     * releases the locks a client holds on tuples of the shard
+     * only the tuples the client holds are visited, not the whole shard
+     * @param clientId the client ID
+     * @return the tuples unlocked, null if the client held none
+     */
+    public Set<String> freeLock(int clientId) {
+        Set<String> held = this.locksByClient.remove(clientId);
+        if (held == null) { return null; }
+
+        for (String tuple : held) {
+            int copies = this.space.get(tuple).unlockAll(clientId);     // unlock the client's copies of the tuple
+            if (this.log != null) {
+                for (int i = 0; i < copies; i++) { this.log.append(WriteAheadLog.UNLOCK, clientId, tuple); }
+            }
+            if (DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Lock released for client %d for tuple %s\n", clientId, tuple);
+            }
+        }
+        return held;
+    }
+
+    /**
+     * releases the lock a client holds on one copy of a tuple of the shard, if it holds it
+     *
+     * @param clientId the client ID
+     * @param tuple the tuple
+     * @return whether the client held the lock
+     */
+    public boolean unlock(int clientId, String tuple) {
+        Set<String> held = this.locksByClient.get(clientId);
+        if (held == null || !held.contains(tuple)) { return false; }
+
+        TupleEntry entry = this.space.get(tuple);
+        entry.unlock(clientId);
+        if (entry.heldBy(clientId) == 0) { unlockedBy(clientId, tuple); }
+        if (this.log != null) { this.log.append(WriteAheadLog.UNLOCK, clientId, tuple); }
+        if (DEBUG) {
+            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Lock released for client %d for tuple %s\n", clientId, tuple);
+        }
+        return true;
+    }
+
+    /**
+     * copies the entries of the shard for a snapshot, the caller must hold the lock of the shard
+     * @param entries where the copies are added
+     */
+    public void copyTo(List<Snapshot.Entry> entries) {
+        for (Map.Entry<String, TupleEntry> entry : this.space.entrySet()) {
+            entries.add(new Snapshot.Entry(entry.getKey(), entry.getValue().getCount(), entry.getValue().getHolders()));
+        }
+    }
+
+    /**
+     * adds an entry loaded from a snapshot, without recording it in the write-ahead log
+     *
+     * @param tuple the tuple
+     * @param count the number of copies
+     * @param holders the client holding the lock of each locked copy
+     */
+    public void restore(String tuple, int count, int[] holders) {
+        this.space.put(tuple, new TupleEntry(count, holders));
+        this.index.add(tuple);
+        this.size += count;
+        for (int clientId : holders) { this.locksByClient.computeIfAbsent(clientId, k -> new HashSet<String>()).add(tuple); }
+    }
+
+    /**
+     * applies a record of the write-ahead log to the shard, without recording it again
+     * the records of a tuple are in the order they were applied, so each one finds the shard as it was then
+     *
+     * @param type the type of the record (see WriteAheadLog)
+     * @param clientId the client of the record
+     * @param tuple the tuple of the record
+     */
+    public void replay(byte type, int clientId, String tuple) {
+        TupleEntry entry = this.space.get(tuple);
+
+        switch (type) {
+            case WriteAheadLog.PUT:
+            case WriteAheadLog.RESTORE:
+                add(tuple, type);
+                break;
+            case WriteAheadLog.TAKE:
+                if (entry != null) { removeOne(tuple, clientId); }
+                break;
+            case WriteAheadLog.LOCK:
+                if (entry != null && entry.lock(clientId, entry.heldBy(clientId) + 1) > 0) {      // one more copy
+                    this.locksByClient.computeIfAbsent(clientId, k -> new HashSet<String>()).add(tuple);
+                }
+                break;
+            case WriteAheadLog.UNLOCK:
+                if (entry != null) { entry.unlock(clientId); }
+                if (entry == null || entry.heldBy(clientId) == 0) { unlockedBy(clientId, tuple); }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown write-ahead log record: " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.space.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * Snapshot is a point-in-time copy of the tuple space of a replica, so that a restart only replays the log written after it
+ *
+ * the shards are copied one at a time, each while holding only its own lock, so the other shards keep serving requests;
+ * together with the copy of a shard goes the position of the write-ahead log at that moment (its mark): the records of
+ * the shard before the mark are in the copy, the ones after it are replayed
+ *
+ * file format (snapshot-<g>.bin, g is the generation of the log the marks refer to):
+ *  | magic (int) | version (int) | generation (long) | shards (int) | mark of each shard (long)... |
+ *  | entries (int) | entry... | crc32 of everything before it (int) |
+ * entry:
+ *  | tuple length (int) | tuple (UTF-8) | copies (int) | holders (int) | client holding each locked copy (int)... |
+ *
+ * the file is written to snapshot-<g>.bin.tmp, forced and renamed, so a snapshot file is either complete or absent
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x54535350;   // "TSSP"
+    private static final int VERSION = 1;
+
+    /**
+     * copy of the entry of a tuple (see TupleEntry)
+     */
+    public static class Entry {
+        private final String tuple;
+        private final int count;
+        private final int[] holders;
+
+        public Entry(String tuple, int count, int[] holders) {
+            this.tuple = tuple;
+            this.count = count;
+            this.holders = holders;
+        }
+
+        public String getTuple() { return tuple; }
+
+        public int getCount() { return count; }
+
+        public int[] getHolders() { return holders; }
+    }
+
+    /**
+     * receives the entries of a snapshot when it is loaded
+     */
+    public interface Restorer {
+        void restore(String tuple, int count, int[] holders);
+    }
+
+    private final long generation;
+    private final long[] marks;         // position of the log of that generation when each shard was copied
+
+
+    public Snapshot(long generation, long[] marks) {
+        this.generation = generation;
+        this.marks = marks;
+    }
+
+    public long getGeneration() { return generation; }
+
+    public int getNumShards() { return marks.length; }
+
+    public long getMark(int shard) { return marks[shard]; }
+
+    /**
+     * @return the position of the log the replay starts at, the records before it are in every shard copy
+     */
+    public long getLogStart() {
+        long start = Long.MAX_VALUE;
+        for (long mark : this.marks) { start = Math.min(start, mark); }
+        return start;
+    }
+
+    private static Path file(Path directory, long generation) { return directory.resolve("snapshot-" + generation + ".bin"); }
+
+    /**
+     * writes a snapshot and deletes the older ones
+     *
+     * @param directory the directory of the write-ahead log
+     * @param generation the generation of the log the marks refer to
+     * @param marks the mark of each shard
+     * @param entries the entries of every shard
+     * @return the snapshot written
+     * @throws IOException if the snapshot can't be written
+     */
+    public static Snapshot write(Path directory, long generation, long[] marks, List<Entry> entries) throws IOException {
+        Path target = file(directory, generation);
+        Path tmp = directory.resolve(target.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), crc));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(marks.length);
+            for (long mark : marks) { out.writeLong(mark); }
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                byte[] bytes = entry.getTuple().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeInt(entry.getCount());
+                out.writeInt(entry.getHolders().length);
+                for (int holder : entry.getHolders()) { out.writeInt(holder); }
+            }
+
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        // the new snapshot is on disk, the older ones are not needed anymore
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.bin")) {
+            for (Path f : files) {
+                if (WriteAheadLog.generationOf(f.getFileName().toString(), "snapshot-", ".bin") < generation) { Files.delete(f); }
+            }
+        }
+
+        return new Snapshot(generation, marks);
+    }
+
+    /**
+     * finds the latest snapshot in a directory and hands its entries to a restorer
+     * the file is memory-mapped and read in place, without copying it to the heap first
+     *
+     * @param directory the directory of the write-ahead log
+     * @param restorer receives the entries
+     * @return the snapshot loaded, or null if there is none
+     * @throws IOException if the snapshot can't be read or is corrupted
+     */
+    public static Snapshot loadLatest(Path directory, Restorer restorer) throws IOException {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*")) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                if (name.endsWith(".tmp")) { Files.delete(f); continue; }      // interrupted by a crash, never renamed
+
+                long generation = WriteAheadLog.generationOf(name, "snapshot-", ".bin");
+                if (generation != Long.MAX_VALUE) { latest = Math.max(latest, generation); }
+            }
+        }
+        if (latest == -1) { return null; }
+
+        Path path = file(directory, latest);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit(buffer.limit() - 4));
+            if (buffer.limit() < 4 || buffer.getInt(buffer.limit() - 4) != (int) crc.getValue()) { throw new IOException("Corrupted snapshot " + path); }
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) { throw new IOException("Not a snapshot " + path); }
+            long generation = buffer.getLong();
+            long[] marks = new long[buffer.getInt()];
+            for (int i = 0; i < marks.length; i++) { marks[i] = buffer.getLong(); }
+
+            int entries = buffer.getInt();
+            for (int e = 0; e < entries; e++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                int count = buffer.getInt();
+                int[] holders = new int[buffer.getInt()];
+                for (int h = 0; h < holders.length; h++) { holders[h] = buffer.getInt(); }
+
+                restorer.restore(new String(bytes, StandardCharsets.UTF_8), count, holders);
+            }
+
+            return new Snapshot(generation, marks);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupted snapshot " + path);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.regex.Pattern;
+
+
+/**
+ * StateCursor walks the tuple space of a replica in chunks, for the streamed GET-TUPLE-SPACES-STATE
+ *
+ * the shards are visited one at a time: the distinct tuples of a shard that may match the pattern are copied while
+ * holding its lock (references only, the index narrows them down first), and tested against the pattern without it;
+ * each chunk then takes the lock of the shard again just to count the copies of its tuples, so no lock is held
+ * while a chunk is sent, and the rest of the tuple space keeps serving requests
+ *
+ * the walk is not a point-in-time copy: a tuple added to a shard after the shard was reached is not seen,
+ * and a tuple removed before its chunk is skipped
+ *
+ * NOTE: a cursor is used by a single call, it is not thread-safe
+ */
+public class StateCursor {
+
+    private final Shard[] shards;       // the shards to visit, in order
+    private final Pattern compiledPattern;
+    private final TuplePattern tuplePattern;
+    private int shard;                  // index in shards of the shard being visited, -1 before the first one
+    private String[] tuples;            // distinct tuples of the shard being visited that match the pattern
+    private int size;                   // number of valid entries of tuples
+    private int position;               // next entry of tuples to count
+    private String current;             // tuple whose copies didn't fit in the previous chunk
+    private int remaining;              // copies of current still to send
+
+
+    public StateCursor(Shard[] shards, Pattern compiledPattern, TuplePattern tuplePattern) {
+        this.shards = shards;
+        this.compiledPattern = compiledPattern;
+        this.tuplePattern = tuplePattern;
+        this.shard = -1;
+        this.tuples = new String[0];
+    }
+
+    /**
+     * @param max the maximum number of copies in the chunk
+     * @return the next copies of the tuples that match the pattern, an empty list once the whole space was visited
+     */
+    public List<String> next(int max) {
+        List<String> chunk = new ArrayList<String>(Math.min(max, 1024));
+
+        while (chunk.size() < max) {
+            if (this.remaining > 0) {                       // a tuple with more copies than a chunk
+                int copies = Math.min(this.remaining, max - chunk.size());
+                for (int i = 0; i < copies; i++) { chunk.add(this.current); }
+                this.remaining -= copies;
+                continue;
+            }
+            if (this.position == this.size) {
+                if (!nextShard()) { break; }
+                continue;
+            }
+
+            Shard shard = this.shards[this.shard];
+            shard.getLock().lock();
+            try {
+                while (this.position < this.size && chunk.size() < max) {
+                    String tuple = this.tuples[this.position];
+                    this.tuples[this.position++] = null;    // let it go as soon as it's sent
+                    int count = shard.count(tuple);
+                    int copies = Math.min(count, max - chunk.size());
+                    for (int i = 0; i < copies; i++) { chunk.add(tuple); }
+                    this.current = tuple;
+                    this.remaining = count - copies;
+                }
+            } finally {
+                shard.getLock().unlock();
+            }
+        }
+
+        return chunk;
+    }
+
+    /**
+     * moves to the next shard and collects its tuples that match the pattern
+     * @return false if there are no more shards
+     */
+    private boolean nextShard() {
+        if (this.shard + 1 >= this.shards.length) { return false; }
+        Shard shard = this.shards[++this.shard];
+
+        String[] candidates;
+        shard.getLock().lock();
+        try {
+            candidates = shard.getCandidates(this.tuplePattern);
+        } finally {
+            shard.getLock().unlock();
+        }
+
+        int size = 0;
+        for (String tuple : candidates) {                   // the regular expression runs without the lock
+            if (this.compiledPattern.matcher(tuple).matches()) { candidates[size++] = tuple; }
+        }
+
+        this.tuples = candidates;
+        this.size = size;
+        this.position = 0;
+        return true;
+    }
+}
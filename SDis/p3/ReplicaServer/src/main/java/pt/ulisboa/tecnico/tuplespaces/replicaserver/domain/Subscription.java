@@ -0,0 +1,123 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.util.ArrayDeque;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+
+/**
+ * Subscription is a WATCH on a pattern: every tuple that matches it is queued here when it is put,
+ * until the subscriber takes it
+ *
+ * the queue is bounded: a PUT never waits for a slow subscriber, when the queue is full the tuple is dropped
+ * for this subscriber and counted, and the count goes with the next tuple it does get
+ */
+public class Subscription {
+
+    /**
+     * a tuple put while the subscription was active
+     */
+    public static class Event {
+        private final String tuple;
+        private final String putId;
+        private final int clientId;         // WATCH-UNLOCKS: the client that released the lock, -1 otherwise
+        private final long missed;          // tuples dropped right before this one because the queue was full
+
+        public Event(String tuple, String putId, int clientId, long missed) {
+            this.tuple = tuple;
+            this.putId = putId;
+            this.clientId = clientId;
+            this.missed = missed;
+        }
+
+        public String getTuple() { return tuple; }
+
+        public String getPutId() { return putId; }
+
+        public int getClientId() { return clientId; }
+
+        public long getMissed() { return missed; }
+    }
+
+    private final String pattern;
+    private final Pattern compiledPattern;  // compiled once, so a PUT doesn't go through the pattern cache for each subscriber
+    private final int capacity;
+    private final ArrayDeque<Event> queue;
+    private final Runnable onAvailable;     // called when the queue stops being empty, without any lock of the tuple space held
+    private final ReentrantLock lock;       // protects the queue and missed
+    private long missed;                    // tuples dropped since the last one queued
+    private long dropped;                   // tuples dropped since the subscription started
+
+
+    public Subscription(String pattern, Pattern compiledPattern, int capacity, Runnable onAvailable) {
+        this.pattern = pattern;
+        this.compiledPattern = compiledPattern;
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<Event>(Math.min(capacity, 1024));
+        this.onAvailable = onAvailable;
+        this.lock = new ReentrantLock();
+    }
+
+    public String getPattern() { return pattern; }
+
+    public boolean matches(String tuple) { return compiledPattern.matcher(tuple).matches(); }
+
+    /**
+     * queues a tuple, or drops it if the queue is full
+     *
+     * @param tuple the tuple put
+     * @param putId the identifier of the PUT, empty if it has none
+     */
+    public void offer(String tuple, String putId) {
+        offer(tuple, putId, -1);
+    }
+
+    /**
+     * queues a tuple whose lock was released, or drops it if the queue is full
+     *
+     * @param tuple the tuple unlocked
+     * @param putId the identifier of the PUT, empty if it has none
+     * @param clientId the client that released the lock
+     */
+    public void offer(String tuple, String putId, int clientId) {
+        boolean wasEmpty;
+
+        this.lock.lock();
+        try {
+            if (this.queue.size() >= this.capacity) {
+                this.missed++;
+                this.dropped++;
+                return;
+            }
+            wasEmpty = this.queue.isEmpty();
+            this.queue.add(new Event(tuple, putId, clientId, this.missed));
+            this.missed = 0;
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (wasEmpty) { this.onAvailable.run(); }
+    }
+
+    /**
+     * @return the oldest queued tuple, or null if there is none
+     */
+    public Event poll() {
+        this.lock.lock();
+        try {
+            return this.queue.poll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        this.lock.lock();
+        try {
+            return this.dropped;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
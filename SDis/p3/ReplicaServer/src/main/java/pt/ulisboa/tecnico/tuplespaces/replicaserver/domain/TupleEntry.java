@@ -0,0 +1,177 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.util.Arrays;
+
+
+/**
+ * TupleEntry keeps every copy of the same tuple in a shard: how many copies there are and which clients hold the lock of them
+ * the copies are not objects of their own, so a million copies of the same work token cost a single entry
+ *
+ * "<job>" put 5 times, 2 copies locked by client 1 and 1 by client 3   =>  count = 5, holders = [1, 3], held = [2, 1], free = 2
+ *
+ * a TAKE locks one copy of each matching tuple, a TAKE-MANY of n tuples up to n copies of each one of them
+ *
+ * NOTE: the entry is not thread-safe, it is protected by the lock of the Shard that owns it
+ */
+public class TupleEntry {
+
+    private static final int[] NONE = new int[0];
+
+    private int count;                  // number of copies of the tuple
+    private int[] holders;              // clients holding the lock of some copies, only the first numHolders are valid
+    private int[] held;                 // held[i] = copies locked by holders[i]
+    private int numHolders;
+    private int locked;                 // copies locked by all the holders
+
+
+    public TupleEntry() {
+        this.count = 0;
+        this.holders = NONE;
+        this.held = NONE;
+        this.numHolders = 0;
+        this.locked = 0;
+    }
+
+    /**
+     * rebuilds an entry from a snapshot
+     * @param count number of copies
+     * @param holders the client holding the lock of each locked copy, a client appears once per copy
+     */
+    public TupleEntry(int count, int[] holders) {
+        this();
+        this.count = count;
+        for (int clientId : holders) { lock(clientId, heldBy(clientId) + 1); }
+    }
+
+    public int getCount() { return count; }
+
+    /**
+     * @return the number of copies nobody holds the lock of
+     */
+    public int getFree() { return count - locked; }
+
+    /**
+     * @return the client holding the lock of each locked copy, a client appears once per copy
+     */
+    public int[] getHolders() {
+        int[] copies = new int[this.locked];
+        int c = 0;
+        for (int i = 0; i < this.numHolders; i++) {
+            for (int k = 0; k < this.held[i]; k++) { copies[c++] = this.holders[i]; }
+        }
+        return copies;
+    }
+
+    private int indexOf(int clientId) {
+        for (int i = 0; i < this.numHolders; i++) {
+            if (this.holders[i] == clientId) { return i; }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of copies the client holds the lock of
+     */
+    public int heldBy(int clientId) {
+        int i = indexOf(clientId);
+        return (i == -1) ? 0 : this.held[i];
+    }
+
+    /**
+     * adds a free copy of the tuple
+     */
+    public void add() {
+        this.count++;
+    }
+
+    /**
+     * locks free copies of the tuple for a client, until it holds the lock of the copies asked for or none is free
+     * the copies the client already holds count, and are kept even if they are more than the ones asked for
+     *
+     * @param clientId the client ID
+     * @param copies the number of copies the client wants to hold
+     * @return the number of copies the client holds the lock of, from before or from now on
+     */
+    public int lock(int clientId, int copies) {
+        int i = indexOf(clientId);
+        int has = (i == -1) ? 0 : this.held[i];
+        int more = Math.min(copies - has, getFree());
+        if (more <= 0) { return has; }
+
+        if (i == -1) {
+            if (this.numHolders == this.holders.length) {
+                int capacity = Math.max(2, this.holders.length * 2);
+                this.holders = Arrays.copyOf(this.holders, capacity);
+                this.held = Arrays.copyOf(this.held, capacity);
+            }
+            i = this.numHolders++;
+            this.holders[i] = clientId;
+            this.held[i] = 0;
+        }
+        this.held[i] += more;
+        this.locked += more;
+        return has + more;
+    }
+
+    /**
+     * releases the lock a client holds on one copy of the tuple, if any
+     * @param clientId the client ID
+     * @return true if the client held the lock of a copy
+     */
+    public boolean unlock(int clientId) {
+        int i = indexOf(clientId);
+        if (i == -1) { return false; }
+
+        this.locked--;
+        if (--this.held[i] == 0) {
+            this.numHolders--;
+            this.holders[i] = this.holders[this.numHolders];    // order doesn't matter, move the last one here
+            this.held[i] = this.held[this.numHolders];
+        }
+        return true;
+    }
+
+    /**
+     * releases the locks a client holds on every copy of the tuple
+     * @param clientId the client ID
+     * @return the number of copies unlocked
+     */
+    public int unlockAll(int clientId) {
+        int i = indexOf(clientId);
+        if (i == -1) { return 0; }
+
+        int copies = this.held[i];
+        this.locked -= copies;
+        this.numHolders--;
+        this.holders[i] = this.holders[this.numHolders];
+        this.held[i] = this.held[this.numHolders];
+        return copies;
+    }
+
+    /**
+     * removes one copy of the tuple, preferring one locked by the client, then a free one,
+     * and only if there is neither, a copy locked by another client
+     *
+     * @param clientId the client that removes the copy, -1 if none
+     * @return the client whose locked copy was removed, or -1 if the removed copy was free
+     */
+    public int removeOne(int clientId) {
+        int owner = -1;
+
+        if (clientId != -1 && heldBy(clientId) > 0) {
+            owner = clientId;
+        }
+        else if (getFree() == 0) {
+            owner = this.holders[this.numHolders - 1];
+        }
+
+        if (owner != -1) { unlock(owner); }
+        this.count--;
+        return owner;
+    }
+
+    @Override
+    public String toString() {
+        return (numHolders == 0) ? "x" + count : "x" + count + " locked by " + Arrays.toString(getHolders());
+    }
+}
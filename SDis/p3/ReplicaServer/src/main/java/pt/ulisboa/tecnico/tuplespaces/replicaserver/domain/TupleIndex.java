@@ -0,0 +1,123 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+
+/**
+ * TupleIndex keeps the tuples of the tuple space indexed by their fields
+ * each tuple is split into fields once, when it is added, so a search only has to test the tuples
+ * that agree with the fields the pattern pins down, instead of running the regular expression on the whole space
+ *
+ * byArity = {2: {"<a,b>", "<c,d>"}, 3: {"<vaga,sd,turno1>"}}
+ * byField = {0: {"a": {"<a,b>"}, "c": {"<c,d>"}, "vaga": {...}}, 1: {"b": {...}, "d": {...}, "sd": {...}}, 2: {...}}
+ *
+ * NOTE: the index is not thread-safe, it is protected by the ServerState that owns it
+ */
+public class TupleIndex {
+
+    private final Set<String> tuples;                               // every indexed tuple
+    private final Map<Integer, Set<String>> byArity;                // arity -> tuples with that many fields
+    private final Map<Integer, Map<String, Set<String>>> byField;   // position -> field value -> tuples with that value in that position
+
+
+    public TupleIndex() {
+        this.tuples = new HashSet<String>();
+        this.byArity = new HashMap<Integer, Set<String>>();
+        this.byField = new HashMap<Integer, Map<String, Set<String>>>();
+    }
+
+    /**
+     * splits a tuple in the form "<f1,f2,...,fn>" into its fields
+     *
+     * @param tuple the tuple to split
+     * @return the fields of the tuple, or an empty array if the tuple is malformed
+     */
+    public static String[] fieldsOf(String tuple) {
+        if (tuple.length() < 2 || tuple.charAt(0) != '<' || tuple.charAt(tuple.length() - 1) != '>') { return new String[0]; }
+
+        return tuple.substring(1, tuple.length() - 1).split(",", -1);
+    }
+
+    /**
+     * adds a tuple to the index. adding a tuple that is already indexed has no effect
+     * @param tuple the tuple to add
+     */
+    public void add(String tuple) {
+        if (!this.tuples.add(tuple)) { return; }
+
+        String[] fields = fieldsOf(tuple);
+
+        this.byArity.computeIfAbsent(fields.length, k -> new HashSet<String>()).add(tuple);
+
+        for (int i = 0; i < fields.length; i++) {
+            this.byField.computeIfAbsent(i, k -> new HashMap<String, Set<String>>())
+                        .computeIfAbsent(fields[i], k -> new HashSet<String>())
+                        .add(tuple);
+        }
+    }
+
+    /**
+     * removes a tuple from the index
+     * @param tuple the tuple to remove
+     */
+    public void remove(String tuple) {
+        if (!this.tuples.remove(tuple)) { return; }
+
+        String[] fields = fieldsOf(tuple);
+
+        removeFromBucket(this.byArity, fields.length, tuple);
+
+        for (int i = 0; i < fields.length; i++) {
+            Map<String, Set<String>> values = this.byField.get(i);
+            removeFromBucket(values, fields[i], tuple);
+            if (values.isEmpty()) { this.byField.remove(i); }
+        }
+    }
+
+    private static <K> void removeFromBucket(Map<K, Set<String>> buckets, K key, String tuple) {
+        Set<String> bucket = buckets.get(key);
+        bucket.remove(tuple);
+        if (bucket.isEmpty()) { buckets.remove(key); }
+    }
+
+    public boolean contains(String tuple) { return this.tuples.contains(tuple); }
+
+    public int size() { return this.tuples.size(); }
+
+    /**
+     * returns the smallest set of tuples that may match the pattern
+     * every tuple that matches the pattern is in the returned collection, but the caller still has to
+     * test each one of them against the regular expression
+     *
+     * @param pattern the analysed pattern
+     * @return the candidate tuples (a view, it must not be modified while iterating)
+     */
+    public Collection<String> candidates(TuplePattern pattern) {
+        if (pattern.isExact()) {
+            return this.tuples.contains(pattern.getPattern()) ? Collections.singleton(pattern.getPattern()) : Collections.emptySet();
+        }
+
+        Collection<String> best = this.tuples;              // unconstrained patterns fall back to a full scan
+
+        if (pattern.getArity() != -1) {
+            best = this.byArity.getOrDefault(pattern.getArity(), Collections.emptySet());
+        }
+
+        for (int i = 0; i < pattern.getFixedFieldCount() && !best.isEmpty(); i++) {
+            String value = pattern.getFixedField(i);
+            if (value == null) { continue; }
+
+            Map<String, Set<String>> values = this.byField.get(i);
+            Set<String> bucket = (values == null) ? Collections.emptySet() : values.getOrDefault(value, Collections.emptySet());
+
+            if (bucket.size() < best.size()) { best = bucket; }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,149 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * TuplePattern is the result of analysing a search pattern sent by a client
+ * it finds out which parts of the tuple the pattern pins down, so that the TupleIndex can pick the candidate tuples
+ *
+ * e.g. "<vaga,sd,[^,]+>"   => arity 3, field 0 = "vaga", field 1 = "sd"
+ *      "<vaga,.*>"         => arity unknown (".*" may match commas), field 0 = "vaga"
+ *      "<vaga,sd,turno1>"  => exact tuple, no regular expression at all
+ *      ".*"                => unconstrained, every tuple must be tested
+ */
+public class TuplePattern {
+
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+    private final String pattern;
+    private final boolean exact;        // the pattern has no metacharacters, it can only match itself
+    private final int arity;            // number of fields of every matching tuple, -1 if unknown
+    private final String[] fixedFields; // fixedFields[i] = value of field i in every matching tuple, null if unknown
+
+
+    private TuplePattern(String pattern, boolean exact, int arity, String[] fixedFields) {
+        this.pattern = pattern;
+        this.exact = exact;
+        this.arity = arity;
+        this.fixedFields = fixedFields;
+    }
+
+    public String getPattern() { return pattern; }
+
+    public boolean isExact() { return exact; }
+
+    public int getArity() { return arity; }
+
+    public int getFixedFieldCount() { return fixedFields.length; }
+
+    public String getFixedField(int position) { return fixedFields[position]; }
+
+
+    /**
+     * analyses a search pattern
+     * the analysis is conservative: whenever it can't be sure a field stays in its position, it doesn't pin it down
+     *
+     * @param pattern the pattern to analyse. the pattern may be a regular expression or a simple tuple
+     * @return the analysed pattern
+     */
+    public static TuplePattern parse(String pattern) {
+        if (isLiteral(pattern)) {
+            return new TuplePattern(pattern, true, -1, new String[0]);
+        }
+
+        List<String> fields = splitFields(pattern);
+        if (fields == null) {
+            return new TuplePattern(pattern, false, -1, new String[0]);    // unconstrained
+        }
+
+        List<String> fixed = new ArrayList<String>();
+        boolean allCommaFree = true;
+
+        for (String field : fields) {
+            if (!allCommaFree) { break; }               // a previous field may have eaten commas, positions are no longer reliable
+
+            fixed.add(isLiteral(field) ? field : null);
+            allCommaFree = isCommaFree(field);
+        }
+
+        int arity = allCommaFree ? fields.size() : -1;
+
+        return new TuplePattern(pattern, false, arity, fixed.toArray(new String[0]));
+    }
+
+    /**
+     * splits the fields of a pattern in the form "<f1,f2,...,fn>" on the commas that separate them
+     *
+     * @param pattern the pattern to split
+     * @return the regular expression of each field, or null if the pattern can't be split safely
+     */
+    private static List<String> splitFields(String pattern) {
+        if (pattern.length() < 2 || pattern.charAt(0) != '<' || pattern.charAt(pattern.length() - 1) != '>') { return null; }
+        if (pattern.length() >= 3 && pattern.charAt(pattern.length() - 2) == '\\') { return null; }  // the closing '>' is escaped
+        if (pattern.contains("\\Q")) { return null; }   // quoted sections are not worth handling
+
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        int groupDepth = 0;         // inside (...) or {...}
+        boolean inClass = false;    // inside [...]
+
+        for (int i = 1; i < pattern.length() - 1; i++) {
+            char c = pattern.charAt(i);
+
+            if (c == '\\') {                            // escaped character, copy it as is
+                field.append(c);
+                if (i + 1 < pattern.length() - 1) { field.append(pattern.charAt(++i)); }
+                continue;
+            }
+
+            if (inClass) {
+                if (c == ']') { inClass = false; }
+            }
+            else if (c == '[') { inClass = true; }
+            else if (c == '(' || c == '{') { groupDepth++; }
+            else if (c == ')' || c == '}') { groupDepth--; }
+            else if (c == '|') { return null; }         // alternation, the pattern may take many shapes
+            else if (c == ',' && groupDepth == 0) {
+                fields.add(field.toString());
+                field.setLength(0);
+                continue;
+            }
+            else if (c == ',') { return null; }         // comma inside a group, can't tell where the fields are
+
+            field.append(c);
+        }
+
+        if (inClass || groupDepth != 0) { return null; }
+
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * @return true if the text has no regular expression metacharacters, i.e. it only matches itself
+     */
+    private static boolean isLiteral(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (METACHARACTERS.indexOf(text.charAt(i)) != -1) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the field can never match a comma, i.e. it always matches a single field of the tuple
+     */
+    private static boolean isCommaFree(String field) {
+        if (isLiteral(field)) { return !field.contains(","); }
+
+        // negated character classes that exclude the comma, e.g. [^,]+ or [^,>]*
+        return field.matches("\\[\\^[^\\]\\\\]*,[^\\]\\\\]*\\][*+]?");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%s, exact=%b, arity=%d, fixed=%s)", pattern, exact, arity, Arrays.toString(fixedFields));
+    }
+}
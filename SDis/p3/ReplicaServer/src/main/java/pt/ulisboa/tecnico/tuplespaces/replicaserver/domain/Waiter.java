@@ -0,0 +1,67 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Waiter represents a READ, TAKE or LOCK operation that is parked until a matching tuple is added to the tuple space
+ * no thread is blocked while the operation waits: the PUT that adds the tuple decides the result of the waiter
+ * and, once the lock of the ServerState is released, completes the future the caller is listening on
+ *
+ * NOTE: apart from the future, a waiter is only accessed while holding the lock of the ServerState that created it
+ *
+ * @param <T> the result of the operation: the tuple for READ/TAKE, the LockGrant for LOCK
+ */
+public class Waiter<T> {
+
+    public enum Operation { READ, TAKE, LOCK }
+
+    private final Operation operation;
+    private final String pattern;
+    private final int clientId;         // client that asked for the LOCK, -1 for READ/TAKE
+    private final int copies;           // copies of each matching tuple the LOCK wants, 1 for READ/TAKE
+    private final long sequence;        // order of arrival, the oldest TAKE gets the tuple first
+    private final CompletableFuture<T> future;
+    private T result;                   // result decided by the PUT that woke the waiter
+
+
+    public Waiter(Operation operation, String pattern, int clientId, int copies, long sequence) {
+        this.operation = operation;
+        this.pattern = pattern;
+        this.clientId = clientId;
+        this.copies = copies;
+        this.sequence = sequence;
+        this.future = new CompletableFuture<T>();
+    }
+
+    public Operation getOperation() { return operation; }
+
+    public String getPattern() { return pattern; }
+
+    public int getClientId() { return clientId; }
+
+    public int getCopies() { return copies; }
+
+    public long getSequence() { return sequence; }
+
+    public CompletableFuture<T> getFuture() { return future; }
+
+    /**
+     * @return true if the caller gave up waiting (e.g. the gRPC call was cancelled)
+     */
+    public boolean isCancelled() { return future.isCancelled(); }
+
+    public T getResult() { return result; }
+
+    public void setResult(T result) { this.result = result; }
+
+    /**
+     * completes the future with the result decided by the PUT
+     * must be called after releasing the lock of the ServerState, since it runs the caller's continuation
+     *
+     * @return false if the caller gave up waiting in the meantime
+     */
+    public boolean deliver() {
+        return future.complete(result);
+    }
+}
@@ -0,0 +1,154 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import pt.ulisboa.tecnico.tuplespaces.common.PatternCache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+
+
+/**
+ * WaiterRegistry keeps the parked READ/TAKE/LOCK operations grouped by search pattern
+ * when a tuple is added, only the waiters whose pattern matches the new tuple are woken up,
+ * and each distinct pattern is tested once, no matter how many operations are waiting on it
+ *
+ * exact = {"<a,b>": [READ#3, TAKE#7]}                   literal patterns, found with a single lookup
+ * regex = {"<a,[^,]+>": [LOCK#1], "<c,.*>": [READ#2]}   other patterns, tested against every new tuple
+ *
+ * a PUT may have to consult more than one registry (the shard's and the cross-shard one), so waking is done in two steps:
+ * first the oldest matching TAKE is picked among all of them, then each registry wakes its waiters knowing who got the tuple
+ *
+ * NOTE: the registry is not thread-safe, it is protected by the lock of its owner (a Shard or the ServerState)
+ *       except for size(), which can be read without the lock
+ */
+public class WaiterRegistry {
+
+    private final Map<String, Deque<Waiter<?>>> exact;
+    private final Map<String, Deque<Waiter<?>>> regex;
+    private final PatternCache patterns;
+    private volatile int size;          // volatile so a PUT can see whether the registry is empty without taking its lock
+
+
+    public WaiterRegistry(PatternCache patterns) {
+        this.exact = new HashMap<String, Deque<Waiter<?>>>();
+        this.regex = new HashMap<String, Deque<Waiter<?>>>();
+        this.patterns = patterns;
+        this.size = 0;
+    }
+
+    public int size() { return size; }
+
+    /**
+     * registers a parked operation
+     * @param waiter the waiter to register
+     * @param literal true if the pattern has no regular expression, i.e. it can only match itself
+     */
+    public void add(Waiter<?> waiter, boolean literal) {
+        Map<String, Deque<Waiter<?>>> waiters = literal ? this.exact : this.regex;
+        waiters.computeIfAbsent(waiter.getPattern(), k -> new ArrayDeque<Waiter<?>>()).addLast(waiter);
+        this.size++;
+    }
+
+    /**
+     * unregisters a parked operation that gave up waiting
+     * @param waiter the waiter to remove
+     */
+    public void remove(Waiter<?> waiter) {
+        if (removeFrom(this.exact, waiter) || removeFrom(this.regex, waiter)) { this.size--; }
+    }
+
+    private static boolean removeFrom(Map<String, Deque<Waiter<?>>> waiters, Waiter<?> waiter) {
+        Deque<Waiter<?>> queue = waiters.get(waiter.getPattern());
+        if (queue == null || !queue.remove(waiter)) { return false; }
+        if (queue.isEmpty()) { waiters.remove(waiter.getPattern()); }
+        return true;
+    }
+
+    /**
+     * tests a tuple that is being added to the tuple space against the regular expressions of the parked operations
+     * each distinct pattern is tested only once, the result is passed to oldestTake and wakeMatching
+     *
+     * @param tuple the new tuple
+     * @return the regular expressions that match the tuple
+     */
+    public List<String> matchingRegex(String tuple) {
+        List<String> matchingRegex = new ArrayList<String>();
+        for (String pattern : this.regex.keySet()) {
+            if (this.patterns.matches(pattern, tuple)) { matchingRegex.add(pattern); }
+        }
+        return matchingRegex;
+    }
+
+    /**
+     * finds the oldest TAKE that matches a tuple that is being added to the tuple space
+     *
+     * @param tuple the new tuple
+     * @param matchingRegex the regular expressions that match the tuple, see matchingRegex
+     * @param taker the oldest matching TAKE found so far in other registries, or null
+     * @return the oldest of taker and the matching TAKEs of this registry, or null if there is none
+     */
+    public Waiter<String> oldestTake(String tuple, List<String> matchingRegex, Waiter<String> taker) {
+        taker = oldestTake(this.exact.get(tuple), taker);
+        for (String pattern : matchingRegex) { taker = oldestTake(this.regex.get(pattern), taker); }
+        return taker;
+    }
+
+    /**
+     * removes the waiters whose pattern matches a tuple that is being added to the tuple space
+     * every matching READ receives the tuple as its result; the taker, if it is in this registry, receives it too and consumes it;
+     * if there is no taker, the matching LOCKs are removed so the caller can try to acquire their locks again
+     *
+     * @param tuple the new tuple
+     * @param matchingRegex the regular expressions that match the tuple, see matchingRegex
+     * @param taker the TAKE the tuple was handed to (see oldestTake), or null if the tuple goes to the tuple space
+     * @param woken list where the removed waiters are added; the caller delivers their results after releasing the lock
+     */
+    public void wakeMatching(String tuple, List<String> matchingRegex, Waiter<String> taker, List<Waiter<?>> woken) {
+        wakeQueue(this.exact, tuple, tuple, taker, woken);
+        for (String pattern : matchingRegex) { wakeQueue(this.regex, pattern, tuple, taker, woken); }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Waiter<String> oldestTake(Deque<Waiter<?>> queue, Waiter<String> taker) {
+        if (queue == null) { return taker; }
+
+        for (Waiter<?> w : queue) {
+            if (w.getOperation() == Waiter.Operation.TAKE && !w.isCancelled() && (taker == null || w.getSequence() < taker.getSequence())) {
+                taker = (Waiter<String>) w;
+            }
+        }
+        return taker;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void wakeQueue(Map<String, Deque<Waiter<?>>> waiters, String pattern, String tuple, Waiter<String> taker, List<Waiter<?>> woken) {
+        Deque<Waiter<?>> queue = waiters.get(pattern);
+        if (queue == null) { return; }
+
+        Iterator<Waiter<?>> it = queue.iterator();
+        while (it.hasNext()) {
+            Waiter<?> w = it.next();
+            if (w.isCancelled()) {
+                // the caller gave up, just forget it
+            }
+            else if (w.getOperation() == Waiter.Operation.READ || w == taker) {
+                ((Waiter<String>) w).setResult(tuple);
+                woken.add(w);
+            }
+            else if (w.getOperation() == Waiter.Operation.LOCK && taker == null) {
+                woken.add(w);       // LOCK searches again, it may lock more than one tuple
+            }
+            else {
+                continue;
+            }
+            it.remove();
+            this.size--;
+        }
+
+        if (queue.isEmpty()) { waiters.remove(pattern); }
+    }
+}
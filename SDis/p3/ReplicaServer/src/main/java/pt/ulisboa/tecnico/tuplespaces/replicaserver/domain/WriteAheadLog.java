@@ -0,0 +1,532 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+
+/**
+ * WriteAheadLog is the append-only log of the changes made to the tuple space of a replica, replayed when the replica restarts
+ *
+ * the operations append their records to a buffer in memory, while holding the lock of their shard, so the log keeps
+ * the order in which each tuple was changed; a single flusher thread writes the buffer to the file and forces it to disk
+ * (group commit): every record appended while a flush is running goes to disk together in the next flush, with one fsync
+ *
+ * sync policies:
+ *  always      a response is only sent after the records of its operation are on disk (sync() waits for the next fsync)
+ *  every:N     the records of each N milliseconds are written and forced together, responses don't wait (up to N ms
+ *              of changes may be lost); an interval without changes is not forced
+ *  none        the records are written to the file but never forced, the operating system decides when they reach the disk
+ *
+ * record format:   | length (int) | crc32 of the body (int) | type (byte) | clientId (int) | tuple (UTF-8) |
+ *                                                          \------------------ body -------------------/
+ * a torn record at the end of the file (crash in the middle of a write) fails the length or crc check and is cut off
+ *
+ * files in the directory of the log:
+ *  wal-<g>.log         the log of generation g, only the latest generation is kept
+ *  wal-<g>.log.tmp     the next generation while it is being cut from the current one, deleted if a crash leaves it behind
+ *  snapshot-<g>.bin    see Snapshot, the records of wal-<g>.log before the offsets it keeps are already in it
+ *
+ * after a snapshot, truncate() cuts the log: the records after the snapshot are copied to wal-<g+1>.log, which
+ * replaces wal-<g>.log, so the log never grows much past what was changed since the last snapshot
+ */
+public class WriteAheadLog implements Closeable {
+
+    public static final String USAGE = "always | every:<ms> | none";
+
+    public static final byte PUT = 1;       // a free copy of the tuple was added
+    public static final byte TAKE = 2;      // a copy of the tuple was removed by the client (-1 if none), see Shard.removeOne
+    public static final byte LOCK = 3;      // the client locked a copy of the tuple
+    public static final byte UNLOCK = 4;    // the client released the lock of one of its copies of the tuple
+    public static final byte RESTORE = 5;   // a free copy taken by a client that went away was given back, undoes a TAKE
+
+    private static final int HEADER = 8;    // length + crc
+    private static final int MAX_RECORD = 1 << 24;
+
+    public enum SyncPolicy { ALWAYS, EVERY, NONE }
+
+    /**
+     * receives the records of the log when it is replayed
+     */
+    public interface Replayer {
+        /**
+         * @param position where the record starts, in the file of the generation replay() was asked for
+         */
+        void apply(long position, byte type, int clientId, String tuple);
+    }
+
+    private final Path directory;
+    private FileChannel channel;                                // file of the current generation, only the flusher writes to it
+    private final SyncPolicy policy;
+    private final long intervalMillis;                          // for EVERY
+
+    private final ReentrantLock lock;                           // protects the fields below
+    private final Condition recordsAppended;
+    private ByteBuffer buffer;                                  // records appended but not written yet
+    private ByteBuffer spare;                                   // buffer being written by the flusher
+    private long generation;                                    // generation of the current file
+    private long base;                                          // position, in bytes appended, of the start of the current file
+    private long appended;                                      // bytes appended since the log was opened, including the replayed file
+    private long durable;                                       // bytes written (and forced, unless the policy is none)
+    private final TreeMap<Long, CompletableFuture<Void>> syncs; // position -> future completed when the log is durable up to there
+    private long cut = -1;                                      // offset in the current file the flusher must truncate the log at, -1 if none
+    private CompletableFuture<Void> truncated;                  // completed when the cut is done
+    private boolean closed;
+
+    private final Thread flusher;
+    private long fsyncs;                                        // number of forces, each one covers a group of records
+    private long records;                                       // number of records appended
+
+
+    /**
+     * opens the log in a directory, creating it if needed; the records already there are only read by replay
+     *
+     * @param directory the directory of the log and its snapshots
+     * @param sync the sync policy, see USAGE
+     * @throws IllegalArgumentException if the sync policy is invalid
+     * @throws IOException if the directory can't be created
+     */
+    public WriteAheadLog(Path directory, String sync) throws IOException {
+        if (sync.equals("always")) {
+            this.policy = SyncPolicy.ALWAYS;
+            this.intervalMillis = 0;
+        }
+        else if (sync.equals("none")) {
+            this.policy = SyncPolicy.NONE;
+            this.intervalMillis = 0;
+        }
+        else if (sync.startsWith("every:")) {
+            this.policy = SyncPolicy.EVERY;
+            try {
+                this.intervalMillis = Long.parseLong(sync.substring("every:".length()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sync interval: " + sync);
+            }
+            if (this.intervalMillis <= 0) { throw new IllegalArgumentException("Invalid sync interval: " + sync); }
+        }
+        else {
+            throw new IllegalArgumentException("Invalid sync policy: " + sync);
+        }
+
+        this.directory = Files.createDirectories(directory);
+        this.lock = new ReentrantLock();
+        this.recordsAppended = this.lock.newCondition();
+        this.buffer = ByteBuffer.allocate(64 * 1024);
+        this.spare = ByteBuffer.allocate(64 * 1024);
+        this.syncs = new TreeMap<Long, CompletableFuture<Void>>();
+
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    public Path getDirectory() { return directory; }
+
+    public SyncPolicy getPolicy() { return policy; }
+
+    private Path logFile(long generation) { return this.directory.resolve("wal-" + generation + ".log"); }
+
+    private Path tmpFile(long generation) { return this.directory.resolve("wal-" + generation + ".log.tmp"); }
+
+    /**
+     * reads the records of the log from a position on, cuts off a torn record at the end, and starts the flusher
+     * must be called once, before any append
+     *
+     * if the log was already cut at that position (wal-<generation+1>.log exists), the records are read from the new
+     * file, but their positions are still given in the file of the generation asked for
+     *
+     * @param generation the generation of the latest snapshot, 0 if there is none
+     * @param from the position in that generation the records are needed from
+     * @param replayer receives the records in the order they were appended
+     * @return the number of records replayed
+     * @throws IOException if the file can't be read, or the records after the snapshot are missing
+     */
+    public long replay(long generation, long from, Replayer replayer) throws IOException {
+        long shift;             // position in the generation asked for of the first byte of the file read
+
+        if (Files.exists(logFile(generation + 1))) {            // the cut completed, the old file may not have been deleted yet
+            this.generation = generation + 1;
+            shift = from;
+            from = 0;
+        }
+        else {
+            this.generation = generation;
+            shift = 0;
+            if (from > 0 && !Files.exists(logFile(generation))) { throw new IOException("Missing write-ahead log " + logFile(generation)); }
+        }
+        deleteStaleFiles();
+
+        this.channel = FileChannel.open(logFile(this.generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long valid = from;      // end of the last complete record
+        long count = 0;
+        CRC32 crc = new CRC32();
+
+        this.channel.position(from);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel), 64 * 1024));
+        try {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 5 || length > MAX_RECORD) { break; }
+
+                byte[] body = new byte[length];
+                in.readFully(body);
+
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) { break; }
+
+                ByteBuffer record = ByteBuffer.wrap(body);
+                byte type = record.get();
+                int clientId = record.getInt();
+                String tuple = new String(body, 5, length - 5, StandardCharsets.UTF_8);
+
+                replayer.apply(shift + valid, type, clientId, tuple);
+                valid += HEADER + length;
+                count++;
+            }
+        } catch (EOFException e) {
+            // end of the log, possibly in the middle of a record
+        }
+
+        this.channel.truncate(valid);
+        this.channel.position(valid);
+        this.appended = valid;
+        this.durable = valid;
+        this.base = 0;
+        this.flusher.start();
+        return count;
+    }
+
+    /**
+     * deletes the files of older generations and the leftovers of a cut interrupted by a crash
+     */
+    private void deleteStaleFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "wal-*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                }
+                else if (name.endsWith(".log") && generationOf(name, "wal-", ".log") < this.generation) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the generation in the name of a file of the log or of a snapshot, or Long.MAX_VALUE if it has none
+     */
+    public static long generationOf(String name, String prefix, String suffix) {
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return Long.MAX_VALUE;          // not a file of ours, never deleted
+        }
+    }
+
+    /**
+     * appends a record to the log; it reaches the file in the next flush
+     * called while holding the lock of the shard the tuple belongs to, so it only copies bytes
+     *
+     * @param type PUT, TAKE, LOCK or UNLOCK
+     * @param clientId the client of the operation, -1 if none
+     * @param tuple the tuple
+     */
+    public void append(byte type, int clientId, String tuple) {
+        byte[] bytes = tuple.getBytes(StandardCharsets.UTF_8);
+        int length = 5 + bytes.length;
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(4).putInt(0, clientId).array());
+        crc.update(bytes);
+
+        this.lock.lock();
+        try {
+            if (this.closed) { throw new IllegalStateException("The write-ahead log is closed"); }
+
+            ensureCapacity(HEADER + length);
+            this.buffer.putInt(length).putInt((int) crc.getValue()).put(type).putInt(clientId).put(bytes);
+            this.appended += HEADER + length;
+            this.records++;
+            if (this.policy != SyncPolicy.EVERY) { this.recordsAppended.signal(); }    // with every:N the flusher waits for its deadline
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (this.buffer.remaining() >= needed) { return; }
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(this.buffer.capacity() * 2, this.buffer.position() + needed));
+        this.buffer.flip();
+        bigger.put(this.buffer);
+        this.buffer = bigger;
+    }
+
+    /**
+     * the position the next record will be written at, in the file of the current generation
+     * called while holding the lock of a shard, it tells which records of the shard a copy of it already includes
+     *
+     * @return the offset in the current file
+     */
+    public long mark() {
+        this.lock.lock();
+        try { return this.appended - this.base; }
+        finally { this.lock.unlock(); }
+    }
+
+    public long getGeneration() {
+        this.lock.lock();
+        try { return generation; }
+        finally { this.lock.unlock(); }
+    }
+
+    /**
+     * @return the number of bytes appended since the log was opened, it only changes when the tuple space does
+     */
+    public long getAppended() {
+        this.lock.lock();
+        try { return appended; }
+        finally { this.lock.unlock(); }
+    }
+
+    /**
+     * with the always policy, the returned future completes when every record appended so far is on disk;
+     * with the other policies it is already complete
+     *
+     * @return a future to wait on before acknowledging an operation
+     */
+    public CompletableFuture<Void> sync() {
+        if (this.policy != SyncPolicy.ALWAYS) { return CompletableFuture.completedFuture(null); }
+
+        this.lock.lock();
+        try {
+            if (this.durable >= this.appended) { return CompletableFuture.completedFuture(null); }
+            return this.syncs.computeIfAbsent(this.appended, k -> new CompletableFuture<Void>());     // shared by every operation waiting on the same flush
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * drops the records before a position, once a snapshot that includes them is safely on disk
+     * the flusher copies the records after the position to the file of the next generation, which replaces the current one
+     *
+     * @param offset a position in the current file, returned by mark()
+     * @return a future completed when the log is cut
+     */
+    public CompletableFuture<Void> truncate(long offset) {
+        this.lock.lock();
+        try {
+            if (this.cut != -1) { throw new IllegalStateException("The write-ahead log is already being truncated"); }
+            if (this.closed) { throw new IllegalStateException("The write-ahead log is closed"); }
+
+            this.cut = offset;
+            this.truncated = new CompletableFuture<Void>();
+            this.recordsAppended.signal();
+            return this.truncated;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            long offset;
+            ByteBuffer toWrite;
+            CompletableFuture<Void> cutDone;
+
+            this.lock.lock();
+            try {
+                if (this.policy == SyncPolicy.EVERY) {
+                    // only a cut or close ends the interval early, so each group has every record of the interval
+                    long left = TimeUnit.MILLISECONDS.toNanos(this.intervalMillis);
+                    while (left > 0 && !this.closed && this.cut == -1) { left = this.recordsAppended.awaitNanos(left); }
+                }
+                else {
+                    while (this.buffer.position() == 0 && this.cut == -1 && !this.closed) { this.recordsAppended.await(); }
+                }
+                if (this.buffer.position() == 0 && this.cut == -1 && this.closed) { return; }
+
+                // swap the buffers, the operations keep appending while this group is written
+                toWrite = this.buffer;
+                this.buffer = this.spare;
+                this.spare = toWrite;
+                target = this.appended;
+
+                // the records before the cut were appended before it was asked for, so they are all in this group or already written
+                offset = this.cut;
+                cutDone = this.truncated;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                this.lock.unlock();
+            }
+
+            List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+            boolean empty = toWrite.position() == 0;        // an interval without changes, or a cut, has nothing to force
+            try {
+                if (!empty) {
+                    toWrite.flip();
+                    while (toWrite.hasRemaining()) { this.channel.write(toWrite); }
+                    toWrite.clear();
+
+                    if (this.policy != SyncPolicy.NONE) {
+                        this.channel.force(false);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Write-ahead log failed: " + e.getMessage());
+                failAll(e);
+                return;
+            }
+
+            this.lock.lock();
+            try {
+                if (!empty && this.policy != SyncPolicy.NONE) { this.fsyncs++; }
+                this.durable = target;
+
+                Map<Long, CompletableFuture<Void>> covered = this.syncs.headMap(target, true);
+                done.addAll(covered.values());
+                covered.clear();
+            } finally {
+                this.lock.unlock();
+            }
+
+            for (CompletableFuture<Void> f : done) { f.complete(null); }   // outside the lock, they send responses
+
+            if (offset != -1) { cut(offset, cutDone); }
+        }
+    }
+
+    /**
+     * runs on the flusher, the only thread that writes to the files of the log
+     * wal-<g>.log [offset, end) is copied to wal-<g+1>.log.tmp, which is forced and renamed to wal-<g+1>.log,
+     * and only then wal-<g>.log is deleted: after a crash, either the old or the new generation is complete
+     */
+    private void cut(long offset, CompletableFuture<Void> cutDone) {
+        long next;
+        this.lock.lock();
+        try { next = this.generation + 1; }
+        finally { this.lock.unlock(); }
+
+        try {
+            long end = this.channel.size();
+
+            FileChannel nextChannel = FileChannel.open(tmpFile(next), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long copied = 0;
+            while (copied < end - offset) { copied += this.channel.transferTo(offset + copied, end - offset - copied, nextChannel); }
+            nextChannel.force(true);
+            Files.move(tmpFile(next), logFile(next), StandardCopyOption.ATOMIC_MOVE);
+            nextChannel.position(copied);
+
+            FileChannel previous = this.channel;
+            this.lock.lock();
+            try {
+                this.channel = nextChannel;
+                this.base += offset;
+                this.generation = next;
+                this.cut = -1;
+                this.truncated = null;
+            } finally {
+                this.lock.unlock();
+            }
+            previous.close();
+            Files.delete(logFile(next - 1));
+
+            cutDone.complete(null);
+        } catch (IOException e) {
+            this.lock.lock();
+            try {
+                this.cut = -1;                  // keep the current generation, the next snapshot tries again
+                this.truncated = null;
+            } finally {
+                this.lock.unlock();
+            }
+            cutDone.completeExceptionally(e);
+        }
+    }
+
+    private void failAll(IOException e) {
+        List<CompletableFuture<Void>> failed;
+        CompletableFuture<Void> cutDone;
+
+        this.lock.lock();
+        try {
+            this.closed = true;
+            failed = new ArrayList<CompletableFuture<Void>>(this.syncs.values());
+            this.syncs.clear();
+            cutDone = this.truncated;
+        } finally {
+            this.lock.unlock();
+        }
+
+        for (CompletableFuture<Void> f : failed) { f.completeExceptionally(e); }
+        if (cutDone != null) { cutDone.completeExceptionally(e); }
+    }
+
+    public long getFsyncs() {
+        this.lock.lock();
+        try { return fsyncs; }
+        finally { this.lock.unlock(); }
+    }
+
+    public long getRecords() {
+        this.lock.lock();
+        try { return records; }
+        finally { this.lock.unlock(); }
+    }
+
+    /**
+     * writes and forces what is left in the buffer and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.recordsAppended.signal();
+        } finally {
+            this.lock.unlock();
+        }
+
+        try {
+            if (this.flusher.isAlive()) { this.flusher.join(); }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (this.channel != null) {
+            this.channel.force(true);
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package pt.ulisboa.tecnico.tuplespaces.replicaserver.domain;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * tests of the crash recovery of a replica: the tuple space is rebuilt from the latest snapshot and the tail of the
+ * write-ahead log, including the leftovers of a crash in the middle of a write or of a cut
+ */
+public class RecoveryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private final List<WriteAheadLog> logs = new ArrayList<WriteAheadLog>();
+
+
+    @Before
+    public void setUp() {
+        this.directory = this.folder.getRoot().toPath();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (WriteAheadLog log : this.logs) { log.close(); }
+    }
+
+    /**
+     * starts a replica on the directory, as ServerMain does
+     */
+    private ServerState open(int numShards) throws IOException {
+        ServerState state = new ServerState(false, numShards);
+        WriteAheadLog log = new WriteAheadLog(this.directory, "always");
+        this.logs.add(log);
+        state.recover(log);
+        return state;
+    }
+
+    /**
+     * stops a replica, every record appended so far is written to the file
+     */
+    private void close(ServerState state) throws IOException {
+        this.logs.remove(state.getLog());
+        state.getLog().close();
+    }
+
+    private static List<String> sorted(List<String> tuples) {
+        List<String> copy = new ArrayList<String>(tuples);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static Map<Integer, Integer> locks(Object... clientsAndCounts) {
+        Map<Integer, Integer> locks = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < clientsAndCounts.length; i += 2) { locks.put((Integer) clientsAndCounts[i], (Integer) clientsAndCounts[i + 1]); }
+        return locks;
+    }
+
+    @Test
+    public void roundTripThroughSnapshotAndLogTail() throws Exception {
+        ServerState state = open(4);
+        state.put("<a,1>");
+        state.put("<a,1>");
+        state.put("<b,2>");
+        state.put("<c,3>");
+        assertEquals("<b,2>", state.take("<b,2>"));
+        assertEquals(List.of("<a,1>"), state.acquireLock(7, "<a,1>"));
+
+        assertTrue(state.snapshot());
+        assertTrue(Files.exists(this.directory.resolve("snapshot-0.bin")));
+        assertTrue(Files.exists(this.directory.resolve("wal-1.log")));         // the log was cut behind the snapshot
+        assertFalse(Files.exists(this.directory.resolve("wal-0.log")));
+
+        // the tail, only in the log
+        state.put("<d,4>");
+        state.put("<e,5>");
+        assertEquals(List.of("<d,4>"), state.acquireLock(8, "<d,4>"));
+        assertEquals(List.of("<e,5>"), state.acquireLock(9, "<e,5>"));
+        assertEquals("<e,5>", state.takeExact(9, "<e,5>"));
+        state.freeLock(9);
+        assertEquals("<c,3>", state.take("<c,3>"));
+        assertEquals(1, state.releaseLocks(7, List.of("<a,1>")));
+        close(state);
+
+        ServerState recovered = open(4);
+        assertEquals(List.of("<a,1>", "<a,1>", "<d,4>"), sorted(recovered.getTupleSpacesState()));
+        assertEquals(locks(8, 1), recovered.getLockTableSizes());
+        close(recovered);
+
+        // the number of shards may change between runs
+        ServerState resharded = open(3);
+        assertEquals(List.of("<a,1>", "<a,1>", "<d,4>"), sorted(resharded.getTupleSpacesState()));
+        assertEquals(locks(8, 1), resharded.getLockTableSizes());
+    }
+
+    @Test
+    public void restoredTupleSurvivesWithoutWatchEvent() throws Exception {
+        ServerState state = open(2);
+        state.put("<a,1>");
+        state.put("<b,2>");
+        Subscription watch = state.watch(".*", 16, () -> {});
+        assertEquals("<a,1>", state.take("<a,1>"));
+        state.restore("<a,1>");                 // the caller of the TAKE went away
+        state.restoreAll(List.of("<c,3>"));
+        assertEquals(null, watch.poll());       // nothing new was put
+        close(state);
+
+        ServerState recovered = open(2);
+        assertEquals(List.of("<a,1>", "<b,2>", "<c,3>"), sorted(recovered.getTupleSpacesState()));
+    }
+
+    @Test
+    public void copiesLockedByOneClientSurvive() throws Exception {
+        ServerState state = open(2);
+        for (int i = 0; i < 5; i++) { state.put("<job>"); }
+
+        LockGrant grant = state.acquireLockAsync(7, "<job>", 3).get();
+        assertEquals(List.of("<job>", "<job>", "<job>"), grant.getMatches());
+        assertEquals(3, grant.getGranted().size());
+        assertEquals(1, state.releaseLocks(7, List.of("<job>")));          // one copy at a time
+        assertTrue(state.snapshot());                                       // 2 copies locked by client 7 in the snapshot
+
+        grant = state.acquireLockAsync(7, "<job>", 3).get();
+        assertEquals(3, grant.getMatches().size());
+        assertEquals(1, grant.getGranted().size());                         // only the copy given back was locked again
+        assertEquals(List.of("<job>", "<job>"), state.acquireLockAsync(8, "<job>", 3).get().getMatches());
+        assertEquals(List.of("<job>", "<job>"), state.takeExactAll(7, List.of("<job>", "<job>")));
+        close(state);
+
+        // client 7 still holds 1 copy, client 8 holds 2
+        ServerState recovered = open(2);
+        assertEquals(List.of("<job>", "<job>", "<job>"), recovered.getTupleSpacesState());
+        assertTrue(recovered.acquireLockAsync(9, "<job>", 3).get().getMatches().isEmpty());    // every copy is locked
+        assertEquals(2, recovered.releaseLocks(8, List.of("<job>", "<job>", "<job>")));
+        assertEquals(List.of("<job>", "<job>"), recovered.acquireLockAsync(9, "<job>", 3).get().getMatches());
+    }
+
+    @Test
+    public void locksInSnapshotSurviveWithoutTail() throws Exception {
+        ServerState state = open(2);
+        state.put("<x,1>");
+        state.put("<y,2>");
+        assertEquals(List.of("<x,1>"), state.acquireLock(3, "<x,1>"));
+        assertTrue(state.snapshot());
+        assertFalse(state.snapshot());          // nothing changed since the last one
+        close(state);
+
+        ServerState recovered = open(2);
+        assertEquals(List.of("<x,1>", "<y,2>"), sorted(recovered.getTupleSpacesState()));
+        assertEquals(locks(3, 1), recovered.getLockTableSizes());
+        assertEquals("<x,1>", recovered.takeExact(3, "<x,1>"));
+    }
+
+    @Test
+    public void tornLastRecordIsCutOff() throws Exception {
+        ServerState state = open(2);
+        state.put("<a,1>");
+        state.put("<b,2>");
+        close(state);
+
+        Path file = this.directory.resolve("wal-0.log");
+        long valid = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            // a crash in the middle of a write: the header of a record and only part of its body
+            ByteBuffer torn = ByteBuffer.allocate(11).putInt(12).putInt(0xCAFE).put((byte) WriteAheadLog.PUT).putShort((short) -1);
+            torn.flip();
+            channel.write(torn);
+        }
+
+        ServerState recovered = open(2);
+        assertEquals(List.of("<a,1>", "<b,2>"), sorted(recovered.getTupleSpacesState()));
+        assertEquals(valid, Files.size(file));          // the torn record is gone
+
+        // the records appended after the recovery are not hidden behind the torn one
+        recovered.put("<c,3>");
+        close(recovered);
+
+        ServerState again = open(2);
+        assertEquals(List.of("<a,1>", "<b,2>", "<c,3>"), sorted(again.getTupleSpacesState()));
+    }
+
+    @Test
+    public void recordWithBadChecksumIsCutOff() throws Exception {
+        ServerState state = open(1);
+        state.put("<a,1>");
+        state.put("<b,2>");
+        close(state);
+
+        // flip a byte of the tuple of the last record, its length is still right
+        Path file = this.directory.resolve("wal-0.log");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 'X' }), channel.size() - 2);
+        }
+
+        ServerState recovered = open(1);
+        assertEquals(List.of("<a,1>"), recovered.getTupleSpacesState());
+    }
+
+    @Test
+    public void leftoverNextGenerationIsReplayed() throws Exception {
+        ServerState state = open(2);
+        state.put("<a,1>");
+        state.put("<b,2>");
+        state.sync().get();
+
+        // keep a copy of the log as it was before the cut, to put it back as if the crash came before its deletion
+        Path old = this.directory.resolve("wal-0.log");
+        Path copy = this.folder.newFile("before-cut").toPath();
+        Files.copy(old, copy, StandardCopyOption.REPLACE_EXISTING);
+
+        assertTrue(state.snapshot());
+        state.put("<c,3>");                     // only in wal-1.log
+        assertEquals("<a,1>", state.take("<a,1>"));
+        close(state);
+
+        Files.copy(copy, old);
+        Files.write(this.directory.resolve("wal-2.log.tmp"), new byte[] { 1, 2, 3 });        // a later cut, interrupted
+        Files.write(this.directory.resolve("snapshot-1.bin.tmp"), new byte[] { 1, 2, 3 });   // a later snapshot, interrupted
+
+        ServerState recovered = open(2);
+        assertEquals(List.of("<b,2>", "<c,3>"), sorted(recovered.getTupleSpacesState()));
+        assertEquals(1, recovered.getLog().getGeneration());
+        assertFalse(Files.exists(old));
+        assertFalse(Files.exists(this.directory.resolve("wal-2.log.tmp")));
+        assertFalse(Files.exists(this.directory.resolve("snapshot-1.bin.tmp")));
+    }
+}
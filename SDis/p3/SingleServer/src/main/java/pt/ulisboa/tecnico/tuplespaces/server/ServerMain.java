@@ -1,5 +1,7 @@
 package pt.ulisboa.tecnico.tuplespaces.server;
 
+import pt.ulisboa.tecnico.tuplespaces.common.ServerExecutors;
+
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import java.io.IOException;
@@ -13,14 +15,27 @@ public class ServerMain {
         System.out.println(ServerMain.class.getSimpleName());
 
         // check arguments
-        if (args.length != 1 && args.length != 2) {
+        if (args.length < 1) {
             System.err.println("Invalid number of arguments");
-            System.err.printf("Usage: java %s <port> [-debug]%n", ServerMain.class.getName());
+            System.err.printf("Usage: java %s <port> [-debug] [-executor=<%s>]%n", ServerMain.class.getName(), ServerExecutors.USAGE);
             return;
         }
 
+        boolean debug = false;
+        String executor = ServerExecutors.DEFAULT;
+
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-debug")) { debug = true; }
+            else if (args[i].startsWith("-executor=")) { executor = args[i].substring("-executor=".length()); }
+            else {
+                System.err.println("Invalid argument: " + args[i]);
+                System.err.printf("Usage: java %s <port> [-debug] [-executor=<%s>]%n", ServerMain.class.getName(), ServerExecutors.USAGE);
+                return;
+            }
+        }
+
         // check if debug mode is enabled
-        final boolean DEBUG = (args.length == 2 && args[1].equals("-debug"));
+        final boolean DEBUG = debug;
 
         if (DEBUG) {
             System.err.println("[\u001B[34mDEBUG\u001B[0m] Debug mode enabled");
@@ -34,17 +49,24 @@ public class ServerMain {
 
         final int port = Integer.parseInt(args[0]);
 
-        // create a new gRPC server instance on the specified port
-        Server server = ServerBuilder.forPort(port)
-                                    .addService(new TupleSpacesServiceImpl(DEBUG))
-                                    .build();
+        // create a new gRPC server instance on the specified port, running the handlers on the chosen executor
+        ServerBuilder<?> builder = ServerBuilder.forPort(port);
+        try {
+            ServerExecutors.configure(builder, executor);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        Server server = builder.addService(new TupleSpacesServiceImpl(DEBUG))
+                               .build();
 
         // start the server
         server.start();
         // server threads are running in the background
 
         if (DEBUG) {
-            System.out.printf("[\u001B[34mDEBUG\u001B[0m] Server started, listening on port: %d\n\n", port);
+            System.out.printf("[\u001B[34mDEBUG\u001B[0m] Server started, listening on port: %d, executor: %s\n\n", port, executor);
         }
 
         // do not exit the main thread. Wait until server is terminated.
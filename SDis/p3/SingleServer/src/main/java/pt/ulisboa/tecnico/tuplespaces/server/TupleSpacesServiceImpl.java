@@ -7,7 +7,10 @@ import pt.ulisboa.tecnico.tuplespaces.replicated.contract.TupleSpacesOuterClass;
 import pt.ulisboa.tecnico.tuplespaces.server.domain.ServerState;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 
@@ -56,20 +59,29 @@ public class TupleSpacesServiceImpl extends TupleSpacesGrpc.TupleSpacesImplBase
             System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received READ request (#%d) in %s, %s", this.numberReadRequests, Thread.currentThread().getName(), request);
         }
 
-        String tuple = this.serverState
-                            .read(request.getSearchPattern());      // read tuple from tuple space
+        ServerCallStreamObserver<TupleSpacesOuterClass.ReadResponse> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.ReadResponse>) responseObserver;
 
-        TupleSpacesOuterClass.ReadResponse response = 
-            TupleSpacesOuterClass.ReadResponse
-                                .newBuilder()
-                                .setResult(tuple)
-                                .build();                           // construct a new Protobuffer object to send as response
+        CompletableFuture<String> pending = this.serverState
+                                                .readAsync(request.getSearchPattern()); // read tuple from tuple space, parked if there is none yet
 
-        if (this.DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending READ response (#%d) in %s, result: %s\n\n", this.numberReadRequests++, Thread.currentThread().getName(), tuple);
-        }
-        responseObserver.onNext(response);                          // use the responseObserver to send the response
-        responseObserver.onCompleted();                             // after sending the response, complete the call
+        call.setOnCancelHandler(() -> pending.cancel(false));        // client gave up (cancellation or deadline), drop the parked request
+
+        pending.thenAccept(tuple -> {                               // runs when a matching tuple is found, no thread waits for it
+            if (call.isCancelled()) { return; }                     // client is gone, nobody to answer to
+
+            TupleSpacesOuterClass.ReadResponse response = 
+                TupleSpacesOuterClass.ReadResponse
+                                    .newBuilder()
+                                    .setResult(tuple)
+                                    .build();                       // construct a new Protobuffer object to send as response
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending READ response (#%d) in %s, result: %s\n\n", this.numberReadRequests++, Thread.currentThread().getName(), tuple);
+            }
+            responseObserver.onNext(response);                      // use the responseObserver to send the response
+            responseObserver.onCompleted();                         // after sending the response, complete the call
+        });
     }
 
     @Override
@@ -78,21 +90,37 @@ public class TupleSpacesServiceImpl extends TupleSpacesGrpc.TupleSpacesImplBase
             System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server received TAKE request (#%d) in %s, %s", this.numberTakeRequests, Thread.currentThread().getName(), request);
         }
 
-        String tuple = this.serverState
-                            .take(request.getSearchPattern());      // take tuple from tuple space
-
-        TupleSpacesOuterClass.TakeResponse response = 
-            TupleSpacesOuterClass.TakeResponse
-                                .newBuilder()
-                                .setResult(tuple)
-                                .build();                           // construct a new Protobuffer object to send as response
-
-        if (this.DEBUG) {
-            System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending TAKE response (#%d) in %s, result: %s\n\n", this.numberTakeRequests++, Thread.currentThread().getName(), tuple);
-        }
-
-        responseObserver.onNext(response);                          // use the responseObserver to send the response
-        responseObserver.onCompleted();                             // after sending the response, complete the call
+        ServerCallStreamObserver<TupleSpacesOuterClass.TakeResponse> call = 
+            (ServerCallStreamObserver<TupleSpacesOuterClass.TakeResponse>) responseObserver;
+
+        CompletableFuture<String> pending = this.serverState
+                                                .takeAsync(request.getSearchPattern()); // take tuple from tuple space, parked if there is none yet
+
+        call.setOnCancelHandler(() -> pending.cancel(false));        // client gave up (cancellation or deadline), drop the parked request
+
+        pending.thenAccept(tuple -> {                               // runs when a matching tuple is found, no thread waits for it
+            if (call.isCancelled()) {                               // client is gone, the tuple goes back to the tuple space
+                this.serverState.put(tuple);
+                return;
+            }
+
+            TupleSpacesOuterClass.TakeResponse response = 
+                TupleSpacesOuterClass.TakeResponse
+                                    .newBuilder()
+                                    .setResult(tuple)
+                                    .build();                       // construct a new Protobuffer object to send as response
+
+            if (this.DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Server sending TAKE response (#%d) in %s, result: %s\n\n", this.numberTakeRequests++, Thread.currentThread().getName(), tuple);
+            }
+
+            try {
+                responseObserver.onNext(response);                  // use the responseObserver to send the response
+                responseObserver.onCompleted();                     // after sending the response, complete the call
+            } catch (StatusRuntimeException | IllegalStateException e) {
+                this.serverState.put(tuple);                        // cancelled after the check above, the tuple goes back too
+            }
+        });
     }
 
     @Override
@@ -0,0 +1,134 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import pt.ulisboa.tecnico.tuplespaces.common.PatternCache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * PendingRegistry keeps the parked READ/TAKE requests grouped by search pattern, as the WaiterRegistry of the replicas
+ * when a tuple is added, only the requests whose pattern matches the new tuple are looked at,
+ * and each distinct pattern is tested once, no matter how many requests are waiting on it
+ *
+ * exact = {"<a,b>": [READ#3, TAKE#7]}          literal patterns, found with a single lookup
+ * regex = {"<c,.*>": [READ#2, TAKE#5]}         other patterns, tested against every new tuple
+ *
+ * NOTE: the registry is not thread-safe, it is protected by the lock of the ServerState
+ */
+public class PendingRegistry {
+
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+    private final Map<String, Deque<PendingRequest>> exact;
+    private final Map<String, Deque<PendingRequest>> regex;
+    private final PatternCache patterns;
+    private int size;
+
+
+    public PendingRegistry(PatternCache patterns) {
+        this.exact = new HashMap<String, Deque<PendingRequest>>();
+        this.regex = new HashMap<String, Deque<PendingRequest>>();
+        this.patterns = patterns;
+        this.size = 0;
+    }
+
+    public int size() { return size; }
+
+    /**
+     * registers a parked request
+     * @param request the request to register
+     */
+    public void add(PendingRequest request) {
+        Map<String, Deque<PendingRequest>> requests = isLiteral(request.getPattern()) ? this.exact : this.regex;
+        requests.computeIfAbsent(request.getPattern(), k -> new ArrayDeque<PendingRequest>()).addLast(request);
+        this.size++;
+    }
+
+    /**
+     * unregisters a parked request that gave up waiting
+     * @param request the request to remove
+     */
+    public void remove(PendingRequest request) {
+        if (removeFrom(this.exact, request) || removeFrom(this.regex, request)) { this.size--; }
+    }
+
+    private static boolean removeFrom(Map<String, Deque<PendingRequest>> requests, PendingRequest request) {
+        Deque<PendingRequest> queue = requests.get(request.getPattern());
+        if (queue == null || !queue.remove(request)) { return false; }
+        if (queue.isEmpty()) { requests.remove(request.getPattern()); }
+        return true;
+    }
+
+    /**
+     * removes the requests woken by a tuple that is being added to the tuple space:
+     * every matching READ, and the oldest matching TAKE, that consumes the tuple
+     *
+     * @param tuple the new tuple
+     * @param woken list where the matching READs are added; the caller completes them after releasing the lock
+     * @return the TAKE the tuple is handed to, or null if the tuple goes to the tuple space
+     */
+    public PendingRequest wake(String tuple, List<PendingRequest> woken) {
+        List<String> matchingRegex = new ArrayList<String>();
+        for (String pattern : this.regex.keySet()) {
+            if (this.patterns.matches(pattern, tuple)) { matchingRegex.add(pattern); }
+        }
+
+        PendingRequest taker = oldestTake(this.exact.get(tuple), null);
+        for (String pattern : matchingRegex) { taker = oldestTake(this.regex.get(pattern), taker); }
+
+        wakeQueue(this.exact, tuple, taker, woken);
+        for (String pattern : matchingRegex) { wakeQueue(this.regex, pattern, taker, woken); }
+
+        return taker;
+    }
+
+    private static PendingRequest oldestTake(Deque<PendingRequest> queue, PendingRequest taker) {
+        if (queue == null) { return taker; }
+
+        for (PendingRequest request : queue) {
+            if (request.isTake() && !request.isCancelled() && (taker == null || request.getSequence() < taker.getSequence())) {
+                taker = request;
+            }
+        }
+        return taker;
+    }
+
+    private void wakeQueue(Map<String, Deque<PendingRequest>> requests, String pattern, PendingRequest taker, List<PendingRequest> woken) {
+        Deque<PendingRequest> queue = requests.get(pattern);
+        if (queue == null) { return; }
+
+        Iterator<PendingRequest> it = queue.iterator();
+        while (it.hasNext()) {
+            PendingRequest request = it.next();
+            if (request.isCancelled() || request == taker) {
+                // the caller gave up, just forget it; the taker is completed by the caller
+            }
+            else if (!request.isTake()) {
+                woken.add(request);
+            }
+            else {
+                continue;
+            }
+            it.remove();
+            this.size--;
+        }
+
+        if (queue.isEmpty()) { requests.remove(pattern); }
+    }
+
+    /**
+     * @return true if the pattern has no regular expression metacharacters, i.e. it only matches itself
+     */
+    private static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (METACHARACTERS.indexOf(pattern.charAt(i)) != -1) { return false; }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,37 @@
+package pt.ulisboa.tecnico.tuplespaces.server.domain;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * PendingRequest represents a READ or TAKE that is parked until a matching tuple is added to the tuple space
+ * no thread is blocked while the request waits: the PUT that adds the tuple completes its future
+ */
+public class PendingRequest {
+
+    private final boolean take;     // true for TAKE, false for READ
+    private final String pattern;
+    private final long sequence;    // order of arrival, the oldest parked TAKE gets the tuple
+    private final CompletableFuture<String> future;
+
+
+    public PendingRequest(boolean take, String pattern, long sequence) {
+        this.take = take;
+        this.pattern = pattern;
+        this.sequence = sequence;
+        this.future = new CompletableFuture<String>();
+    }
+
+    public boolean isTake() { return take; }
+
+    public String getPattern() { return pattern; }
+
+    public long getSequence() { return sequence; }
+
+    public CompletableFuture<String> getFuture() { return future; }
+
+    /**
+     * @return true if the caller gave up waiting (e.g. the gRPC call was cancelled)
+     */
+    public boolean isCancelled() { return future.isCancelled(); }
+}
@@ -1,31 +1,62 @@
 package pt.ulisboa.tecnico.tuplespaces.server.domain;
 
+import pt.ulisboa.tecnico.tuplespaces.common.PatternCache;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
 public class ServerState {
 
     boolean DEBUG;
-    private List<String> tuples;    // tuple space
+    private List<String> tuples;            // tuple space
+    private PatternCache patterns;          // compiled search patterns, shared by READ and TAKE
+    private PendingRegistry pending;        // parked READ/TAKE requests, grouped by pattern
+    private long sequence;                  // order of arrival of the parked requests
+    private final ReentrantLock lock;       // protects the tuple space and the parked requests (not a monitor, so virtual threads never pin)
 
     public ServerState(boolean debug) {
         this.DEBUG = debug;
         this.tuples = new ArrayList<String>();
+        this.patterns = new PatternCache();
+        this.pending = new PendingRegistry(this.patterns);
+        this.sequence = 0;
+        this.lock = new ReentrantLock();
     }
 
 
     /**
      * PUT operation:   adds a tuple to the tuple space
+     *                  every parked READ that matches receives the tuple; the oldest parked TAKE that matches consumes it
+     *                  only the parked requests whose pattern matches are looked at, see PendingRegistry
      * @param tuple the tuple to be added
      */
-    public synchronized void put(String tuple) {
-        this.tuples.add(tuple);
+    public void put(String tuple) {
+        List<PendingRequest> woken = new ArrayList<PendingRequest>();
+        PendingRequest taker = null;
+
+        this.lock.lock();
+        try {
+            if (this.pending.size() > 0) { taker = this.pending.wake(tuple, woken); }
 
-        if (DEBUG) {
-            System.err.println("[\u001B[34mDEBUG\u001B[0m] Added tuple: " + tuple);
+            if (taker == null) { this.tuples.add(tuple); }
+
+            if (DEBUG) {
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] %s tuple: %s, woke %d parked requests\n", (taker == null) ? "Added" : "Handed parked take", tuple, woken.size() + (taker == null ? 0 : 1));
+            }
+        } finally {
+            this.lock.unlock();
         }
 
-        notifyAll();
+        // run the continuations outside the lock
+        for (PendingRequest request : woken) { request.getFuture().complete(tuple); }
+        if (taker != null && !taker.getFuture().complete(tuple)) {
+            put(tuple);     // the TAKE gave up in the meantime, the tuple goes to the space after all
+        }
     }
 
     /**
@@ -34,54 +65,104 @@ public class ServerState {
      * @return the tuple that matches the pattern
      */
     private String getMatchingTuple(String pattern) {
+        Pattern compiledPattern = this.patterns.get(pattern);
+
         for (String tuple : this.tuples) {
-            if (tuple.matches(pattern)) {
+            if (compiledPattern.matcher(tuple).matches()) {
                 return tuple;
             }
         }
         return null;
     }
 
+    /**
+     * parks a request until a PUT of a matching tuple completes it
+     * the caller must hold the lock
+     *
+     * @param take true for TAKE, false for READ
+     * @param pattern the pattern the request is waiting for
+     * @return the future of the request
+     */
+    private CompletableFuture<String> park(boolean take, String pattern) {
+        PendingRequest request = new PendingRequest(take, pattern, this.sequence++);
+        this.pending.add(request);
+
+        request.getFuture().whenComplete((result, e) -> {
+            if (request.isCancelled()) {                    // the caller gave up, e.g. the gRPC call was cancelled
+                this.lock.lock();
+                try { this.pending.remove(request); }
+                finally { this.lock.unlock(); }
+            }
+        });
+
+        return request.getFuture();
+    }
+
+    /**
+     * blocks the calling thread until an asynchronous operation completes
+     * @param future the future of the operation
+     * @return the result of the operation
+     */
+    private static String await(CompletableFuture<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     /**
      * READ operation:  accepts a tuple description to find a match in the tuple space
-     *                  blocks the client until there is a tuple that satisfies description
+     *                  if there is none, the request is parked until a tuple that satisfies description is added
      *                  the tuple is not removed from the tuple space
      *
      * @param pattern the pattern to match
-     * @return the tuple that matches the pattern
+     * @return a future with the tuple that matches the pattern
      */
-    public synchronized String read(String pattern) {
-        while (true) {
+    public CompletableFuture<String> readAsync(String pattern) {
+        this.lock.lock();
+        try {
             String t = getMatchingTuple(pattern);
             if (t != null) {
                 if (DEBUG) {
                     System.err.printf("[\u001B[34mDEBUG\u001B[0m] Read tuple %s for pattern: %s%n", t, pattern);
                 }
-                return t;
+                return CompletableFuture.completedFuture(t);
             }
 
             if (DEBUG) {
-                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Blocking %s because no tuple found for pattern: %s\n\n", Thread.currentThread().getName(), pattern);
-            }
-
-            try {
-                wait(); // waits until a tuple is available
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Parking READ because no tuple found for pattern: %s\n\n", pattern);
             }
+            return park(false, pattern);
+        } finally {
+            this.lock.unlock();
         }
     }
 
+    /**
+     * READ operation:  blocking version of readAsync
+     *
+     * @param pattern the pattern to match
+     * @return the tuple that matches the pattern
+     */
+    public String read(String pattern) {
+        return await(readAsync(pattern));
+    }
+
     /**
      * TAKE operation:  accepts a tuple description to find a match in the tuple space
-     *                  blocks the client until there is a tuple that satisfies description
+     *                  if there is none, the request is parked until a tuple that satisfies description is added
      *                  the tuple is removed from the tuple space
      *
      * @param pattern the pattern to match
-     * @return the tuple that matches the pattern
+     * @return a future with the tuple that matches the pattern
      */
-    public synchronized String take(String pattern) {
-        while (true) {
+    public CompletableFuture<String> takeAsync(String pattern) {
+        this.lock.lock();
+        try {
             String t = getMatchingTuple(pattern);
             if (t != null) {
                 this.tuples.remove(t);
@@ -89,34 +170,44 @@ public class ServerState {
                 if (DEBUG) {
                     System.err.printf("[\u001B[34mDEBUG\u001B[0m] Took tuple %s for pattern: %s%n", t, pattern);
                 }
-
-                return t;
+                return CompletableFuture.completedFuture(t);
             }
 
             if (DEBUG) {
-                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Blocking %s because no tuple found for pattern: %s\n\n", Thread.currentThread().getName(), pattern);
-            }
-
-            try {
-                wait(); // waits until a tuple is available
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                System.err.printf("[\u001B[34mDEBUG\u001B[0m] Parking TAKE because no tuple found for pattern: %s\n\n", pattern);
             }
+            return park(true, pattern);
+        } finally {
+            this.lock.unlock();
         }
     }
 
+    /**
+     * TAKE operation:  blocking version of takeAsync
+     *
+     * @param pattern the pattern to match
+     * @return the tuple that matches the pattern
+     */
+    public String take(String pattern) {
+        return await(takeAsync(pattern));
+    }
+
     /**
      * GET-TUPLE-SPACES-STATE operation: returns the tuple space state of the server
      * @return the tuple space state of the server
      */
-    public synchronized List<String> getTupleSpacesState() {
+    public List<String> getTupleSpacesState() {
+        this.lock.lock();
+        try {
+            List<String> tupleSpacesState = new ArrayList<String>(this.tuples);
 
-        List<String> tupleSpacesState = new ArrayList<String>(this.tuples);
+            if (DEBUG) {
+                System.err.println("[\u001B[34mDEBUG\u001B[0m] Got tuple space state, pattern cache " + this.patterns + ", " + this.pending.size() + " parked requests");
+            }
 
-        if (DEBUG) {
-            System.err.println("[\u001B[34mDEBUG\u001B[0m] Got tuple space state");
+            return tupleSpacesState;
+        } finally {
+            this.lock.unlock();
         }
-
-        return tupleSpacesState;
     }
 }